@@ -0,0 +1,55 @@
+package com.abrody.passforge.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.abrody.passforge.BCrypt;
+
+/**
+ * BCrypt.hashpw and checkpw across work factors. Each call at
+ * log_rounds 14 takes around a second, so iterations run for several
+ * seconds to average over a few calls even there, after warming up
+ * long enough for the JIT to have compiled the Blowfish rounds.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BCryptBenchmark {
+    private static final String PASSWORD = "correct horse battery staple";
+
+    @Param({ "4", "6", "8", "10", "12", "14" })
+    public int logRounds;
+
+    private String salt;
+    private String hash;
+
+    @Setup
+    public void setUp() {
+        salt = BCrypt.gensalt(logRounds);
+        hash = BCrypt.hashpw(PASSWORD, salt);
+    }
+
+    @Benchmark
+    public String hashpw() {
+        return BCrypt.hashpw(PASSWORD, salt);
+    }
+
+    @Benchmark
+    public boolean checkpw() {
+        return BCrypt.checkpw(PASSWORD, hash);
+    }
+}
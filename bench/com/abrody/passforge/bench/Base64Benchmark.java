@@ -0,0 +1,105 @@
+package com.abrody.passforge.bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.abrody.passforge.Base64;
+
+/**
+ * Base64 bulk and stream codecs across sizes and options, against
+ * java.util.Base64. The options param is a Base64 options mask:
+ * 0 (plain), 8 (DO_BREAK_LINES), 16 (URL_SAFE) or 2 (GZIP).
+ * The JDK baselines ignore it and always use the basic codec.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class Base64Benchmark {
+    private static final int BUFFER = 4096;
+
+    @Param({ "16", "1024", "65536" })
+    public int size;
+
+    @Param({ "0", "8", "16", "2" })
+    public int options;
+
+    private byte[] raw;
+    private byte[] encoded;
+    private String encodedString;
+    private byte[] jdkEncoded;
+    private byte[] buffer;
+
+    @Setup
+    public void setUp() throws IOException {
+        raw = new byte[size];
+        new Random(42).nextBytes(raw);
+        encoded = Base64.encodeBytesToBytes(raw, 0, raw.length, options);
+        encodedString = new String(encoded, "US-ASCII");
+        jdkEncoded = java.util.Base64.getEncoder().encode(raw);
+        buffer = new byte[BUFFER];
+    }
+
+    @Benchmark
+    public byte[] encodeBytesToBytes() throws IOException {
+        return Base64.encodeBytesToBytes(raw, 0, raw.length, options);
+    }
+
+    @Benchmark
+    public byte[] decodeBytes() throws IOException {
+        return Base64.decode(encoded, 0, encoded.length, options);
+    }
+
+    @Benchmark
+    public byte[] decodeString() throws IOException {
+        return Base64.decode(encodedString, options);
+    }
+
+    @Benchmark
+    public byte[] outputStream() throws IOException {
+        ByteArrayOutputStream sink = new ByteArrayOutputStream(encoded.length);
+        Base64.OutputStream out = new Base64.OutputStream(sink, options | Base64.ENCODE);
+        out.write(raw);
+        out.close();
+        return sink.toByteArray();
+    }
+
+    @Benchmark
+    public int inputStream() throws IOException {
+        Base64.InputStream in = new Base64.InputStream(
+                new ByteArrayInputStream(encoded), options & ~Base64.GZIP);
+        int total = 0;
+        for (int n; (n = in.read(buffer)) > 0;) {
+            total += n;
+        }
+        in.close();
+        return total;
+    }
+
+    @Benchmark
+    public byte[] jdkEncode() {
+        return java.util.Base64.getEncoder().encode(raw);
+    }
+
+    @Benchmark
+    public byte[] jdkDecode() {
+        return java.util.Base64.getDecoder().decode(jdkEncoded);
+    }
+}
@@ -0,0 +1,40 @@
+package com.abrody.passforge.bench;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with the GC profiler, so each result comes with
+ * bytes allocated per operation.
+ *
+ * bench/pom.xml builds the benchmarks and the passforge classes into
+ * one jar with this as its main class:
+ *
+ * <pre>
+ *   mvn -f bench/pom.xml package
+ *   java -jar bench/target/benchmarks.jar [REGEX]
+ * </pre>
+ *
+ * Without Maven, compile by hand against JMH (jmh-core and
+ * jmh-generator-annprocess, with their dependencies):
+ *
+ * <pre>
+ *   javac -cp "$JMH/*" -d bin/bench $(find src bench -name '*.java')
+ *   java -cp "bin/bench:$JMH/*" com.abrody.passforge.bench.BenchmarkMain [REGEX]
+ * </pre>
+ *
+ * The optional REGEX picks benchmarks, for example Base64 or
+ * Pbkdf2Benchmark.generateKey.
+ */
+public class BenchmarkMain {
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(args.length > 0 ? args[0] : "com.abrody.passforge.bench")
+                .addProfiler(GCProfiler.class)
+                .build();
+        new Runner(options).run();
+    }
+}
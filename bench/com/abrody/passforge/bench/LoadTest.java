@@ -0,0 +1,448 @@
+package com.abrody.passforge.bench;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.management.ListenerNotFoundException;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+
+import com.abrody.passforge.BCrypt;
+import com.abrody.passforge.LatencyHistogram;
+import com.abrody.passforge.PassforgeEngine;
+
+/**
+ * Drives a mix of verify, hash and derive operations from many threads
+ * at once and reports throughput, latency percentiles and GC pauses,
+ * for capacity planning at a given cost setting.
+ *
+ * Closed loop (the default): each of THREADS workers runs one operation
+ * after another, as fast as it can. Open loop (--rate): operations are
+ * started at a fixed rate whether or not earlier ones have finished, and
+ * each latency is measured from when the operation was due to start, so
+ * time spent queued behind a saturated pool is counted rather than hidden.
+ *
+ * Needs no JMH; run it with the passforge classes on the classpath:
+ * <pre>
+ *   java -cp bin/bench com.abrody.passforge.bench.LoadTest -t 16 -c 10 -m verify=8,derive=2
+ * </pre>
+ */
+public class LoadTest {
+    public static final String USAGE =
+            "usage: LoadTest [-t THREADS] [-d SECONDS] [-w WARMUP_SECONDS] [-r OPS_PER_SECOND]\n"
+            + "                [-m verify=N,hash=N,derive=N] [-c LOG_ROUNDS] [-i ITERATIONS]\n"
+            + "                [-l LENGTH] [--virtual]";
+
+    static final int VERIFY = 0;
+    static final int HASH = 1;
+    static final int DERIVE = 2;
+    static final String[] OPERATIONS = { "verify", "hash", "derive" };
+
+    private static final String PASSWORD = "correct horse battery staple";
+    private static final byte[] SALT = "example.com".getBytes();
+
+    private final int threads;
+    private final double rate;
+    private final int[] weights;
+    private final int totalWeight;
+    private final int logRounds;
+    private final int iterations;
+    private final int length;
+
+    private final Method virtualExecutor;
+    private final PassforgeEngine engine;
+    private final String storedHash;
+    private final LatencyHistogram[] histograms = new LatencyHistogram[OPERATIONS.length];
+    private final AtomicLong failures = new AtomicLong();
+
+    /**
+     * @param threads workers in closed loop, pool size in open loop
+     * @param rate operations started per second, or 0 for closed loop
+     * @param virtual run on virtual threads rather than platform threads
+     * @param weights relative share of VERIFY, HASH and DERIVE operations
+     * @param logRounds bcrypt cost for verify and hash
+     * @param iterations PBKDF2 iterations for derive
+     * @param length password length for derive
+     */
+    public LoadTest(int threads, double rate, boolean virtual, int[] weights,
+            int logRounds, int iterations, int length) throws GeneralSecurityException {
+        if (threads <= 0) {
+            throw new IllegalArgumentException("Thread count must be positive");
+        }
+        int total = 0;
+        for (int i = 0; i < weights.length; i++) {
+            if (weights[i] < 0) {
+                throw new IllegalArgumentException("Negative weight for " + OPERATIONS[i]);
+            }
+            total += weights[i];
+        }
+        if (total == 0) {
+            throw new IllegalArgumentException("Operation mix is empty");
+        }
+        this.threads = threads;
+        this.rate = rate;
+        this.weights = weights.clone();
+        this.totalWeight = total;
+        this.logRounds = logRounds;
+        this.iterations = iterations;
+        this.length = length;
+
+        if (virtual) {
+            try {
+                this.virtualExecutor = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            } catch (NoSuchMethodException e) {
+                throw new UnsupportedOperationException("Virtual threads need Java 21 or later");
+            }
+        } else {
+            this.virtualExecutor = null;
+        }
+
+        this.engine = new PassforgeEngine(PASSWORD);
+        this.storedHash = BCrypt.hashpw(PASSWORD, BCrypt.gensalt(logRounds));
+        for (int i = 0; i < histograms.length; i++) {
+            histograms[i] = new LatencyHistogram(OPERATIONS[i]);
+        }
+    }
+
+    /**
+     * Runs for warmupSeconds without recording, then for seconds with,
+     * and returns what was measured.
+     */
+    public Report run(double warmupSeconds, double seconds) throws InterruptedException {
+        if (warmupSeconds > 0) {
+            drive(warmupSeconds);
+            for (LatencyHistogram histogram : histograms) {
+                histogram.reset();
+            }
+            failures.set(0);
+        }
+
+        GcPauses pauses = new GcPauses();
+        pauses.start();
+        long elapsed;
+        try {
+            long start = System.nanoTime();
+            drive(seconds);
+            elapsed = System.nanoTime() - start;
+        } finally {
+            pauses.stop();
+        }
+
+        return new Report(histograms, failures.get(), elapsed,
+                pauses.count.get(), pauses.millis.get());
+    }
+
+    private void drive(double seconds) throws InterruptedException {
+        long deadline = System.nanoTime() + (long) (seconds * 1e9);
+        ExecutorService pool = newExecutor();
+        try {
+            if (rate > 0) {
+                openLoop(pool, deadline);
+            } else {
+                closedLoop(pool, deadline);
+            }
+            pool.shutdown();
+            // In flight operations are allowed to finish and be recorded
+            while (!pool.awaitTermination(1, TimeUnit.SECONDS)) {
+                // Keep waiting; a saturated open loop may take a while to drain
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private void closedLoop(ExecutorService pool, final long deadline) {
+        for (int t = 0; t < threads; t++) {
+            pool.execute(new Runnable() {
+                public void run() {
+                    while (System.nanoTime() < deadline) {
+                        operate(System.nanoTime());
+                    }
+                }
+            });
+        }
+    }
+
+    private void openLoop(ExecutorService pool, long deadline) {
+        long interval = (long) (1e9 / rate);
+        long due = System.nanoTime();
+        while (due < deadline) {
+            long wait;
+            while ((wait = due - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            final long scheduled = due;
+            pool.execute(new Runnable() {
+                public void run() {
+                    operate(scheduled);
+                }
+            });
+            due += interval;
+        }
+    }
+
+    /**
+     * Runs one operation picked by weight, recording its latency from
+     * startNanos.
+     */
+    private void operate(long startNanos) {
+        int op = pick();
+        try {
+            switch (op) {
+            case VERIFY:
+                if (!BCrypt.checkpw(PASSWORD, storedHash)) {
+                    throw new IllegalStateException("Verification failed");
+                }
+                break;
+            case HASH:
+                BCrypt.hashpw(PASSWORD, BCrypt.gensalt(logRounds));
+                break;
+            default:
+                engine.derive(SALT, iterations, length);
+                break;
+            }
+        } catch (GeneralSecurityException e) {
+            failures.incrementAndGet();
+        } catch (RuntimeException e) {
+            failures.incrementAndGet();
+        }
+        histograms[op].record(System.nanoTime() - startNanos);
+    }
+
+    private int pick() {
+        int n = ThreadLocalRandom.current().nextInt(totalWeight);
+        int op = 0;
+        while (n >= weights[op]) {
+            n -= weights[op];
+            op++;
+        }
+        return op;
+    }
+
+    private ExecutorService newExecutor() {
+        if (virtualExecutor != null) {
+            try {
+                return (ExecutorService) virtualExecutor.invoke(null);
+            } catch (Exception e) {
+                throw new IllegalStateException("Cannot start virtual threads", e);
+            }
+        }
+        return Executors.newFixedThreadPool(threads);
+    }
+
+    /**
+     * Counts stop-the-world pauses and their milliseconds from the
+     * collectors' notifications. getCollectionTime() can't be used: ZGC
+     * and Shenandoah report their concurrent cycles through a bean of
+     * their own, whose time would be counted as paused.
+     */
+    private static class GcPauses implements NotificationListener {
+        final AtomicLong count = new AtomicLong();
+        final AtomicLong millis = new AtomicLong();
+
+        void start() {
+            for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+                if (gc instanceof NotificationEmitter) {
+                    ((NotificationEmitter) gc).addNotificationListener(this, null, null);
+                }
+            }
+        }
+
+        void stop() {
+            for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+                if (gc instanceof NotificationEmitter) {
+                    try {
+                        ((NotificationEmitter) gc).removeNotificationListener(this);
+                    } catch (ListenerNotFoundException e) {
+                        // Not an emitter we registered with
+                    }
+                }
+            }
+        }
+
+        public void handleNotification(Notification notification, Object handback) {
+            if (!notification.getType().equals(
+                    GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION)) {
+                return;
+            }
+            GarbageCollectionNotificationInfo info = GarbageCollectionNotificationInfo.from(
+                    (CompositeData) notification.getUserData());
+            // "end of GC cycle" is concurrent work; every other action is a pause
+            if (info.getGcAction().contains("cycle")) {
+                return;
+            }
+            count.incrementAndGet();
+            millis.addAndGet(info.getGcInfo().getDuration());
+        }
+    }
+
+    /**
+     * What one run measured.
+     */
+    public static class Report {
+        private final LatencyHistogram[] histograms;
+        private final long failures;
+        private final long elapsedNanos;
+        private final long gcCount;
+        private final long gcMillis;
+
+        Report(LatencyHistogram[] histograms, long failures, long elapsedNanos,
+                long gcCount, long gcMillis) {
+            this.histograms = histograms;
+            this.failures = failures;
+            this.elapsedNanos = elapsedNanos;
+            this.gcCount = gcCount;
+            this.gcMillis = gcMillis;
+        }
+
+        public long getOperations() {
+            long n = 0;
+            for (LatencyHistogram histogram : histograms) {
+                n += histogram.getCount();
+            }
+            return n;
+        }
+
+        public double getThroughput() {
+            return getOperations() / (elapsedNanos / 1e9);
+        }
+
+        public long getFailures() {
+            return failures;
+        }
+
+        public List<LatencyHistogram> getHistograms() {
+            List<LatencyHistogram> used = new ArrayList<LatencyHistogram>();
+            for (LatencyHistogram histogram : histograms) {
+                if (histogram.getCount() > 0) {
+                    used.add(histogram);
+                }
+            }
+            return used;
+        }
+
+        /**
+         * Stop-the-world GC pauses during the run.
+         */
+        public long getGcCount() {
+            return gcCount;
+        }
+
+        /**
+         * Milliseconds spent in those pauses, concurrent GC work excluded.
+         */
+        public long getGcMillis() {
+            return gcMillis;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder s = new StringBuilder();
+            s.append(String.format("%d ops, %d failed in %.3f s: %.1f ops/s%n",
+                    getOperations(), failures, elapsedNanos / 1e9, getThroughput()));
+            s.append(String.format("%-8s %10s %10s %10s %10s %10s%n",
+                    "op", "count", "p50 ms", "p99 ms", "p99.9 ms", "max ms"));
+            for (LatencyHistogram h : getHistograms()) {
+                s.append(String.format("%-8s %10d %10.3f %10.3f %10.3f %10.3f%n",
+                        h.getName(), h.getCount(), h.getValueAtPercentile(50) / 1e6,
+                        h.getValueAtPercentile(99) / 1e6, h.getValueAtPercentile(99.9) / 1e6,
+                        h.getMax() / 1e6));
+            }
+            s.append(String.format("gc: %d pauses, %d ms paused (%.2f%% of run)",
+                    gcCount, gcMillis, gcMillis * 1e8 / elapsedNanos));
+            return s.toString();
+        }
+    }
+
+    static int[] parseMix(String mix) {
+        int[] weights = new int[OPERATIONS.length];
+        for (String part : mix.split(",")) {
+            int eq = part.indexOf('=');
+            if (eq < 0) {
+                throw new IllegalArgumentException(part);
+            }
+            String name = part.substring(0, eq).trim();
+            int op = 0;
+            while (op < OPERATIONS.length && !OPERATIONS[op].equals(name)) {
+                op++;
+            }
+            if (op == OPERATIONS.length) {
+                throw new IllegalArgumentException("Unknown operation " + name);
+            }
+            weights[op] = Integer.parseInt(part.substring(eq + 1).trim());
+        }
+        return weights;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int threads = Runtime.getRuntime().availableProcessors();
+        double seconds = 10;
+        double warmup = 3;
+        double rate = 0;
+        int[] weights = { 1, 0, 0 };
+        int logRounds = 10;
+        int iterations = 1000;
+        int length = 16;
+        boolean virtual = false;
+
+        try {
+            for (int i = 0; i < args.length; i++) {
+                String arg = args[i];
+                if (arg.equals("--virtual")) {
+                    virtual = true;
+                } else if (i + 1 == args.length) {
+                    throw new IllegalArgumentException(arg);
+                } else if (arg.equals("-t")) {
+                    threads = Integer.parseInt(args[++i]);
+                } else if (arg.equals("-d")) {
+                    seconds = Double.parseDouble(args[++i]);
+                } else if (arg.equals("-w")) {
+                    warmup = Double.parseDouble(args[++i]);
+                } else if (arg.equals("-r")) {
+                    rate = Double.parseDouble(args[++i]);
+                } else if (arg.equals("-m")) {
+                    weights = parseMix(args[++i]);
+                } else if (arg.equals("-c")) {
+                    logRounds = Integer.parseInt(args[++i]);
+                } else if (arg.equals("-i")) {
+                    iterations = Integer.parseInt(args[++i]);
+                } else if (arg.equals("-l")) {
+                    length = Integer.parseInt(args[++i]);
+                } else {
+                    throw new IllegalArgumentException(arg);
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println(USAGE);
+            System.exit(1);
+        }
+
+        System.err.println(String.format("%s loop, %s, %d threads, log_rounds %d, %d iterations",
+                rate > 0 ? "open (" + rate + " ops/s)" : "closed",
+                virtual ? "virtual threads" : "platform threads",
+                threads, logRounds, iterations));
+        LoadTest test;
+        try {
+            test = new LoadTest(threads, rate, virtual, weights, logRounds, iterations, length);
+        } catch (UnsupportedOperationException e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+            return;
+        }
+        System.out.println(test.run(warmup, seconds));
+    }
+}
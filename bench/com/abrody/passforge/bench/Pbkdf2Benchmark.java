@@ -0,0 +1,71 @@
+package com.abrody.passforge.bench;
+
+import java.security.GeneralSecurityException;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.abrody.passforge.PBKDF2KeyGenerator;
+import com.abrody.passforge.PassforgeEngine;
+
+/**
+ * PBKDF2-HMAC-SHA1 through PBKDF2KeyGenerator and PassforgeEngine,
+ * against the JDK's own PBKDF2WithHmacSHA1.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class Pbkdf2Benchmark {
+    private static final String PASSWORD = "correct horse battery staple";
+    private static final byte[] SALT = "example.com".getBytes();
+
+    @Param({ "1", "1000", "10000" })
+    public int iterations;
+
+    @Param({ "16", "20", "64" })
+    public int keyLengthBytes;
+
+    private PBKDF2KeyGenerator generator;
+    private PassforgeEngine engine;
+    private SecretKeyFactory jdkFactory;
+    private PBEKeySpec jdkSpec;
+
+    @Setup
+    public void setUp() throws GeneralSecurityException {
+        generator = new PBKDF2KeyGenerator(keyLengthBytes, iterations, "HMACSHA1");
+        engine = new PassforgeEngine(PASSWORD);
+        jdkFactory = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA1");
+        jdkSpec = new PBEKeySpec(PASSWORD.toCharArray(), SALT, iterations, keyLengthBytes * 8);
+    }
+
+    @Benchmark
+    public byte[] generateKey() throws GeneralSecurityException {
+        return generator.generateKey(PASSWORD, SALT);
+    }
+
+    @Benchmark
+    public byte[] engineDeriveKey() throws GeneralSecurityException {
+        return engine.deriveKey(SALT, iterations, keyLengthBytes);
+    }
+
+    @Benchmark
+    public byte[] jdkBaseline() throws GeneralSecurityException {
+        return jdkFactory.generateSecret(jdkSpec).getEncoded();
+    }
+}
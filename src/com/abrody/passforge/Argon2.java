@@ -0,0 +1,690 @@
+package com.abrody.passforge;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.security.GeneralSecurityException;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Argon2id (RFC 9106, version 0x13) in pure Java, as a
+ * KeyDerivationFunction for Passforge and a PasswordHasher for stored
+ * credentials.
+ *
+ * Memory is m KiB of 1 KiB blocks in p lanes, each lane cut into four
+ * slices. Within a slice the lanes don't depend on each other, so each
+ * slice fills all lanes at once, the caller taking the first lane and
+ * the common fork-join pool the rest, and waits for them all before the
+ * next slice. With p at the number of cores, large memory settings use
+ * every core.
+ *
+ * The blocks live off the heap in direct buffers, pooled by size so a
+ * server hashing at one setting reuses the same arena, wiped between
+ * uses. An arena bigger than MAX_POOLED_BYTES is never pooled: every
+ * call at such a setting allocates a fresh one, whose memory only goes
+ * back once the collector frees the buffers, so settings that large
+ * suit occasional derivations rather than a busy server. Stored hashes
+ * asking for more than MAX_HASH_MEMORY_KIB are refused before anything
+ * is allocated. The compression function works on long[] scratch that each lane
+ * allocates once per call, so the per-block loop allocates nothing.
+ *
+ * Hashes are in the PHC string format other Argon2 libraries use:
+ * <pre>
+ *   $argon2id$v=19$m=MEMORY,t=ITERATIONS,p=PARALLELISM$SALT$TAG
+ * </pre>
+ * with SALT and TAG in Base64 without padding.
+ */
+public class Argon2 implements KeyDerivationFunction, PasswordHasher {
+    public static final int VERSION = 0x13;
+
+    /** Most arena memory the pool holds on to between calls. */
+    public static final long MAX_POOLED_BYTES = 256L * 1024 * 1024;
+
+    /** Most memory, in KiB, that a stored hash may ask verify() for. */
+    public static final int MAX_HASH_MEMORY_KIB = 4 * 1024 * 1024;
+
+    private static final Set<KdfCapability> CAPABILITIES = Collections.unmodifiableSet(
+            EnumSet.of(KdfCapability.PURE_JAVA, KdfCapability.MEMORY_HARD));
+
+    private static final int TYPE_ID = 2;
+    private static final int SYNC_POINTS = 4;
+    private static final int BLOCK_BYTES = 1024;
+    private static final int BLOCK_LONGS = BLOCK_BYTES / 8;
+    private static final int SALT_LENGTH = 16;
+    private static final int TAG_LENGTH = 32;
+    private static final String PREFIX = "$" + Argon2Parameters.ALGORITHM + "$v=" + VERSION + "$";
+
+    private static final ConcurrentLinkedQueue<Arena> pool = new ConcurrentLinkedQueue<Arena>();
+    private static final AtomicLong pooledBytes = new AtomicLong();
+
+    private final SecureRandom random = new SecureRandom();
+
+    public String getAlgorithm() {
+        return Argon2Parameters.ALGORITHM;
+    }
+
+    public Set<KdfCapability> getCapabilities() {
+        return CAPABILITIES;
+    }
+
+    public byte[] deriveKey(byte[] password, byte[] salt, KdfParameters parameters,
+            int keyLengthBytes) throws GeneralSecurityException {
+        Argon2Parameters a = parameters(parameters);
+        return argon2id(password, salt, null, null, a.getIterations(), a.getMemoryKiB(),
+                a.getParallelism(), keyLengthBytes);
+    }
+
+    public String hash(String password, KdfParameters parameters) throws GeneralSecurityException {
+        Argon2Parameters a = parameters(parameters);
+        byte[] salt = new byte[SALT_LENGTH];
+        random.nextBytes(salt);
+        byte[] tag = deriveKey(utf8(password), salt, a, TAG_LENGTH);
+        return PREFIX + "m=" + a.getMemoryKiB() + ",t=" + a.getIterations()
+                + ",p=" + a.getParallelism() + "$" + b64(salt) + "$" + b64(tag);
+    }
+
+    public boolean verify(String password, String hash) throws GeneralSecurityException {
+        String[] fields = split(hash);
+        Argon2Parameters a = parse(fields);
+        byte[] salt = unb64(fields[4]);
+        byte[] expected = unb64(fields[5]);
+        if (salt.length < 8 || expected.length < 4) {
+            // Argon2 makes no tag this short, nor takes a salt this short
+            return false;
+        }
+        byte[] actual = deriveKey(utf8(password), salt, a, expected.length);
+        return MessageDigest.isEqual(expected, actual);
+    }
+
+    public boolean recognizes(String hash) {
+        return hash.startsWith(PREFIX);
+    }
+
+    public KdfParameters getParameters(String hash) {
+        return parse(split(hash));
+    }
+
+    /**
+     * Argon2id with an optional secret key and associated data, either
+     * of which may be null.
+     *
+     * @param iterations passes over memory, t
+     * @param memoryKiB memory in KiB, m
+     * @param parallelism lanes, p
+     * @param tagLength output length in bytes, at least 4
+     */
+    public static byte[] argon2id(byte[] password, byte[] salt, byte[] secret,
+            byte[] associatedData, int iterations, int memoryKiB, int parallelism,
+            int tagLength) throws GeneralSecurityException {
+        // The constructor checks t, m and p
+        new Argon2Parameters(iterations, memoryKiB, parallelism);
+        if (salt.length < 8) {
+            throw new IllegalArgumentException("Salt must be at least 8 bytes");
+        }
+        if (tagLength < 4) {
+            throw new IllegalArgumentException("Tag must be at least 4 bytes");
+        }
+
+        Timing timing = Timing.start(PassforgeEvents.DERIVE);
+        boolean succeeded = false;
+        try {
+            byte[] tag = new Instance(iterations, memoryKiB, parallelism)
+                    .run(password, salt, secret, associatedData, tagLength);
+            succeeded = true;
+            return tag;
+        } finally {
+            timing.derive(Latencies.ARGON2, Argon2Parameters.ALGORITHM, memoryKiB, iterations,
+                    tagLength, succeeded);
+        }
+    }
+
+    /**
+     * One derivation: the memory layout and the lanes that fill it.
+     */
+    private static class Instance {
+        final int iterations;
+        final int memoryKiB;
+        final int lanes;
+        final int segmentLength;
+        final int laneLength;
+        final int blocks;
+
+        Instance(int iterations, int memoryKiB, int parallelism) {
+            this.iterations = iterations;
+            this.memoryKiB = memoryKiB;
+            this.lanes = parallelism;
+            this.segmentLength = memoryKiB / (SYNC_POINTS * parallelism);
+            this.laneLength = segmentLength * SYNC_POINTS;
+            this.blocks = laneLength * parallelism;
+        }
+
+        byte[] run(byte[] password, byte[] salt, byte[] secret, byte[] associatedData,
+                int tagLength) throws GeneralSecurityException {
+            Blake2b blake = new Blake2b(Blake2b.MAX_OUTPUT_BYTES);
+            byte[] h0 = new byte[Blake2b.MAX_OUTPUT_BYTES + 8];
+            initialHash(blake, h0, password, salt, secret, associatedData, tagLength);
+
+            Arena arena = take(blocks);
+            try {
+                Lane[] lane = new Lane[lanes];
+                for (int l = 0; l < lanes; l++) {
+                    lane[l] = new Lane(this, arena, l);
+                }
+
+                byte[] block = new byte[BLOCK_BYTES];
+                long[] words = new long[BLOCK_LONGS];
+                for (int l = 0; l < lanes; l++) {
+                    for (int column = 0; column < 2; column++) {
+                        putInt(h0, Blake2b.MAX_OUTPUT_BYTES, column);
+                        putInt(h0, Blake2b.MAX_OUTPUT_BYTES + 4, l);
+                        hPrime(blake, block, BLOCK_BYTES, h0);
+                        for (int i = 0; i < BLOCK_LONGS; i++) {
+                            words[i] = Blake2b.getLong(block, i * 8);
+                        }
+                        lane[0].write(l * laneLength + column, words);
+                    }
+                }
+                Arrays.fill(h0, (byte) 0);
+
+                for (int pass = 0; pass < iterations; pass++) {
+                    for (int slice = 0; slice < SYNC_POINTS; slice++) {
+                        fillSlice(lane, pass, slice);
+                    }
+                }
+
+                // XOR of every lane's last block
+                long[] last = lane[0].prev;
+                lane[0].read(laneLength - 1, last);
+                for (int l = 1; l < lanes; l++) {
+                    lane[0].read(l * laneLength + laneLength - 1, words);
+                    for (int i = 0; i < BLOCK_LONGS; i++) {
+                        last[i] ^= words[i];
+                    }
+                }
+                for (int i = 0; i < BLOCK_LONGS; i++) {
+                    Blake2b.putLong(block, i * 8, last[i]);
+                }
+                byte[] tag = new byte[tagLength];
+                hPrime(blake, tag, tagLength, block);
+                Arrays.fill(block, (byte) 0);
+                Arrays.fill(words, 0);
+                return tag;
+            } finally {
+                give(arena, blocks);
+            }
+        }
+
+        void initialHash(Blake2b blake, byte[] h0, byte[] password, byte[] salt,
+                byte[] secret, byte[] associatedData, int tagLength) {
+            blake.reset(Blake2b.MAX_OUTPUT_BYTES);
+            blake.updateInt(lanes);
+            blake.updateInt(tagLength);
+            blake.updateInt(memoryKiB);
+            blake.updateInt(iterations);
+            blake.updateInt(VERSION);
+            blake.updateInt(TYPE_ID);
+            updateWithLength(blake, password);
+            updateWithLength(blake, salt);
+            updateWithLength(blake, secret);
+            updateWithLength(blake, associatedData);
+            blake.digest(h0, 0);
+        }
+
+        /**
+         * Fills one slice of every lane, in parallel when there are
+         * several, returning once all are done.
+         */
+        void fillSlice(Lane[] lane, int pass, int slice) throws GeneralSecurityException {
+            for (Lane l : lane) {
+                l.pass = pass;
+                l.slice = slice;
+            }
+            if (lanes == 1) {
+                lane[0].fillSegment();
+                return;
+            }
+
+            Future<?>[] others = new Future<?>[lanes - 1];
+            for (int l = 1; l < lanes; l++) {
+                others[l - 1] = ForkJoinPool.commonPool().submit(lane[l]);
+            }
+            lane[0].fillSegment();
+
+            try {
+                for (Future<?> other : others) {
+                    other.get();
+                }
+            } catch (ExecutionException e) {
+                throw new IllegalStateException("Argon2 lane failed", e.getCause());
+            } catch (InterruptedException e) {
+                for (Future<?> other : others) {
+                    other.cancel(true);
+                }
+                Thread.currentThread().interrupt();
+                throw new GeneralSecurityException("Interrupted");
+            }
+        }
+
+        /**
+         * The column a block refers to, from the low 32 bits of its
+         * pseudo-random value (RFC 9106 section 3.4.2).
+         */
+        int indexAlpha(int pass, int slice, int index, long pseudoRandom, boolean sameLane) {
+            long area;
+            if (pass == 0) {
+                if (slice == 0) {
+                    area = index - 1;
+                } else if (sameLane) {
+                    area = (long) slice * segmentLength + index - 1;
+                } else {
+                    area = (long) slice * segmentLength + (index == 0 ? -1 : 0);
+                }
+            } else {
+                if (sameLane) {
+                    area = laneLength - segmentLength + index - 1;
+                } else {
+                    area = laneLength - segmentLength + (index == 0 ? -1 : 0);
+                }
+            }
+
+            long x = pseudoRandom & 0xffffffffL;
+            x = (x * x) >>> 32;
+            long relative = area - 1 - ((area * x) >>> 32);
+            long start = pass != 0 && slice != SYNC_POINTS - 1
+                    ? (long) (slice + 1) * segmentLength : 0;
+            return (int) ((start + relative) % laneLength);
+        }
+    }
+
+    /**
+     * One lane's view of the arena and its scratch blocks. Runs as a
+     * fork-join task for one segment at a time.
+     */
+    private static class Lane implements Callable<Void> {
+        final Instance instance;
+        final int lane;
+        final LongBuffer[] views;
+
+        final long[] prev = new long[BLOCK_LONGS];
+        final long[] ref = new long[BLOCK_LONGS];
+        final long[] next = new long[BLOCK_LONGS];
+        final long[] r = new long[BLOCK_LONGS];
+        final long[] tmp = new long[BLOCK_LONGS];
+        final long[] zero = new long[BLOCK_LONGS];
+        final long[] input = new long[BLOCK_LONGS];
+        final long[] address = new long[BLOCK_LONGS];
+
+        int pass;
+        int slice;
+
+        Lane(Instance instance, Arena arena, int lane) {
+            this.instance = instance;
+            this.lane = lane;
+            this.views = new LongBuffer[arena.chunks.length];
+            for (int i = 0; i < views.length; i++) {
+                views[i] = arena.chunks[i].duplicate();
+            }
+        }
+
+        public Void call() {
+            fillSegment();
+            return null;
+        }
+
+        void fillSegment() {
+            Instance in = instance;
+            boolean independent = pass == 0 && slice < SYNC_POINTS / 2;
+            int start = 0;
+
+            if (independent) {
+                Arrays.fill(input, 0);
+                input[0] = pass;
+                input[1] = lane;
+                input[2] = slice;
+                input[3] = in.blocks;
+                input[4] = in.iterations;
+                input[5] = TYPE_ID;
+            }
+            if (pass == 0 && slice == 0) {
+                start = 2;
+                if (independent) {
+                    nextAddresses();
+                }
+            }
+
+            int laneStart = lane * in.laneLength;
+            int column = slice * in.segmentLength + start;
+            read(laneStart + (column == 0 ? in.laneLength - 1 : column - 1), prev);
+
+            long[] prev = this.prev;
+            long[] next = this.next;
+            for (int i = start; i < in.segmentLength; i++, column++) {
+                long pseudoRandom;
+                if (independent) {
+                    if (i % BLOCK_LONGS == 0) {
+                        nextAddresses();
+                    }
+                    pseudoRandom = address[i % BLOCK_LONGS];
+                } else {
+                    pseudoRandom = prev[0];
+                }
+
+                int refLane = (int) ((pseudoRandom >>> 32) % in.lanes);
+                if (pass == 0 && slice == 0) {
+                    refLane = lane;
+                }
+                int refColumn = in.indexAlpha(pass, slice, i, pseudoRandom, refLane == lane);
+                read(refLane * in.laneLength + refColumn, ref);
+
+                if (pass == 0) {
+                    fillBlock(prev, ref, next, false);
+                } else {
+                    read(laneStart + column, next);
+                    fillBlock(prev, ref, next, true);
+                }
+                write(laneStart + column, next);
+
+                // The block just made is the previous one for the next
+                long[] t = prev;
+                prev = next;
+                next = t;
+            }
+        }
+
+        void nextAddresses() {
+            input[6]++;
+            fillBlock(zero, input, address, false);
+            fillBlock(zero, address, address, false);
+        }
+
+        /**
+         * next = G(prev, ref), or next ^= G(prev, ref) when xor is set.
+         * next may be ref.
+         */
+        void fillBlock(long[] prev, long[] ref, long[] next, boolean xor) {
+            long[] r = this.r;
+            long[] tmp = this.tmp;
+            for (int i = 0; i < BLOCK_LONGS; i++) {
+                r[i] = prev[i] ^ ref[i];
+            }
+            if (xor) {
+                for (int i = 0; i < BLOCK_LONGS; i++) {
+                    tmp[i] = r[i] ^ next[i];
+                }
+            } else {
+                System.arraycopy(r, 0, tmp, 0, BLOCK_LONGS);
+            }
+
+            for (int i = 0; i < 8; i++) {
+                int b = 16 * i;
+                permute(r, b, b + 1, b + 2, b + 3, b + 4, b + 5, b + 6, b + 7,
+                        b + 8, b + 9, b + 10, b + 11, b + 12, b + 13, b + 14, b + 15);
+            }
+            for (int i = 0; i < 8; i++) {
+                int b = 2 * i;
+                permute(r, b, b + 1, b + 16, b + 17, b + 32, b + 33, b + 48, b + 49,
+                        b + 64, b + 65, b + 80, b + 81, b + 96, b + 97, b + 112, b + 113);
+            }
+
+            for (int i = 0; i < BLOCK_LONGS; i++) {
+                next[i] = tmp[i] ^ r[i];
+            }
+        }
+
+        void read(int block, long[] words) {
+            LongBuffer view = views[block >>> Arena.CHUNK_SHIFT];
+            view.position((block & Arena.CHUNK_MASK) * BLOCK_LONGS);
+            view.get(words, 0, BLOCK_LONGS);
+        }
+
+        void write(int block, long[] words) {
+            LongBuffer view = views[block >>> Arena.CHUNK_SHIFT];
+            view.position((block & Arena.CHUNK_MASK) * BLOCK_LONGS);
+            view.put(words, 0, BLOCK_LONGS);
+        }
+    }
+
+    /**
+     * The BLAKE2b round function on sixteen words of v, with Argon2's
+     * multiplications added.
+     */
+    private static void permute(long[] v, int v0, int v1, int v2, int v3, int v4, int v5,
+            int v6, int v7, int v8, int v9, int v10, int v11, int v12, int v13, int v14,
+            int v15) {
+        gb(v, v0, v4, v8, v12);
+        gb(v, v1, v5, v9, v13);
+        gb(v, v2, v6, v10, v14);
+        gb(v, v3, v7, v11, v15);
+        gb(v, v0, v5, v10, v15);
+        gb(v, v1, v6, v11, v12);
+        gb(v, v2, v7, v8, v13);
+        gb(v, v3, v4, v9, v14);
+    }
+
+    private static void gb(long[] v, int a, int b, int c, int d) {
+        long va = v[a], vb = v[b], vc = v[c], vd = v[d];
+        va += vb + 2 * (va & 0xffffffffL) * (vb & 0xffffffffL);
+        vd = Long.rotateRight(vd ^ va, 32);
+        vc += vd + 2 * (vc & 0xffffffffL) * (vd & 0xffffffffL);
+        vb = Long.rotateRight(vb ^ vc, 24);
+        va += vb + 2 * (va & 0xffffffffL) * (vb & 0xffffffffL);
+        vd = Long.rotateRight(vd ^ va, 16);
+        vc += vd + 2 * (vc & 0xffffffffL) * (vd & 0xffffffffL);
+        vb = Long.rotateRight(vb ^ vc, 63);
+        v[a] = va;
+        v[b] = vb;
+        v[c] = vc;
+        v[d] = vd;
+    }
+
+    /**
+     * H', the variable-length hash of RFC 9106 section 3.3.
+     */
+    static void hPrime(Blake2b blake, byte[] out, int outLength, byte[] in) {
+        if (outLength <= Blake2b.MAX_OUTPUT_BYTES) {
+            blake.reset(outLength);
+            blake.updateInt(outLength);
+            blake.update(in);
+            blake.digest(out, 0);
+            return;
+        }
+
+        byte[] v = new byte[Blake2b.MAX_OUTPUT_BYTES];
+        blake.reset(Blake2b.MAX_OUTPUT_BYTES);
+        blake.updateInt(outLength);
+        blake.update(in);
+        blake.digest(v, 0);
+        System.arraycopy(v, 0, out, 0, 32);
+
+        int r = (outLength + 31) / 32 - 2;
+        int pos = 32;
+        for (int i = 2; i <= r; i++) {
+            blake.update(v);
+            blake.digest(v, 0);
+            System.arraycopy(v, 0, out, pos, 32);
+            pos += 32;
+        }
+        blake.reset(outLength - 32 * r);
+        blake.update(v);
+        blake.digest(out, pos);
+        Arrays.fill(v, (byte) 0);
+    }
+
+    private static void updateWithLength(Blake2b blake, byte[] data) {
+        if (data == null) {
+            blake.updateInt(0);
+        } else {
+            blake.updateInt(data.length);
+            blake.update(data);
+        }
+    }
+
+    private static void putInt(byte[] b, int off, int value) {
+        for (int i = 0; i < 4; i++) {
+            b[off + i] = (byte) (value >>> (8 * i));
+        }
+    }
+
+    /**
+     * Off-heap block memory, in direct buffers of at most 1 GiB each
+     * since one buffer can't exceed 2 GiB.
+     */
+    private static class Arena {
+        static final int CHUNK_SHIFT = 20;
+        static final int CHUNK_MASK = (1 << CHUNK_SHIFT) - 1;
+
+        final int blocks;
+        final LongBuffer[] chunks;
+
+        Arena(int blocks) {
+            this.blocks = blocks;
+            this.chunks = new LongBuffer[(blocks + CHUNK_MASK) >>> CHUNK_SHIFT];
+            for (int i = 0; i < chunks.length; i++) {
+                int n = Math.min(blocks - (i << CHUNK_SHIFT), 1 << CHUNK_SHIFT);
+                chunks[i] = ByteBuffer.allocateDirect(n * BLOCK_BYTES)
+                        .order(ByteOrder.LITTLE_ENDIAN).asLongBuffer();
+            }
+        }
+
+        long bytes() {
+            return (long) blocks * BLOCK_BYTES;
+        }
+
+        /**
+         * Zeroes the first used blocks.
+         */
+        void wipe(int used) {
+            long[] zeros = new long[BLOCK_LONGS * 64];
+            for (int i = 0; i < chunks.length && used > 0; i++) {
+                LongBuffer chunk = chunks[i].duplicate();
+                chunk.clear();
+                long remaining = Math.min((long) used << 7, chunk.capacity());
+                while (remaining > 0) {
+                    int n = (int) Math.min(remaining, zeros.length);
+                    chunk.put(zeros, 0, n);
+                    remaining -= n;
+                }
+                used -= 1 << CHUNK_SHIFT;
+            }
+        }
+    }
+
+    /**
+     * An arena of at least blocks blocks, from the pool if one is there.
+     * One bigger than MAX_POOLED_BYTES is never in the pool, so is
+     * allocated anew each time.
+     */
+    private static Arena take(int blocks) {
+        for (Arena a : pool) {
+            if (a.blocks >= blocks && pool.remove(a)) {
+                pooledBytes.addAndGet(-a.bytes());
+                return a;
+            }
+        }
+        return new Arena(blocks);
+    }
+
+    private static void give(Arena a, int used) {
+        a.wipe(used);
+        if (pooledBytes.addAndGet(a.bytes()) <= MAX_POOLED_BYTES) {
+            pool.add(a);
+        } else {
+            pooledBytes.addAndGet(-a.bytes());
+        }
+    }
+
+    /**
+     * Frees the pooled arenas, to the extent the collector frees direct
+     * buffers.
+     */
+    public static void clearPool() {
+        Arena a;
+        while ((a = pool.poll()) != null) {
+            pooledBytes.addAndGet(-a.bytes());
+        }
+    }
+
+    private static Argon2Parameters parameters(KdfParameters parameters)
+            throws InvalidAlgorithmParameterException {
+        if (!(parameters instanceof Argon2Parameters)) {
+            throw new InvalidAlgorithmParameterException("Not Argon2id parameters: " + parameters);
+        }
+        return (Argon2Parameters) parameters;
+    }
+
+    /**
+     * Splits a hash into "", argon2id, v=19, the parameters, salt and tag.
+     */
+    private static String[] split(String hash) {
+        String[] fields = hash.split("\\$", -1);
+        if (fields.length != 6 || !hash.startsWith(PREFIX)) {
+            throw new IllegalArgumentException("Not an Argon2id hash");
+        }
+        return fields;
+    }
+
+    /**
+     * The settings of a split hash, which must be m, t and p, in that
+     * order, as every Argon2 library writes them.
+     */
+    private static Argon2Parameters parse(String[] fields) {
+        String[] settings = fields[3].split(",", -1);
+        if (settings.length != 3 || !settings[0].startsWith("m=")
+                || !settings[1].startsWith("t=") || !settings[2].startsWith("p=")) {
+            throw new IllegalArgumentException("Bad Argon2 settings " + fields[3]);
+        }
+        int m = Integer.parseInt(settings[0].substring(2));
+        int t = Integer.parseInt(settings[1].substring(2));
+        int p = Integer.parseInt(settings[2].substring(2));
+        if (m > MAX_HASH_MEMORY_KIB) {
+            throw new IllegalArgumentException("Argon2 hash asks for " + m
+                    + " KiB, more than " + MAX_HASH_MEMORY_KIB);
+        }
+        return new Argon2Parameters(t, m, p);
+    }
+
+    private static String b64(byte[] bytes) {
+        PassforgeMetrics.base64Encoded(bytes.length);
+        String s = Base64.encodeBytes(bytes);
+        int end = s.length();
+        while (end > 0 && s.charAt(end - 1) == '=') {
+            end--;
+        }
+        return s.substring(0, end);
+    }
+
+    private static byte[] unb64(String s) {
+        StringBuilder padded = new StringBuilder(s);
+        while (padded.length() % 4 != 0) {
+            padded.append('=');
+        }
+        PassforgeMetrics.base64Decoded(padded.length());
+        try {
+            return Base64.decode(padded.toString(), Base64.DONT_GUNZIP);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Bad Base64 in Argon2 hash", e);
+        }
+    }
+
+    private static byte[] utf8(String s) {
+        try {
+            return s.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError("UTF-8 is not supported");
+        }
+    }
+}
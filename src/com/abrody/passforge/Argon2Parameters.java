@@ -0,0 +1,72 @@
+package com.abrody.passforge;
+
+/**
+ * Argon2id settings (RFC 9106): passes over memory t, memory in KiB m
+ * and lanes p. m must be at least 8 * p; it is rounded down to a
+ * multiple of 4 * p.
+ */
+public final class Argon2Parameters implements KdfParameters {
+    public static final String ALGORITHM = "argon2id";
+
+    private final int iterations;
+    private final int memoryKiB;
+    private final int parallelism;
+
+    public Argon2Parameters(int iterations, int memoryKiB, int parallelism) {
+        if (iterations < 1) {
+            throw new IllegalArgumentException("Iterations must be positive");
+        }
+        if (parallelism < 1 || parallelism > 0xffffff) {
+            throw new IllegalArgumentException("Parallelism must be 1 to 2^24-1");
+        }
+        if (memoryKiB < 8 * parallelism) {
+            throw new IllegalArgumentException("Memory must be at least 8 KiB per lane");
+        }
+        this.iterations = iterations;
+        this.memoryKiB = memoryKiB;
+        this.parallelism = parallelism;
+    }
+
+    public String getAlgorithm() {
+        return ALGORITHM;
+    }
+
+    /**
+     * Memory in KiB, the setting that makes Argon2 expensive to attack.
+     */
+    public int getCost() {
+        return memoryKiB;
+    }
+
+    public int getIterations() {
+        return iterations;
+    }
+
+    public int getMemoryKiB() {
+        return memoryKiB;
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof Argon2Parameters)) {
+            return false;
+        }
+        Argon2Parameters a = (Argon2Parameters) o;
+        return iterations == a.iterations && memoryKiB == a.memoryKiB
+                && parallelism == a.parallelism;
+    }
+
+    @Override
+    public int hashCode() {
+        return (iterations * 31 + memoryKiB) * 31 + parallelism;
+    }
+
+    @Override
+    public String toString() {
+        return "argon2id t=" + iterations + " m=" + memoryKiB + " p=" + parallelism;
+    }
+}
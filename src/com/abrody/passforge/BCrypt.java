@@ -64,7 +64,10 @@ import java.security.SecureRandom;
 public class BCrypt {
 	// BCrypt parameters
 	private static final int GENSALT_DEFAULT_LOG2_ROUNDS = 10;
-	private static final int BCRYPT_SALT_LEN = 16;
+	static final int BCRYPT_SALT_LEN = 16;
+
+	// Bytes of digest in a hash, the last of the 24 being dropped
+	static final int BCRYPT_HASH_LEN = 23;
 
 	// Blowfish parameters
 	private static final int BLOWFISH_NUM_ROUNDS = 16;
@@ -342,142 +345,94 @@ public class BCrypt {
 		0x64657253, 0x63727944, 0x6f756274
 	};
 
-	// Table for Base64 encoding
-	static private final char base64_code[] = {
-		'.', '/', 'A', 'B', 'C', 'D', 'E', 'F', 'G', 'H', 'I', 'J',
-		'K', 'L', 'M', 'N', 'O', 'P', 'Q', 'R', 'S', 'T', 'U', 'V',
-		'W', 'X', 'Y', 'Z', 'a', 'b', 'c', 'd', 'e', 'f', 'g', 'h',
-		'i', 'j', 'k', 'l', 'm', 'n', 'o', 'p', 'q', 'r', 's', 't',
-		'u', 'v', 'w', 'x', 'y', 'z', '0', '1', '2', '3', '4', '5',
-		'6', '7', '8', '9'
-	};
-
-	// Table for Base64 decoding
-	static private final byte index_64[] = {
-		-1, -1, -1, -1, -1, -1, -1, -1, -1, -1,
-		-1, -1, -1, -1, -1, -1, -1, -1, -1, -1,
-		-1, -1, -1, -1, -1, -1, -1, -1, -1, -1,
-		-1, -1, -1, -1, -1, -1, -1, -1, -1, -1,
-		-1, -1, -1, -1, -1, -1, 0, 1, 54, 55,
-		56, 57, 58, 59, 60, 61, 62, 63, -1, -1,
-		-1, -1, -1, -1, -1, 2, 3, 4, 5, 6,
-		7, 8, 9, 10, 11, 12, 13, 14, 15, 16,
-		17, 18, 19, 20, 21, 22, 23, 24, 25, 26, 27,
-		-1, -1, -1, -1, -1, -1, 28, 29, 30,
-		31, 32, 33, 34, 35, 36, 37, 38, 39, 40,
-		41, 42, 43, 44, 45, 46, 47, 48, 49, 50,
-		51, 52, 53, -1, -1, -1, -1, -1
-	};
-
 	// Expanded Blowfish key
 	private int P[];
 	private int S[];
 
 	/**
 	 * Encode a byte array using bcrypt's slightly-modified base64
-	 * encoding scheme. Note that this is *not* compatible with
-	 * the standard MIME-base64 encoding.
+	 * encoding scheme, via the Base64.BCRYPT dialect. Note that this
+	 * is *not* compatible with the standard MIME-base64 encoding.
 	 *
 	 * @param d	the byte array to encode
 	 * @param len	the number of bytes to encode
-	 * @return	base64-encoded string
+	 * @param rs	the array to write the base64 characters to
+	 * @param off	the position in rs to start writing at
+	 * @return	the position in rs following the last character
 	 * @exception IllegalArgumentException if the length is invalid
 	 */
-	private static String encode_base64(byte d[], int len)
+	private static int encode_base64(byte d[], int len, byte rs[], int off)
 		throws IllegalArgumentException {
-		int off = 0;
-		StringBuffer rs = new StringBuffer();
-		int c1, c2;
-
 		if (len <= 0 || len > d.length)
 			throw new IllegalArgumentException ("Invalid len");
-
-		while (off < len) {
-			c1 = d[off++] & 0xff;
-			rs.append(base64_code[(c1 >> 2) & 0x3f]);
-			c1 = (c1 & 0x03) << 4;
-			if (off >= len) {
-				rs.append(base64_code[c1 & 0x3f]);
-				break;
-			}
-			c2 = d[off++] & 0xff;
-			c1 |= (c2 >> 4) & 0x0f;
-			rs.append(base64_code[c1 & 0x3f]);
-			c1 = (c2 & 0x0f) << 2;
-			if (off >= len) {
-				rs.append(base64_code[c1 & 0x3f]);
-				break;
-			}
-			c2 = d[off++] & 0xff;
-			c1 |= (c2 >> 6) & 0x03;
-			rs.append(base64_code[c1 & 0x3f]);
-			rs.append(base64_code[c2 & 0x3f]);
-		}
-		return rs.toString();
-	}
-
-	/**
-	 * Look up the 3 bits base64-encoded by the specified character,
-	 * range-checking againt conversion table
-	 * @param x	the base64-encoded value
-	 * @return	the decoded value of x
-	 */
-	private static byte char64(char x) {
-		if ((int)x < 0 || (int)x > index_64.length)
-			return -1;
-		return index_64[(int)x];
+		PassforgeMetrics.base64Encoded(len);
+		return off + Base64.encode(d, 0, len, rs, off, Base64.BCRYPT);
 	}
 
 	/**
-	 * Decode a string encoded using bcrypt's base64 scheme to a
-	 * byte array. Note that this is *not* compatible with
+	 * Decode bcrypt's base64 scheme to a byte array, via the
+	 * Base64.BCRYPT dialect. Note that this is *not* compatible with
 	 * the standard MIME-base64 encoding.
-	 * @param s	the string to decode
-	 * @param maxolen	the maximum number of bytes to decode
+	 * @param s	the string holding the encoded characters
+	 * @param off	the position of the first character in s
+	 * @param olen	the exact number of bytes to decode
 	 * @return	an array containing the decoded bytes
-	 * @throws IllegalArgumentException if maxolen is invalid
+	 * @throws IllegalArgumentException if s is too short or not valid
 	 */
-	private static byte[] decode_base64(String s, int maxolen)
+	private static byte[] decode_base64(String s, int off, int olen)
 		throws IllegalArgumentException {
-		StringBuffer rs = new StringBuffer();
-		int off = 0, slen = s.length(), olen = 0;
-		byte ret[];
-		byte c1, c2, c3, c4, o;
+		byte ret[] = new byte[olen];
+		int slen = (olen * 4 + 2) / 3;
 
-		if (maxolen <= 0)
+		if (olen <= 0)
 			throw new IllegalArgumentException ("Invalid maxolen");
-
-		while (off < slen - 1 && olen < maxolen) {
-			c1 = char64(s.charAt(off++));
-			c2 = char64(s.charAt(off++));
-			if (c1 == -1 || c2 == -1)
-				break;
-			o = (byte)(c1 << 2);
-			o |= (c2 & 0x30) >> 4;
-			rs.append((char)o);
-			if (++olen >= maxolen || off >= slen)
-				break;
-			c3 = char64(s.charAt(off++));
-			if (c3 == -1)
-				break;
-			o = (byte)((c2 & 0x0f) << 4);
-			o |= (c3 & 0x3c) >> 2;
-			rs.append((char)o);
-			if (++olen >= maxolen || off >= slen)
-				break;
-			c4 = char64(s.charAt(off++));
-			o = (byte)((c3 & 0x03) << 6);
-			o |= c4;
-			rs.append((char)o);
-			++olen;
+		if (off + slen > s.length())
+			throw new IllegalArgumentException ("Invalid salt");
+		PassforgeMetrics.base64Decoded(slen);
+		try {
+			if (Base64.decode(s, off, slen, ret, 0, Base64.BCRYPT) != olen)
+				throw new IllegalArgumentException ("Invalid salt");
+		} catch (java.io.IOException e) {
+			throw new IllegalArgumentException ("Invalid salt");
 		}
-
-		ret = new byte[olen];
-		for (off = 0; off < olen; off++)
-			ret[off] = (byte)rs.charAt(off);
 		return ret;
 	}
 
+	/**
+	 * Write the "$2a$NN$" prefix of a bcrypt salt or hash
+	 * @param minor	the minor version, or 0 for none
+	 * @param log_rounds	the log2 of the number of rounds
+	 * @param rs	the array to write to
+	 * @return	the number of characters written
+	 */
+	private static int encode_prefix(char minor, int log_rounds, byte rs[]) {
+		int off = 0;
+
+		rs[off++] = '$';
+		rs[off++] = '2';
+		if (minor >= 'a')
+			rs[off++] = (byte)minor;
+		rs[off++] = '$';
+		rs[off++] = (byte)('0' + log_rounds / 10);
+		rs[off++] = (byte)('0' + log_rounds % 10);
+		rs[off++] = '$';
+		return off;
+	}
+
+	/**
+	 * Turn an array of base64 characters into a String
+	 * @param rs	the characters
+	 * @param len	the number of characters to use
+	 * @return	the String
+	 */
+	static String ascii(byte rs[], int len) {
+		try {
+			return new String(rs, 0, len, "US-ASCII");
+		} catch (UnsupportedEncodingException uee) {
+			throw new AssertionError("US-ASCII is not supported");
+		}
+	}
+
 	/**
 	 * Blowfish encipher a single 64-bit block encoded as
 	 * two 32-bit halves
@@ -509,19 +464,22 @@ public class BCrypt {
 
 	/**
 	 * Cycically extract a word of key material
-	 * @param data	the string to extract the data from
+	 * @param data	the array holding the data
+	 * @param start	the position of the data in the array
+	 * @param len	the length of the data
 	 * @param offp	a "pointer" (as a one-entry array) to the
-	 * current offset into data
+	 * current offset into the data
 	 * @return	the next word of material from data
 	 */
-	private static int streamtoword(byte data[], int offp[]) {
+	private static int streamtoword(byte data[], int start, int len,
+	    int offp[]) {
 		int i;
 		int word = 0;
 		int off = offp[0];
 
 		for (i = 0; i < 4; i++) {
-			word = (word << 8) | (data[off] & 0xff);
-			off = (off + 1) % data.length;
+			word = (word << 8) | (data[start + off] & 0xff);
+			off = (off + 1) % len;
 		}
 
 		offp[0] = off;
@@ -539,15 +497,17 @@ public class BCrypt {
 	/**
 	 * Key the Blowfish cipher
 	 * @param key	an array containing the key
+	 * @param start	the position of the key in the array
+	 * @param len	the length of the key
 	 */
-	private void key(byte key[]) {
+	private void key(byte key[], int start, int len) {
 		int i;
 		int koffp[] = { 0 };
 		int lr[] = { 0, 0 };
 		int plen = P.length, slen = S.length;
 
 		for (i = 0; i < plen; i++)
-			P[i] = P[i] ^ streamtoword(key, koffp);
+			P[i] = P[i] ^ streamtoword(key, start, len, koffp);
 
 		for (i = 0; i < plen; i += 2) {
 			encipher(lr, 0);
@@ -567,28 +527,29 @@ public class BCrypt {
 	 * Provos and Mazieres in "A Future-Adaptable Password Scheme"
 	 * http://www.openbsd.org/papers/bcrypt-paper.ps
 	 * @param data	salt information
+	 * @param doff	the position of the salt in data
 	 * @param key	password information
 	 */
-	private void ekskey(byte data[], byte key[]) {
+	private void ekskey(byte data[], int doff, byte key[]) {
 		int i;
 		int koffp[] = { 0 }, doffp[] = { 0 };
 		int lr[] = { 0, 0 };
 		int plen = P.length, slen = S.length;
 
 		for (i = 0; i < plen; i++)
-			P[i] = P[i] ^ streamtoword(key, koffp);
+			P[i] = P[i] ^ streamtoword(key, 0, key.length, koffp);
 
 		for (i = 0; i < plen; i += 2) {
-			lr[0] ^= streamtoword(data, doffp);
-			lr[1] ^= streamtoword(data, doffp);
+			lr[0] ^= streamtoword(data, doff, BCRYPT_SALT_LEN, doffp);
+			lr[1] ^= streamtoword(data, doff, BCRYPT_SALT_LEN, doffp);
 			encipher(lr, 0);
 			P[i] = lr[0];
 			P[i + 1] = lr[1];
 		}
 
 		for (i = 0; i < slen; i += 2) {
-			lr[0] ^= streamtoword(data, doffp);
-			lr[1] ^= streamtoword(data, doffp);
+			lr[0] ^= streamtoword(data, doff, BCRYPT_SALT_LEN, doffp);
+			lr[1] ^= streamtoword(data, doff, BCRYPT_SALT_LEN, doffp);
 			encipher(lr, 0);
 			S[i] = lr[0];
 			S[i + 1] = lr[1];
@@ -599,12 +560,15 @@ public class BCrypt {
 	 * Perform the central password hashing step in the
 	 * bcrypt scheme
 	 * @param password	the password to hash
-	 * @param salt	the binary salt to hash with the password
+	 * @param salt	an array holding the binary salt to hash with
+	 * the password
+	 * @param salt_off	the position of the salt in salt
 	 * @param log_rounds	the binary logarithm of the number
 	 * of rounds of hashing to apply
 	 * @return	an array containing the binary hashed password
 	 */
-	private byte[] crypt_raw(byte password[], byte salt[], int log_rounds) {
+	private byte[] crypt_raw(byte password[], byte salt[], int salt_off,
+	    int log_rounds) {
 		int rounds, i, j;
 		int cdata[] = (int[])bf_crypt_ciphertext.clone();
 		int clen = cdata.length;
@@ -613,14 +577,14 @@ public class BCrypt {
 		if (log_rounds < 4 || log_rounds > 31)
 			throw new IllegalArgumentException ("Bad number of rounds");
 		rounds = 1 << log_rounds;
-		if (salt.length != BCRYPT_SALT_LEN)
+		if (salt_off < 0 || salt.length - salt_off < BCRYPT_SALT_LEN)
 			throw new IllegalArgumentException ("Bad salt length");
 
 		init_key();
-		ekskey(salt, password);
+		ekskey(salt, salt_off, password);
 		for (i = 0; i < rounds; i++) {
-			key(password);
-			key(salt);
+			key(password, 0, password.length);
+			key(salt, salt_off, BCRYPT_SALT_LEN);
 		}
 
 		for (i = 0; i < 64; i++) {
@@ -646,12 +610,42 @@ public class BCrypt {
 	 * @return	the hashed password
 	 */
 	public static String hashpw(String password, String salt) {
+		Timing timing = Timing.start(PassforgeEvents.HASH);
+		boolean succeeded = false;
+		try {
+			String hashed = hashpw_untimed(password, salt);
+			succeeded = true;
+			return hashed;
+		} finally {
+			timing.hash(log_rounds(salt), succeeded);
+		}
+	}
+
+	/**
+	 * Find the log2 of the number of rounds in a salt or hash, for
+	 * the metrics and BCryptHasher.getParameters
+	 * @param salt	the salt or hash
+	 * @return	the log_rounds, or -1 if the salt is malformed
+	 */
+	static int log_rounds(String salt) {
+		int off = salt.length() > 2 && salt.charAt(2) == '$' ? 3 : 4;
+		if (salt.length() < off + 2)
+			return -1;
+		char c1 = salt.charAt(off), c2 = salt.charAt(off + 1);
+		if (c1 < '0' || c1 > '9' || c2 < '0' || c2 > '9')
+			return -1;
+		return (c1 - '0') * 10 + (c2 - '0');
+	}
+
+	/**
+	 * hashpw without the latency recording, so that checkpw is only
+	 * counted once
+	 */
+	private static String hashpw_untimed(String password, String salt) {
 		BCrypt B;
-		String real_salt;
-		byte passwordb[], saltb[], hashed[];
+		byte passwordb[], saltb[], hashed[], rs[];
 		char minor = (char)0;
 		int rounds, off = 0;
-		StringBuffer rs = new StringBuffer();
 
 		if (salt.charAt(0) != '$' || salt.charAt(1) != '2')
 			throw new IllegalArgumentException ("Invalid salt version");
@@ -669,30 +663,67 @@ public class BCrypt {
 			throw new IllegalArgumentException ("Missing salt rounds");
 		rounds = Integer.parseInt(salt.substring(off, off + 2));
 
-		real_salt = salt.substring(off + 3, off + 25);
+		passwordb = password_bytes(password, minor);
+
+		saltb = decode_base64(salt, off + 3, BCRYPT_SALT_LEN);
+
+		B = new BCrypt();
+		hashed = B.crypt_raw(passwordb, saltb, 0, rounds);
+
+		rs = new byte[7 + 22 + 31];
+		off = encode_prefix(minor, rounds, rs);
+		off = encode_base64(saltb, saltb.length, rs, off);
+		off = encode_base64(hashed, bf_crypt_ciphertext.length * 4 - 1,
+		    rs, off);
+		return ascii(rs, off);
+	}
+
+	/**
+	 * Turn a password into the key bytes crypt_raw expects
+	 * @param password	the password
+	 * @param minor	the minor version, or 0 for none; 'a' adds
+	 * the terminating NUL
+	 * @return	the UTF-8 bytes
+	 */
+	private static byte[] password_bytes(String password, char minor) {
 		try {
-			passwordb = (password + (minor >= 'a' ? "\000" : "")).getBytes("UTF-8");
+			return (password + (minor >= 'a' ? "\000" : "")).getBytes("UTF-8");
 		} catch (UnsupportedEncodingException uee) {
 			throw new AssertionError("UTF-8 is not supported");
 		}
+	}
 
-		saltb = decode_base64(real_salt, BCRYPT_SALT_LEN);
-
-		B = new BCrypt();
-		hashed = B.crypt_raw(passwordb, saltb, rounds);
-
-		rs.append("$2");
-		if (minor >= 'a')
-			rs.append(minor);
-		rs.append("$");
-		if (rounds < 10)
-			rs.append("0");
-		rs.append(Integer.toString(rounds));
-		rs.append("$");
-		rs.append(encode_base64(saltb, saltb.length));
-		rs.append(encode_base64(hashed,
-		    bf_crypt_ciphertext.length * 4 - 1));
-		return rs.toString();
+	/**
+	 * Check a plaintext password against a hash already split into
+	 * its parts, as CompactHash holds them, so that no hash String
+	 * has to be built or compared
+	 * @param plaintext	the plaintext password to verify
+	 * @param minor	the minor version, or 0 for none
+	 * @param log_rounds	the log2 of the number of rounds
+	 * @param salt	an array holding the 16 byte salt
+	 * @param salt_off	the position of the salt in salt
+	 * @param hashed	an array holding the 23 byte digest
+	 * @param off	the position of the digest in hashed
+	 * @return	true if the passwords match, false otherwise
+	 */
+	static boolean checkpw_raw(String plaintext, char minor, int log_rounds,
+	    byte salt[], int salt_off, byte hashed[], int off) {
+		Timing timing = Timing.start(PassforgeEvents.VERIFY);
+		boolean matches = false, succeeded = false;
+		try {
+			byte raw[] = new BCrypt().crypt_raw(
+			    password_bytes(plaintext, minor), salt, salt_off,
+			    log_rounds);
+			int diff = 0;
+			// Only 23 of the 24 bytes make it into a hash String
+			for (int i = 0; i < BCRYPT_HASH_LEN; i++)
+				diff |= raw[i] ^ hashed[off + i];
+			matches = diff == 0;
+			succeeded = true;
+			return matches;
+		} finally {
+			timing.verify(log_rounds, succeeded, matches);
+		}
 	}
 
 	/**
@@ -707,14 +738,10 @@ public class BCrypt {
 		if (salt.length != BCRYPT_SALT_LEN)
 			throw new IllegalArgumentException("Invalid salt length");
 
-		StringBuffer rs = new StringBuffer();
-		rs.append("$2a$");
-		if (log_rounds < 10)
-			rs.append("0");
-		rs.append(Integer.toString(log_rounds));
-		rs.append("$");
-		rs.append(encode_base64(salt, salt.length));
-		return rs.toString();
+		byte rs[] = new byte[7 + 22];
+		int off = encode_prefix('a', log_rounds, rs);
+		off = encode_base64(salt, salt.length, rs, off);
+		return ascii(rs, off);
 	}
 
 	/**
@@ -773,6 +800,14 @@ public class BCrypt {
 	 * @return	true if the passwords match, false otherwise
 	 */
 	public static boolean checkpw(String plaintext, String hashed) {
-		return (hashed.compareTo(hashpw(plaintext, hashed)) == 0);
+		Timing timing = Timing.start(PassforgeEvents.VERIFY);
+		boolean matches = false, succeeded = false;
+		try {
+			matches = (hashed.compareTo(hashpw_untimed(plaintext, hashed)) == 0);
+			succeeded = true;
+			return matches;
+		} finally {
+			timing.verify(log_rounds(hashed), succeeded, matches);
+		}
 	}
 }
@@ -0,0 +1,48 @@
+package com.abrody.passforge;
+
+import java.security.InvalidAlgorithmParameterException;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Set;
+
+/**
+ * BCrypt as a PasswordHasher. Hashes are the usual $2a$NN$... strings,
+ * interchangeable with BCrypt.hashpw and BCrypt.checkpw.
+ */
+public class BCryptHasher implements PasswordHasher {
+    private static final Set<KdfCapability> CAPABILITIES =
+            Collections.unmodifiableSet(EnumSet.of(KdfCapability.PURE_JAVA));
+
+    public String getAlgorithm() {
+        return BCryptParameters.ALGORITHM;
+    }
+
+    public Set<KdfCapability> getCapabilities() {
+        return CAPABILITIES;
+    }
+
+    public String hash(String password, KdfParameters parameters)
+            throws InvalidAlgorithmParameterException {
+        if (!(parameters instanceof BCryptParameters)) {
+            throw new InvalidAlgorithmParameterException("Not bcrypt parameters: " + parameters);
+        }
+        return BCrypt.hashpw(password,
+                BCrypt.gensalt(((BCryptParameters) parameters).getLogRounds()));
+    }
+
+    public boolean verify(String password, String hash) {
+        return BCrypt.checkpw(password, hash);
+    }
+
+    public boolean recognizes(String hash) {
+        return hash.startsWith("$2$") || hash.startsWith("$2a$");
+    }
+
+    public KdfParameters getParameters(String hash) {
+        int logRounds = recognizes(hash) ? BCrypt.log_rounds(hash) : -1;
+        if (logRounds < 0) {
+            throw new IllegalArgumentException("Not a bcrypt hash");
+        }
+        return new BCryptParameters(logRounds);
+    }
+}
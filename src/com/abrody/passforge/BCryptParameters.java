@@ -0,0 +1,44 @@
+package com.abrody.passforge;
+
+/**
+ * bcrypt settings: the log2 of the number of rounds, from 4 to 31.
+ */
+public final class BCryptParameters implements KdfParameters {
+    public static final String ALGORITHM = "bcrypt";
+
+    private final int logRounds;
+
+    public BCryptParameters(int logRounds) {
+        if (logRounds < 4 || logRounds > 31) {
+            throw new IllegalArgumentException("Bad number of rounds");
+        }
+        this.logRounds = logRounds;
+    }
+
+    public String getAlgorithm() {
+        return ALGORITHM;
+    }
+
+    public int getCost() {
+        return logRounds;
+    }
+
+    public int getLogRounds() {
+        return logRounds;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof BCryptParameters && ((BCryptParameters) o).logRounds == logRounds;
+    }
+
+    @Override
+    public int hashCode() {
+        return logRounds;
+    }
+
+    @Override
+    public String toString() {
+        return "bcrypt log_rounds=" + logRounds;
+    }
+}
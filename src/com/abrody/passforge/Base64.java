@@ -190,6 +190,23 @@ public class Base64
       * <a href="http://www.faqs.org/qa/rfcc-1940.html">http://www.faqs.org/qa/rfcc-1940.html</a>.
       */
      public final static int ORDERED = 32;
+
+
+     /**
+      * Encode using the "./A-Za-z0-9" radix-64 alphabet of OpenBSD bcrypt and
+      * traditional crypt(3). Like those, this dialect is never padded: encoding
+      * omits the equals signs, and decoding accepts a final group of two or
+      * three characters.
+      */
+     public final static int BCRYPT = 64;
+
+
+     /**
+      * Encode arrays one character at a time instead of through the
+      * two-character lookup tables, which take 8 KiB per alphabet. The
+      * output is the same; only speed and memory differ.
+      */
+     public final static int NO_LOOKUP_TABLES = 128;
     
     
 /* ********  P R I V A T E   F I E L D S  ******** */  
@@ -211,6 +228,7 @@ public class Base64
     private final static String PREFERRED_ENCODING = "US-ASCII";
     
 	
+    private final static byte BAD_ENCODING    = -9; // Indicates error in encoding
     private final static byte WHITE_SPACE_ENC = -5; // Indicates white space in encoding
     private final static byte EQUALS_SIGN_ENC = -1; // Indicates equals sign in encoding
 	
@@ -399,6 +417,66 @@ public class Base64
     };
 
 	
+/* ********  B C R Y P T   B A S E 6 4   A L P H A B E T  ******** */
+
+    /**
+     * Used by bcrypt for its salt and hash. Same bit order as the standard
+     * alphabet, but the characters are in "./", upper, lower, digits order.
+     */
+    private final static byte[] _BCRYPT_ALPHABET = {
+      (byte)'.', (byte)'/',
+      (byte)'A', (byte)'B', (byte)'C', (byte)'D', (byte)'E', (byte)'F', (byte)'G',
+      (byte)'H', (byte)'I', (byte)'J', (byte)'K', (byte)'L', (byte)'M', (byte)'N',
+      (byte)'O', (byte)'P', (byte)'Q', (byte)'R', (byte)'S', (byte)'T', (byte)'U',
+      (byte)'V', (byte)'W', (byte)'X', (byte)'Y', (byte)'Z',
+      (byte)'a', (byte)'b', (byte)'c', (byte)'d', (byte)'e', (byte)'f', (byte)'g',
+      (byte)'h', (byte)'i', (byte)'j', (byte)'k', (byte)'l', (byte)'m', (byte)'n',
+      (byte)'o', (byte)'p', (byte)'q', (byte)'r', (byte)'s', (byte)'t', (byte)'u',
+      (byte)'v', (byte)'w', (byte)'x', (byte)'y', (byte)'z',
+      (byte)'0', (byte)'1', (byte)'2', (byte)'3', (byte)'4', (byte)'5',
+      (byte)'6', (byte)'7', (byte)'8', (byte)'9'
+    };
+
+    /**
+     * Used in decoding the bcrypt dialect of Base64.
+     */
+    private final static byte[] _BCRYPT_DECODABET = {
+      -9,-9,-9,-9,-9,-9,-9,-9,-9,                 // Decimal  0 -  8
+      -5,-5,                                      // Whitespace: Tab and Linefeed
+      -9,-9,                                      // Decimal 11 - 12
+      -5,                                         // Whitespace: Carriage Return
+      -9,-9,-9,-9,-9,-9,-9,-9,-9,-9,-9,-9,-9,     // Decimal 14 - 26
+      -9,-9,-9,-9,-9,                             // Decimal 27 - 31
+      -5,                                         // Whitespace: Space
+      -9,-9,-9,-9,-9,-9,-9,-9,-9,-9,              // Decimal 33 - 42
+      -9,                                         // Plus sign at decimal 43
+      -9,                                         // Decimal 44
+      -9,                                         // Minus sign at decimal 45
+      0,                                          // Period at decimal 46
+      1,                                          // Slash at decimal 47
+      54,55,56,57,58,59,60,61,62,63,              // Numbers zero through nine
+      -9,-9,-9,                                   // Decimal 58 - 60
+      -1,                                         // Equals sign at decimal 61
+      -9,-9,-9,                                   // Decimal 62 - 64
+      2,3,4,5,6,7,8,9,10,11,12,13,14,             // Letters 'A' through 'M'
+      15,16,17,18,19,20,21,22,23,24,25,26,27,     // Letters 'N' through 'Z'
+      -9,-9,-9,-9,-9,-9,                          // Decimal 91 - 96
+      28,29,30,31,32,33,34,35,36,37,38,39,40,     // Letters 'a' through 'm'
+      41,42,43,44,45,46,47,48,49,50,51,52,53,     // Letters 'n' through 'z'
+      -9,-9,-9,-9,-9                              // Decimal 123 - 127
+      ,-9,-9,-9,-9,-9,-9,-9,-9,-9,-9,-9,-9,       // Decimal 128 - 139
+      -9,-9,-9,-9,-9,-9,-9,-9,-9,-9,-9,-9,-9,     // Decimal 140 - 152
+      -9,-9,-9,-9,-9,-9,-9,-9,-9,-9,-9,-9,-9,     // Decimal 153 - 165
+      -9,-9,-9,-9,-9,-9,-9,-9,-9,-9,-9,-9,-9,     // Decimal 166 - 178
+      -9,-9,-9,-9,-9,-9,-9,-9,-9,-9,-9,-9,-9,     // Decimal 179 - 191
+      -9,-9,-9,-9,-9,-9,-9,-9,-9,-9,-9,-9,-9,     // Decimal 192 - 204
+      -9,-9,-9,-9,-9,-9,-9,-9,-9,-9,-9,-9,-9,     // Decimal 205 - 217
+      -9,-9,-9,-9,-9,-9,-9,-9,-9,-9,-9,-9,-9,     // Decimal 218 - 230
+      -9,-9,-9,-9,-9,-9,-9,-9,-9,-9,-9,-9,-9,     // Decimal 231 - 243
+      -9,-9,-9,-9,-9,-9,-9,-9,-9,-9,-9,-9         // Decimal 244 - 255 
+    };
+
+
 /* ********  D E T E R M I N E   W H I C H   A L H A B E T  ******** */
 
 
@@ -414,6 +492,8 @@ public class Base64
             return _URL_SAFE_ALPHABET;
         } else if ((options & ORDERED) == ORDERED) {
             return _ORDERED_ALPHABET;
+        } else if ((options & BCRYPT) == BCRYPT) {
+            return _BCRYPT_ALPHABET;
         } else {
             return _STANDARD_ALPHABET;
         }
@@ -432,12 +512,55 @@ public class Base64
             return _URL_SAFE_DECODABET;
         } else if ((options & ORDERED) == ORDERED) {
             return _ORDERED_DECODABET;
+        } else if ((options & BCRYPT) == BCRYPT) {
+            return _BCRYPT_DECODABET;
         } else {
             return _STANDARD_DECODABET;
         }
     }	// end getAlphabet
 
 
+    /**
+     * Two-character lookup tables for the array encoder, one per alphabet.
+     * Entry <var>i</var> of a table occupies bytes <var>2i</var> and
+     * <var>2i+1</var> and holds the two Base64 characters for the 12-bit
+     * value <var>i</var>, so a three-byte group takes two lookups instead
+     * of four. Built the first time the array encoder needs them.
+     */
+    private final static class PairTables {
+        private final static byte[] STANDARD = build( _STANDARD_ALPHABET );
+        private final static byte[] URL_SAFE = build( _URL_SAFE_ALPHABET );
+        private final static byte[] ORDERED  = build( _ORDERED_ALPHABET );
+        private final static byte[] BCRYPT   = build( _BCRYPT_ALPHABET );
+        
+        private static byte[] build( byte[] alphabet ) {
+            byte[] pairs = new byte[ 2 * 4096 ];
+            for( int i = 0; i < 4096; i++ ) {
+                pairs[ 2*i     ] = alphabet[ i >>> 6   ];
+                pairs[ 2*i + 1 ] = alphabet[ i &  0x3f ];
+            }   // end for: each 12-bit value
+            return pairs;
+        }   // end build
+    }   // end class PairTables
+
+
+    /**
+     * Returns the two-character lookup table matching an alphabet
+     * returned by {@link #getAlphabet(int)}.
+     */
+    private final static byte[] getPairs( byte[] alphabet ) {
+        if( alphabet == _URL_SAFE_ALPHABET ) {
+            return PairTables.URL_SAFE;
+        } else if( alphabet == _ORDERED_ALPHABET ) {
+            return PairTables.ORDERED;
+        } else if( alphabet == _BCRYPT_ALPHABET ) {
+            return PairTables.BCRYPT;
+        } else {
+            return PairTables.STANDARD;
+        }
+    }   // end getPairs
+
+
     
     /** Defeats instantiation. */
     private Base64(){}
@@ -495,9 +618,18 @@ public class Base64
     private static byte[] encode3to4( 
     byte[] source, int srcOffset, int numSigBytes,
     byte[] destination, int destOffset, int options ) {
+        return encode3to4( source, srcOffset, numSigBytes, destination, destOffset, getAlphabet( options ) );
+    }   // end encode3to4
+    
+    
+    /**
+     * Same as {@link #encode3to4(byte[], int, int, byte[], int, int)}, with
+     * the alphabet already resolved so that loops need only look it up once.
+     */
+    private static byte[] encode3to4( 
+    byte[] source, int srcOffset, int numSigBytes,
+    byte[] destination, int destOffset, byte[] ALPHABET ) {
         
-	byte[] ALPHABET = getAlphabet( options ); 
-	
         //           1         2         3  
         // 01234567890123456789012345678901 Bit position
         // --------000000001111111122222222 Array position from threeBytes
@@ -550,20 +682,18 @@ public class Base64
      * pass along any options (such as {@link #DO_BREAK_LINES}
      * or {@link #GZIP}.
      *
+     * For input that arrives in pieces, use a {@link Base64.Encoder}.
+     *
      * @param raw input buffer
      * @param encoded output buffer
+     * @throws java.nio.BufferOverflowException if <var>encoded</var> fills up
+     * @see Base64.Encoder
      * @since 2.3
      */
     public static void encode( java.nio.ByteBuffer raw, java.nio.ByteBuffer encoded ){
-        byte[] raw3 = new byte[3];
-        byte[] enc4 = new byte[4];
-
-        while( raw.hasRemaining() ){
-            int rem = Math.min(3,raw.remaining());
-            raw.get(raw3,0,rem);
-            Base64.encode3to4(enc4, raw3, rem, Base64.NO_OPTIONS );
-            encoded.put(enc4);
-        }   // end input remaining
+        if( new Base64.Encoder().encode( raw, encoded, true ).isOverflow() ){
+            throw new java.nio.BufferOverflowException();
+        }   // end if: out of room
     }
 
 
@@ -650,6 +780,45 @@ public class Base64
      * @since 2.0
      */
     public static String encodeObject( java.io.Serializable serializableObject, int options )
+    throws java.io.IOException {
+        
+        java.io.ByteArrayOutputStream baos = new java.io.ByteArrayOutputStream();
+        encodeObject( serializableObject, baos, options );
+        
+        // Return value according to relevant encoding.
+        try {
+            return baos.toString( PREFERRED_ENCODING );
+        }   // end try
+        catch (java.io.UnsupportedEncodingException uue){
+            // Fall back to some Java default
+            return baos.toString();
+        }   // end catch
+        
+    }   // end encode
+    
+    
+    
+    /**
+     * Serializes an object and writes the Base64-encoded version of
+     * that serialized object to <var>out</var> as it goes, so the
+     * serialized form is never held in memory in full.
+     * The stream is flushed but not closed.
+     * <p>
+     * Example options:<pre>
+     *   GZIP: gzip-compresses object before encoding it.
+     *   DO_BREAK_LINES: break lines at 76 characters
+     * </pre>
+     *
+     * @param serializableObject The object to encode
+     * @param out The stream receiving Base64 characters
+     * @param options Specified options
+     * @see Base64#GZIP
+     * @see Base64#DO_BREAK_LINES
+     * @throws java.io.IOException if there is an error
+     * @throws NullPointerException if serializedObject is null
+     */
+    public static void encodeObject( 
+    java.io.Serializable serializableObject, java.io.OutputStream out, int options )
     throws java.io.IOException {
 
         if( serializableObject == null ){
@@ -657,48 +826,59 @@ public class Base64
         }   // end if: null
         
         // Streams
-        java.io.ByteArrayOutputStream  baos  = null; 
-        java.io.OutputStream           b64os = null;
-        java.util.zip.GZIPOutputStream gzos  = null;
-        java.io.ObjectOutputStream     oos   = null;
-        
+        Base64.OutputStream        b64os = null;
+        Base64.GzipOutputStream    gzos  = null;
+        java.io.ObjectOutputStream oos   = null;
         
         try {
-            // ObjectOutputStream -> (GZIP) -> Base64 -> ByteArrayOutputStream
-            baos  = new java.io.ByteArrayOutputStream();
-            b64os = new Base64.OutputStream( baos, ENCODE | options );
+            // ObjectOutputStream -> (GZIP) -> Base64 -> out
+            b64os = new Base64.OutputStream( out, ENCODE | options );
             if( (options & GZIP) != 0 ){
                 // Gzip
-                gzos = new java.util.zip.GZIPOutputStream(b64os);
+                gzos = new Base64.GzipOutputStream( b64os );
                 oos = new java.io.ObjectOutputStream( gzos );
             } else {
                 // Not gzipped
                 oos = new java.io.ObjectOutputStream( b64os );
             }
             oos.writeObject( serializableObject );
+            
+            // Flush everything through without closing the caller's stream
+            oos.flush();
+            if( gzos != null ){
+                gzos.finish();
+            }   // end if: gzipped
+            b64os.flushBase64();
+            out.flush();
         }   // end try
-        catch( java.io.IOException e ) {
-            // Catch it and then throw it immediately so that
-            // the finally{} block is called for cleanup.
-            throw e;
-        }   // end catch
         finally {
-            try{ oos.close();   } catch( Exception e ){}
-            try{ gzos.close();  } catch( Exception e ){}
-            try{ b64os.close(); } catch( Exception e ){}
-            try{ baos.close();  } catch( Exception e ){}
+            if( gzos != null ){
+                gzos.release();     // Return Deflater to pool if writing failed
+            }   // end if: gzipped
         }   // end finally
         
-        // Return value according to relevant encoding.
-        try {
-            return new String( baos.toByteArray(), PREFERRED_ENCODING );
-        }   // end try
-        catch (java.io.UnsupportedEncodingException uue){
-            // Fall back to some Java default
-            return new String( baos.toByteArray() );
-        }   // end catch
-        
-    }   // end encode
+    }   // end encodeObject
+    
+    
+    
+    /**
+     * Serializes an object and writes the Base64-encoded version of
+     * that serialized object to <var>out</var> as it goes.
+     * The writer is flushed but not closed.
+     *
+     * @param serializableObject The object to encode
+     * @param out The writer receiving Base64 characters
+     * @param options Specified options
+     * @see Base64#GZIP
+     * @see Base64#DO_BREAK_LINES
+     * @throws java.io.IOException if there is an error
+     * @throws NullPointerException if serializedObject is null
+     */
+    public static void encodeObject( 
+    java.io.Serializable serializableObject, java.io.Writer out, int options )
+    throws java.io.IOException {
+        encodeObject( serializableObject, new WriterOutputStream( out ), options );
+    }   // end encodeObject
     
     
 
@@ -904,94 +1084,194 @@ public class Base64
 
 
 
+        Object event = PassforgeEvents.begin( PassforgeEvents.BASE64 );
+        byte[] outBuff;
+
         // Compress?
         if( (options & GZIP) != 0 ) {
-            java.io.ByteArrayOutputStream  baos  = null;
-            java.util.zip.GZIPOutputStream gzos  = null;
-            Base64.OutputStream            b64os = null;
-
-            try {
-                // GZip -> Base64 -> ByteArray
-                baos = new java.io.ByteArrayOutputStream();
-                b64os = new Base64.OutputStream( baos, ENCODE | options );
-                gzos  = new java.util.zip.GZIPOutputStream( b64os );
-
-                gzos.write( source, off, len );
-                gzos.close();
-            }   // end try
-            catch( java.io.IOException e ) {
-                // Catch it and then throw it immediately so that
-                // the finally{} block is called for cleanup.
-                throw e;
-            }   // end catch
-            finally {
-                try{ gzos.close();  } catch( Exception e ){}
-                try{ b64os.close(); } catch( Exception e ){}
-                try{ baos.close();  } catch( Exception e ){}
-            }   // end finally
-
-            return baos.toByteArray();
+            // GZip -> Base64, straight into the output array
+            outBuff = gzipEncode( source, off, len, options );
         }   // end if: compress
 
         // Else, don't compress. Better not to use streams at all then.
         else {
-            boolean breakLines = (options & DO_BREAK_LINES) != 0;
-
-            //int    len43   = len * 4 / 3;
-            //byte[] outBuff = new byte[   ( len43 )                      // Main 4:3
-            //                           + ( (len % 3) > 0 ? 4 : 0 )      // Account for padding
-            //                           + (breakLines ? ( len43 / MAX_LINE_LENGTH ) : 0) ]; // New lines
-            // Try to determine more precisely how big the array needs to be.
-            // If we get it right, we don't have to do an array copy, and
-            // we save a bunch of memory.
-            int encLen = ( len / 3 ) * 4 + ( len % 3 > 0 ? 4 : 0 ); // Bytes needed for actual encoding
-            if( breakLines ){
-                encLen += encLen / MAX_LINE_LENGTH; // Plus extra newline characters
-            }
-            byte[] outBuff = new byte[ encLen ];
-
-
-            int d = 0;
-            int e = 0;
-            int len2 = len - 2;
-            int lineLength = 0;
-            for( ; d < len2; d+=3, e+=4 ) {
-                encode3to4( source, d+off, 3, outBuff, e, options );
-
-                lineLength += 4;
-                if( breakLines && lineLength >= MAX_LINE_LENGTH )
-                {
-                    outBuff[e+4] = NEW_LINE;
-                    e++;
-                    lineLength = 0;
-                }   // end if: end of line
-            }   // en dfor: each piece of array
-
-            if( d < len ) {
-                encode3to4( source, d+off, len - d, outBuff, e, options );
-                e += 4;
-            }   // end if: some padding needed
-
-
-            // Only resize array if we didn't guess it right.
-            if( e <= outBuff.length - 1 ){
-                // If breaking lines and the last byte falls right at
-                // the line length (76 bytes per line), there will be
-                // one extra byte, and the array will need to be resized.
-                // Not too bad of an estimate on array size, I'd say.
-                byte[] finalOut = new byte[e];
-                System.arraycopy(outBuff,0, finalOut,0,e);
-                //System.err.println("Having to resize array from " + outBuff.length + " to " + e );
-                return finalOut;
-            } else {
-                //System.err.println("No need to resize array.");
-                return outBuff;
-            }
-        
+            // Work out exactly how big the array needs to be,
+            // so we never have to do an array copy.
+            outBuff = new byte[ encodedLength( len, options ) ];
+            encode( source, off, len, outBuff, 0, options );
         }   // end else: don't compress
 
+        PassforgeEvents.commitBase64( event, true, options, len, outBuff.length );
+        return outBuff;
     }   // end encodeBytesToBytes
     
+    
+    
+    /**
+     * Returns the exact number of bytes that {@link #encode(byte[], int, int, byte[], int, int)}
+     * writes for <var>len</var> bytes of input, including padding and any
+     * newlines asked for with {@link #DO_BREAK_LINES}.
+     *
+     * @param len Length of data to convert
+     * @param options Specified options
+     * @return the length of the Base64 form
+     */
+    public static int encodedLength( int len, int options ) {
+        int encLen = ( len / 3 ) * 4;                   // Whole groups
+        int rem    = len % 3;
+        if( rem > 0 ){
+            encLen += isUnpadded( options ) ? rem + 1 : 4;
+        }   // end if: final group
+        if( (options & DO_BREAK_LINES) != 0 ){
+            encLen += ( len / 3 ) / ( MAX_LINE_LENGTH / 4 );    // A newline follows each full line
+        }   // end if: newlines
+        return encLen;
+    }   // end encodedLength
+    
+    
+    
+    /**
+     * Encodes a byte array into Base64 notation, writing the result into
+     * <var>destination</var>, which must have room for
+     * {@link #encodedLength(int, int)} bytes. Does not GZip-compress data,
+     * and allocates nothing once the lookup tables are built.
+     *
+     * @param source The data to convert
+     * @param off Offset in array where conversion should begin
+     * @param len Length of data to convert
+     * @param destination the array to hold the conversion
+     * @param destOff the index where output will be put
+     * @param options Specified options
+     * @return the number of bytes written
+     * @see Base64#DO_BREAK_LINES
+     * @see Base64#BCRYPT
+     * @see Base64#NO_LOOKUP_TABLES
+     * @throws NullPointerException if source or destination arrays are null
+     * @throws IllegalArgumentException if offsets or lengths are invalid
+     *         or there is not enough room in the destination
+     */
+    public static int encode( 
+    byte[] source, int off, int len, byte[] destination, int destOff, int options ) {
+        
+        if( source == null || destination == null ){
+            throw new NullPointerException( "Cannot encode with a null array." );
+        }   // end if: null
+        if( off < 0 || len < 0 || off + len > source.length ){
+            throw new IllegalArgumentException( String.format(
+            "Cannot have offset of %d and length of %d with array of length %d", off, len, source.length ) );
+        }   // end if: bad source range
+        int encLen = encodedLength( len, options );
+        if( destOff < 0 || destOff + encLen > destination.length ){
+            throw new IllegalArgumentException( String.format(
+            "Destination array with length %d cannot have offset of %d and still store %d bytes.", destination.length, destOff, encLen ) );
+        }   // end if: no room
+        
+        byte[] alphabet = getAlphabet( options );
+        byte[] pairs    = (options & NO_LOOKUP_TABLES) != 0 ? null : getPairs( alphabet );
+        
+        int d   = off;
+        int e   = destOff;
+        int end = off + len - len % 3;   // End of the last whole group
+        
+        if( (options & DO_BREAK_LINES) != 0 ) {
+            int lineBytes = MAX_LINE_LENGTH / 4 * 3;
+            for( ; end - d >= lineBytes; d += lineBytes ) {
+                e = encodeGroups( source, d, d + lineBytes, destination, e, alphabet, pairs );
+                destination[e++] = NEW_LINE;
+            }   // end for: each full line
+        }   // end if: break lines
+        e = encodeGroups( source, d, end, destination, e, alphabet, pairs );
+        d = end;
+
+        if( d < off + len ) {
+            int rem = off + len - d;
+            int inBuff = ( (source[ d ] & 0xFF) << 16 ) 
+                       | ( rem > 1 ? (source[ d + 1 ] & 0xFF) << 8 : 0 );
+            destination[ e++ ] = alphabet[ (inBuff >>> 18)        ];
+            destination[ e++ ] = alphabet[ (inBuff >>> 12) & 0x3f ];
+            if( rem > 1 ) {
+                destination[ e++ ] = alphabet[ (inBuff >>> 6) & 0x3f ];
+            }   // end if: two bytes left
+            if( !isUnpadded( options ) ) {
+                for( int p = rem; p < 3; p++ ) {
+                    destination[ e++ ] = EQUALS_SIGN;
+                }   // end for: padding
+            }   // end if: padding
+        }   // end if: final group
+        
+        return e - destOff;
+    }   // end encode
+    
+    
+    /**
+     * Encodes the whole three-byte groups in <var>source</var> from
+     * <var>from</var> to <var>to</var> using a two-character table from
+     * {@link #getPairs(byte[])}, two groups at a time, or using the
+     * alphabet alone if <var>pairs</var> is null.
+     *
+     * @return the index in <var>destination</var> after the last character
+     */
+    private static int encodeGroups( 
+    byte[] source, int from, int to, byte[] destination, int e, byte[] alphabet, byte[] pairs ) {
+        
+        int s = from;
+        if( pairs == null ) {
+            for( ; s < to; s += 3, e += 4 ) {
+                int inBuff = ( ( source[ s     ] & 0xFF ) << 16 )
+                           | ( ( source[ s + 1 ] & 0xFF ) <<  8 )
+                           | (   source[ s + 2 ] & 0xFF );
+                destination[ e     ] = alphabet[ ( inBuff >>> 18 )        ];
+                destination[ e + 1 ] = alphabet[ ( inBuff >>> 12 ) & 0x3f ];
+                destination[ e + 2 ] = alphabet[ ( inBuff >>>  6 ) & 0x3f ];
+                destination[ e + 3 ] = alphabet[ ( inBuff        ) & 0x3f ];
+            }   // end for: each group
+            return e;
+        }   // end if: no tables
+        
+        for( ; s + 6 <= to; s += 6, e += 8 ) {
+            int hi = ( ( source[ s     ] & 0xFF ) << 16 )
+                   | ( ( source[ s + 1 ] & 0xFF ) <<  8 )
+                   | (   source[ s + 2 ] & 0xFF );
+            int lo = ( ( source[ s + 3 ] & 0xFF ) << 16 )
+                   | ( ( source[ s + 4 ] & 0xFF ) <<  8 )
+                   | (   source[ s + 5 ] & 0xFF );
+            int p0 = ( hi >>> 11 ) & 0x1ffe;   // Each pair index, times two
+            int p1 = ( hi <<   1 ) & 0x1ffe;
+            int p2 = ( lo >>> 11 ) & 0x1ffe;
+            int p3 = ( lo <<   1 ) & 0x1ffe;
+            destination[ e     ] = pairs[ p0     ];
+            destination[ e + 1 ] = pairs[ p0 + 1 ];
+            destination[ e + 2 ] = pairs[ p1     ];
+            destination[ e + 3 ] = pairs[ p1 + 1 ];
+            destination[ e + 4 ] = pairs[ p2     ];
+            destination[ e + 5 ] = pairs[ p2 + 1 ];
+            destination[ e + 6 ] = pairs[ p3     ];
+            destination[ e + 7 ] = pairs[ p3 + 1 ];
+        }   // end for: two groups at a time
+        
+        for( ; s < to; s += 3, e += 4 ) {
+            int inBuff = ( ( source[ s     ] & 0xFF ) << 16 )
+                       | ( ( source[ s + 1 ] & 0xFF ) <<  8 )
+                       | (   source[ s + 2 ] & 0xFF );
+            int p0 = ( inBuff >>> 11 ) & 0x1ffe;
+            int p1 = ( inBuff <<   1 ) & 0x1ffe;
+            destination[ e     ] = pairs[ p0     ];
+            destination[ e + 1 ] = pairs[ p0 + 1 ];
+            destination[ e + 2 ] = pairs[ p1     ];
+            destination[ e + 3 ] = pairs[ p1 + 1 ];
+        }   // end for: remaining group
+        
+        return e;
+    }   // end encodeGroups
+    
+    
+    /**
+     * Whether the alphabet chosen by these options is never padded.
+     */
+    private static boolean isUnpadded( int options ) {
+        return getAlphabet( options ) == _BCRYPT_ALPHABET;
+    }   // end isUnpadded
+    
 
     
     
@@ -1157,40 +1437,214 @@ public class Base64
             "Source array with length %d cannot have offset of %d and process %d bytes.", source.length, off, len ) );
         }   // end if
         
+        Object event = PassforgeEvents.begin( PassforgeEvents.BASE64 );
+        byte[] outBuff = new byte[ decodedLength( source, off, len, options ) ];
+        int    outBuffPosn = decode( source, off, len, outBuff, 0, options );
+                                   
+        if( outBuffPosn != outBuff.length ){
+            byte[] out = new byte[ outBuffPosn ];
+            System.arraycopy( outBuff, 0, out, 0, outBuffPosn ); 
+            outBuff = out;
+        }   // end if: white space or oddities
+        
+        PassforgeEvents.commitBase64( event, false, options, len, outBuffPosn );
+        return outBuff;
+    }   // end decode
+    
+    
+    
+    /**
+     * Works out how many bytes {@link #decode(byte[], int, int, byte[], int, int)}
+     * will produce. When the length is a whole number of quartets and the
+     * input ends in an alphabet character or padding, there is assumed to be
+     * no white space and the size comes from the length and padding alone;
+     * otherwise the significant characters are counted. Either way the
+     * answer is exact for well-formed input and never too small.
+     */
+    private static int decodedLength( byte[] source, int off, int len, int options ) {
+        return decodedLength( source, null, off, len, options );
+    }   // end decodedLength
+    
+    
+    /**
+     * Works out how many bytes {@link #decode(CharSequence, int, int, byte[], int, int)}
+     * will produce, in the same way as for byte arrays.
+     */
+    private static int decodedLength( CharSequence source, int off, int len, int options ) {
+        return decodedLength( null, source, off, len, options );
+    }   // end decodedLength
+    
+    
+    /**
+     * Works out the decoded length of either <var>bytes</var> or,
+     * when that is null, <var>chars</var>.
+     */
+    private static int decodedLength( byte[] bytes, CharSequence chars, int off, int len, int options ) {
+        byte[] DECODABET = getDecodabet( options );
+        int end = off + len;
+        
+        if( len % 4 == 0 && len > 0 && decodabetValue( DECODABET, at( bytes, chars, end - 1 ) ) >= EQUALS_SIGN_ENC ) {
+            int pads = 0;
+            while( pads < 2 && at( bytes, chars, end - 1 - pads ) == EQUALS_SIGN ) {
+                pads++;
+            }   // end while: trailing padding
+            return len / 4 * 3 - pads;
+        }   // end if: no white space, presumably
+        
+        // Same walk as the decoding loop, without the decoding
+        int n = 0;
+        int b4Posn = 0;
+        boolean pad2 = false;               // Third character is padding: one byte
+        boolean pad3 = false;               // Fourth character is padding: two bytes
+        for( int i = off; i < end; i++ ) {
+            int  c         = at( bytes, chars, i );
+            byte sbiDecode = decodabetValue( DECODABET, c );
+            if( sbiDecode >= EQUALS_SIGN_ENC ) {
+                if( c == EQUALS_SIGN ) {
+                    pad2 |= b4Posn == 2;
+                    pad3 |= b4Posn == 3;
+                }   // end if: padding
+                if( ++b4Posn > 3 ) {
+                    n += pad2 ? 1 : pad3 ? 2 : 3;
+                    if( c == EQUALS_SIGN ) {
+                        return n;
+                    }   // end if: equals sign
+                    b4Posn = 0;
+                    pad2 = pad3 = false;
+                }   // end if: quartet built
+            }   // end if: equals sign or better
+        }   // end for: each character
+        if( b4Posn > 1 && isUnpadded( options ) ) {
+            n += b4Posn == 2 || pad2 ? 1 : 2;
+        }   // end if: unpadded final group
+        return n;
+    }   // end decodedLength
+    
+    
+    /**
+     * The character at <var>i</var> of <var>bytes</var> or, when that is
+     * null, of <var>chars</var>. The test is the same on every call from
+     * a given loop, so the JIT hoists it out and each kind of source gets
+     * a loop of its own.
+     */
+    private static int at( byte[] bytes, CharSequence chars, int i ) {
+        return bytes != null ? bytes[ i ] & 0xFF : chars.charAt( i );
+    }   // end at
+    
+    
+    /**
+     * Looks up a character, treating anything past 0xFF as bad input.
+     */
+    private static byte decodabetValue( byte[] DECODABET, int c ) {
+        return c > 0xFF ? BAD_ENCODING : DECODABET[ c ];
+    }   // end decodabetValue
+    
+    
+    
+    
+    
+    /**
+     * Low-level access to decoding ASCII characters into a caller-supplied
+     * array. <strong>Ignores GUNZIP option, if it's set.</strong>
+     * White space is skipped, and decoding stops after the first padded
+     * group. With the {@link #BCRYPT} dialect the final group may be
+     * two or three characters with no padding.
+     *
+     * @param source The Base64 encoded data
+     * @param off    The offset of where to begin decoding
+     * @param len    The length of characters to decode
+     * @param destination the array to hold the decoded bytes
+     * @param destOff the index where output will be put
+     * @param options Can specify options such as alphabet type to use
+     * @return the number of decoded bytes written
+     * @throws java.io.IOException If bogus characters exist in source data
+     * @throws IllegalArgumentException if there is not enough room in the destination
+     */
+    public static int decode( 
+    byte[] source, int off, int len, byte[] destination, int destOff, int options )
+    throws java.io.IOException {
+        
+        // Lots of error checking and exception throwing
+        if( source == null ){
+            throw new NullPointerException( "Cannot decode null source array." );
+        }   // end if
+        if( destination == null ){
+            throw new NullPointerException( "Destination array was null." );
+        }   // end if
+        if( off < 0 || off + len > source.length ){
+            throw new IllegalArgumentException( String.format(
+            "Source array with length %d cannot have offset of %d and process %d bytes.", source.length, off, len ) );
+        }   // end if
+        
+        boolean unpadded = isUnpadded( options );
         if( len == 0 ){
-            return new byte[0];
-        }else if( len < 4 ){
+            return 0;
+        }else if( len < 4 && !unpadded ){
             throw new IllegalArgumentException( 
             "Base64-encoded string must have at least four characters, but length specified was " + len );
         }   // end if
         
+        return decodeInto( source, null, off, len, destination, destOff, options );
+    }   // end decode
+    
+    
+    
+    /**
+     * Decodes <var>bytes</var> or, when that is null, <var>chars</var>
+     * into <var>destination</var>, for the public decoders once they have
+     * checked their arguments.
+     */
+    private static int decodeInto( byte[] bytes, CharSequence chars, int off, int len, 
+    byte[] destination, int destOff, int options )
+    throws java.io.IOException {
+        
         byte[] DECODABET = getDecodabet( options );
 	
-        int    len34   = len * 3 / 4;       // Estimate on array size
-        byte[] outBuff = new byte[ len34 ]; // Upper limit on size of output
-        int    outBuffPosn = 0;             // Keep track of where we're writing
+        int    outBuffPosn = destOff;           // Keep track of where we're writing
         
         byte[] b4        = new byte[4];     // Four byte buffer from source, eliminating white space
         int    b4Posn    = 0;               // Keep track of four byte input buffer
         int    i         = 0;               // Source array counter
-        byte   sbiDecode = 0;               // Special value from DECODABET
         
-        for( i = off; i < off+len; i++ ) {  // Loop through source
+        // Fast path: eight characters at a time while there is nothing but
+        // alphabet characters. White space, padding and bad characters all
+        // decode to negative values, so OR-ing the eight lookups together
+        // checks them in one go. Anything else is left to the loop below.
+        int    end8      = off + len - 7;
+        int    dest6     = destination.length - 5;
+        for( i = off; i < end8 && outBuffPosn < dest6; i += 8, outBuffPosn += 6 ) {
+            int a0 = at( bytes, chars, i     ), a1 = at( bytes, chars, i + 1 );
+            int a2 = at( bytes, chars, i + 2 ), a3 = at( bytes, chars, i + 3 );
+            int a4 = at( bytes, chars, i + 4 ), a5 = at( bytes, chars, i + 5 );
+            int a6 = at( bytes, chars, i + 6 ), a7 = at( bytes, chars, i + 7 );
+            if( ( ( a0 | a1 | a2 | a3 | a4 | a5 | a6 | a7 ) & ~0xFF ) != 0 ) {
+                break;
+            }   // end if: past the table
+            int c0 = DECODABET[ a0 ], c1 = DECODABET[ a1 ], c2 = DECODABET[ a2 ], c3 = DECODABET[ a3 ];
+            int c4 = DECODABET[ a4 ], c5 = DECODABET[ a5 ], c6 = DECODABET[ a6 ], c7 = DECODABET[ a7 ];
+            if( ( c0 | c1 | c2 | c3 | c4 | c5 | c6 | c7 ) < 0 ) {
+                break;
+            }   // end if: not plain alphabet characters
+            put6( destination, outBuffPosn, c0, c1, c2, c3, c4, c5, c6, c7 );
+        }   // end for: eight characters at a time
+        
+        for( ; i < off+len; i++ ) {         // Loop through the rest of source
             
-            sbiDecode = DECODABET[ source[i]&0xFF ];
+            int  c         = at( bytes, chars, i );
+            byte sbiDecode = decodabetValue( DECODABET, c );
             
             // White space, Equals sign, or legit Base64 character
             // Note the values such as -5 and -9 in the
             // DECODABETs at the top of the file.
             if( sbiDecode >= WHITE_SPACE_ENC )  {
                 if( sbiDecode >= EQUALS_SIGN_ENC ) {
-                    b4[ b4Posn++ ] = source[i];         // Save non-whitespace
+                    b4[ b4Posn++ ] = (byte)c;           // Save non-whitespace
                     if( b4Posn > 3 ) {                  // Time to decode?
-                        outBuffPosn += decode4to3( b4, 0, outBuff, outBuffPosn, options );
+                        outBuffPosn += decode4to3( b4, destination, outBuffPosn, options );
                         b4Posn = 0;
                         
                         // If that was the equals sign, break out of 'for' loop
-                        if( source[i] == EQUALS_SIGN ) {
+                        if( c == EQUALS_SIGN ) {
                             break;
                         }   // end if: equals sign
                     }   // end if: quartet built
@@ -1199,21 +1653,257 @@ public class Base64
             else {
                 // There's a bad input character in the Base64 stream.
                 throw new java.io.IOException( String.format(
-                "Bad Base64 input character decimal %d in array position %d", ((int)source[i])&0xFF, i ) );
+                "Bad Base64 input character decimal %d in array position %d", c, i ) );
             }   // end else: 
         }   // each input character
-                                   
-        byte[] out = new byte[ outBuffPosn ];
-        System.arraycopy( outBuff, 0, out, 0, outBuffPosn ); 
-        return out;
-    }   // end decode
+        
+        return outBuffPosn - destOff + decodeFinal( b4, b4Posn, destination, outBuffPosn, options );
+    }   // end decodeInto
+    
+    
+    
+    /**
+     * Decodes one quartet into <var>destination</var>. When fewer than
+     * three bytes of room are left, a padded quartet is still decoded
+     * straight into what room there is.
+     */
+    private static int decode4to3( byte[] b4, byte[] destination, int destOffset, int options ) {
+        if( destOffset + 3 <= destination.length ){
+            return decode4to3( b4, 0, destination, destOffset, options );
+        }   // end if: room
+        int n = b4[2] == EQUALS_SIGN ? 1 : b4[3] == EQUALS_SIGN ? 2 : 3;
+        if( destOffset + n > destination.length ){
+            throw new IllegalArgumentException( String.format(
+            "Destination array with length %d cannot have offset of %d and still store %d bytes.", destination.length, destOffset, n ) );
+        }   // end if: no room
+        byte[] DECODABET = getDecodabet( options );
+        int outBuff =   ( ( DECODABET[ b4[ 0 ] ] & 0xFF ) << 18 )
+                      | ( ( DECODABET[ b4[ 1 ] ] & 0xFF ) << 12 )
+                      | ( n > 1 ? ( DECODABET[ b4[ 2 ] ] & 0xFF ) << 6 : 0 );
+        destination[ destOffset ] = (byte)( outBuff >>> 16 );
+        if( n > 1 ){
+            destination[ destOffset + 1 ] = (byte)( outBuff >>> 8 );
+        }   // end if: two bytes
+        return n;
+    }   // end decode4to3
     
     
 	
 	
     /**
-     * Decodes data from Base64 notation, automatically
-     * detecting gzip-compressed data and decompressing it.
+     * Decodes Base64 characters from any {@link CharSequence}, such as a
+     * String, StringBuilder or CharBuffer, without first converting them
+     * to bytes. The output array is sized exactly for well-formed input.
+     * Unlike {@link #decode(String, int)}, gzip-compressed data is only
+     * recognized and decompressed when {@link #GZIP} is among the options.
+     *
+     * @param source The Base64 encoded characters
+     * @param off    The offset of where to begin decoding
+     * @param len    The number of characters to decode
+     * @param options Can specify options such as alphabet type to use, or GZIP
+     * @return decoded data
+     * @throws java.io.IOException If bogus characters exist in source data
+     * @see Base64#GZIP
+     */
+    public static byte[] decode( CharSequence source, int off, int len, int options )
+    throws java.io.IOException {
+        
+        if( source == null ){
+            throw new NullPointerException( "Cannot decode null source." );
+        }   // end if
+        if( off < 0 || len < 0 || off + len > source.length() ){
+            throw new IllegalArgumentException( String.format(
+            "Source with length %d cannot have offset of %d and process %d characters.", source.length(), off, len ) );
+        }   // end if
+        
+        Object event = PassforgeEvents.begin( PassforgeEvents.BASE64 );
+        byte[] outBuff = new byte[ decodedLength( source, off, len, options ) ];
+        int    outBuffPosn = decode( source, off, len, outBuff, 0, options );
+        if( outBuffPosn != outBuff.length ){
+            byte[] out = new byte[ outBuffPosn ];
+            System.arraycopy( outBuff, 0, out, 0, outBuffPosn );
+            outBuff = out;
+        }   // end if: white space or oddities
+        
+        if( (options & GZIP) != 0 ) {
+            outBuff = gunzipIfCompressed( outBuff );
+        }   // end if: may gunzip
+        PassforgeEvents.commitBase64( event, false, options, len, outBuff.length );
+        return outBuff;
+    }   // end decode
+    
+    
+    
+    /**
+     * Decodes Base64 characters from a <tt>char</tt> array without first
+     * converting them to bytes. Gzip-compressed data is only recognized
+     * and decompressed when {@link #GZIP} is among the options.
+     *
+     * @param source The Base64 encoded characters
+     * @param off    The offset of where to begin decoding
+     * @param len    The number of characters to decode
+     * @param options Can specify options such as alphabet type to use, or GZIP
+     * @return decoded data
+     * @throws java.io.IOException If bogus characters exist in source data
+     * @see #decode(CharSequence, int, int, int)
+     */
+    public static byte[] decode( char[] source, int off, int len, int options )
+    throws java.io.IOException {
+        if( source == null ){
+            throw new NullPointerException( "Cannot decode null source array." );
+        }   // end if
+        return decode( java.nio.CharBuffer.wrap( source ), off, len, options );
+    }   // end decode
+    
+    
+    
+    /**
+     * Decodes Base64 characters from any {@link CharSequence}, such as a
+     * String, StringBuilder or CharBuffer, into a caller-supplied array,
+     * with no intermediate <tt>byte</tt> copy or charset encoding.
+     * Offsets into a CharBuffer are relative to its position, which is
+     * left alone.
+     * <strong>Ignores GZIP option, if it's set.</strong>
+     * Otherwise behaves exactly like
+     * {@link #decode(byte[], int, int, byte[], int, int)}.
+     *
+     * @param source The Base64 encoded characters
+     * @param off    The offset of where to begin decoding
+     * @param len    The number of characters to decode
+     * @param destination the array to hold the decoded bytes
+     * @param destOff the index where output will be put
+     * @param options Can specify options such as alphabet type to use
+     * @return the number of decoded bytes written
+     * @throws java.io.IOException If bogus characters exist in source data
+     * @throws IllegalArgumentException if there is not enough room in the destination
+     */
+    public static int decode( 
+    CharSequence source, int off, int len, byte[] destination, int destOff, int options )
+    throws java.io.IOException {
+        
+        if( source == null ){
+            throw new NullPointerException( "Cannot decode null source." );
+        }   // end if
+        checkCharDecode( source.length(), off, len, destination, options );
+        if( len == 0 ){
+            return 0;
+        }   // end if
+        return decodeInto( null, source, off, len, destination, destOff, options );
+    }   // end decode
+    
+    
+    
+    /**
+     * Decodes Base64 characters from a <tt>char</tt> array into a
+     * caller-supplied array, with no intermediate <tt>byte</tt> copy or
+     * charset encoding. <strong>Ignores GZIP option, if it's set.</strong>
+     * Otherwise behaves exactly like
+     * {@link #decode(byte[], int, int, byte[], int, int)}.
+     *
+     * @param source The Base64 encoded characters
+     * @param off    The offset of where to begin decoding
+     * @param len    The number of characters to decode
+     * @param destination the array to hold the decoded bytes
+     * @param destOff the index where output will be put
+     * @param options Can specify options such as alphabet type to use
+     * @return the number of decoded bytes written
+     * @throws java.io.IOException If bogus characters exist in source data
+     * @throws IllegalArgumentException if there is not enough room in the destination
+     */
+    public static int decode( 
+    char[] source, int off, int len, byte[] destination, int destOff, int options )
+    throws java.io.IOException {
+        
+        if( source == null ){
+            throw new NullPointerException( "Cannot decode null source array." );
+        }   // end if
+        return decode( java.nio.CharBuffer.wrap( source ), off, len, destination, destOff, options );
+    }   // end decode
+    
+    
+    
+    /**
+     * Checks the ranges for decoding characters into an array.
+     */
+    private static void checkCharDecode( 
+    int sourceLength, int off, int len, byte[] destination, int options ) {
+        if( destination == null ){
+            throw new NullPointerException( "Destination array was null." );
+        }   // end if
+        if( off < 0 || len < 0 || off + len > sourceLength ){
+            throw new IllegalArgumentException( String.format(
+            "Source with length %d cannot have offset of %d and process %d characters.", sourceLength, off, len ) );
+        }   // end if
+        if( len > 0 && len < 4 && !isUnpadded( options ) ){
+            throw new IllegalArgumentException( 
+            "Base64-encoded string must have at least four characters, but length specified was " + len );
+        }   // end if
+    }   // end checkCharDecode
+    
+    
+    /**
+     * Writes the six bytes held by eight decoded characters.
+     */
+    private static void put6( byte[] destination, int d, 
+    int c0, int c1, int c2, int c3, int c4, int c5, int c6, int c7 ) {
+        long outBuff = ( (long)c0 << 42 ) | ( (long)c1 << 36 ) | ( (long)c2 << 30 ) | ( (long)c3 << 24 )
+                     | ( c4 << 18 ) | ( c5 << 12 ) | ( c6 << 6 ) | c7;
+        destination[ d     ] = (byte)( outBuff >>> 40 );
+        destination[ d + 1 ] = (byte)( outBuff >>> 32 );
+        destination[ d + 2 ] = (byte)( outBuff >>> 24 );
+        destination[ d + 3 ] = (byte)( outBuff >>> 16 );
+        destination[ d + 4 ] = (byte)( outBuff >>>  8 );
+        destination[ d + 5 ] = (byte)( outBuff        );
+    }   // end put6
+    
+    
+    /**
+     * Decodes the short group left at the end of unpadded input, if any.
+     *
+     * @return the number of bytes written
+     */
+    private static int decodeFinal( 
+    byte[] b4, int b4Posn, byte[] destination, int destOffset, int options )
+    throws java.io.IOException {
+        if( b4Posn == 0 || !isUnpadded( options ) ) {
+            return 0;
+        }   // end if: nothing left over
+        if( b4Posn == 1 ) {
+            throw new java.io.IOException( "Improperly padded Base64 input." );
+        }   // end if: a lone character
+        while( b4Posn < 4 ) {
+            b4[ b4Posn++ ] = EQUALS_SIGN;       // Pad it ourselves
+        }   // end while: padding
+        return decode4to3( b4, destination, destOffset, options );
+    }   // end decodeFinal
+    
+    
+    /**
+     * Decompresses <var>bytes</var> if they start with the gzip magic
+     * number, returning them untouched if they do not or if they turn
+     * out not to be valid gzip data after all.
+     */
+    private static byte[] gunzipIfCompressed( byte[] bytes ) {
+        // GZIP Magic Two-Byte Number: 0x8b1f (35615)
+        if( (bytes != null) && (bytes.length >= 4) ) {
+            int head = ((int)bytes[0] & 0xff) | ((bytes[1] << 8) & 0xff00);
+            if( java.util.zip.GZIPInputStream.GZIP_MAGIC == head )  {
+                try {
+                    return gunzip( bytes );
+                }   // end try
+                catch( java.io.IOException e ) {
+                    // Just return originally-decoded bytes
+                }   // end catch
+            }   // end if: gzipped
+        }   // end if: bytes.length >= 2
+        return bytes;
+    }   // end gunzipIfCompressed
+    
+    
+    
+    /**
+     * Decodes data from Base64 notation, automatically
+     * detecting gzip-compressed data and decompressing it.
      *
      * @param s the string to decode
      * @return the decoded data
@@ -1243,56 +1933,13 @@ public class Base64
             throw new NullPointerException( "Input string was null." );
         }   // end if
         
-        byte[] bytes;
-        try {
-            bytes = s.getBytes( PREFERRED_ENCODING );
-        }   // end try
-        catch( java.io.UnsupportedEncodingException uee ) {
-            bytes = s.getBytes();
-        }   // end catch
-		//</change>
-        
-        // Decode
-        bytes = decode( bytes, 0, bytes.length, options );
+        // Decode straight from the characters
+        byte[] bytes = decode( (CharSequence)s, 0, s.length(), options & ~GZIP );
         
         // Check to see if it's gzip-compressed
-        // GZIP Magic Two-Byte Number: 0x8b1f (35615)
-        boolean dontGunzip = (options & DONT_GUNZIP) != 0;
-        if( (bytes != null) && (bytes.length >= 4) && (!dontGunzip) ) {
-            
-            int head = ((int)bytes[0] & 0xff) | ((bytes[1] << 8) & 0xff00);
-            if( java.util.zip.GZIPInputStream.GZIP_MAGIC == head )  {
-                java.io.ByteArrayInputStream  bais = null;
-                java.util.zip.GZIPInputStream gzis = null;
-                java.io.ByteArrayOutputStream baos = null;
-                byte[] buffer = new byte[2048];
-                int    length = 0;
-
-                try {
-                    baos = new java.io.ByteArrayOutputStream();
-                    bais = new java.io.ByteArrayInputStream( bytes );
-                    gzis = new java.util.zip.GZIPInputStream( bais );
-
-                    while( ( length = gzis.read( buffer ) ) >= 0 ) {
-                        baos.write(buffer,0,length);
-                    }   // end while: reading input
-
-                    // No error? Get new bytes.
-                    bytes = baos.toByteArray();
-
-                }   // end try
-                catch( java.io.IOException e ) {
-                    e.printStackTrace();
-                    // Just return originally-decoded bytes
-                }   // end catch
-                finally {
-                    try{ baos.close(); } catch( Exception e ){}
-                    try{ gzis.close(); } catch( Exception e ){}
-                    try{ bais.close(); } catch( Exception e ){}
-                }   // end finally
-
-            }   // end if: gzipped
-        }   // end if: bytes.length >= 2
+        if( (options & DONT_GUNZIP) == 0 ) {
+            bytes = gunzipIfCompressed( bytes );
+        }   // end if: may gunzip
         
         return bytes;
     }   // end decode
@@ -1346,30 +1993,8 @@ public class Base64
         
         try {
             bais = new java.io.ByteArrayInputStream( objBytes );
-
-            // If no custom class loader is provided, use Java's builtin OIS.
-            if( loader == null ){
-                ois  = new java.io.ObjectInputStream( bais );
-            }   // end if: no loader provided
-
-            // Else make a customized object input stream that uses
-            // the provided class loader.
-            else {
-                ois = new java.io.ObjectInputStream(bais){
-                    @Override
-                    public Class<?> resolveClass(java.io.ObjectStreamClass streamClass)
-                    throws java.io.IOException, ClassNotFoundException {
-                        Class<?> c = Class.forName(streamClass.getName(), false, loader);
-                        if( c == null ){
-                            return super.resolveClass(streamClass);
-                        } else {
-                            return c;   // Class loader knows of this class.
-                        }   // end else: not null
-                    }   // end resolveClass
-                };  // end ois
-            }   // end else: no custom class loader
-        
-            obj = ois.readObject();
+            ois  = newObjectInputStream( bais, loader );
+            obj  = ois.readObject();
         }   // end try
         catch( java.io.IOException e ) {
             throw e;    // Catch and throw in order to execute finally{}
@@ -1387,6 +2012,125 @@ public class Base64
     
     
     
+    /**
+     * Deserializes a Java Object while it is being decoded from
+     * the Base64 data in <var>in</var>. Only a small buffer is held
+     * in memory, never the whole encoded or decoded form.
+     * Gzip-compressed data is detected and decompressed unless
+     * {@link #DONT_GUNZIP} is given. The stream is not closed.
+     * <p>
+     * Plain data is read a byte at a time, stopping at the end of the
+     * four-character group that finishes the object, so pass a buffered
+     * stream if <var>in</var> is slow to read from. Gzipped data is read
+     * through <tt>GZIPInputStream</tt>, which reads ahead; in that case
+     * treat the stream as consumed.
+     *
+     * @param in The Base64 data to decode
+     * @param options Various parameters related to decoding
+     * @param loader Optional class loader to use in deserializing classes.
+     * @return The decoded and deserialized object
+     * @throws NullPointerException if in is null
+     * @throws java.io.IOException if there is a general error
+     * @throws ClassNotFoundException if the decoded object is of a 
+     *         class that cannot be found by the JVM
+     */
+    public static Object decodeToObject( 
+    java.io.InputStream in, int options, final ClassLoader loader )
+    throws java.io.IOException, java.lang.ClassNotFoundException {
+        
+        if( in == null ){
+            throw new NullPointerException( "Input stream was null." );
+        }   // end if
+        
+        // Base64 -> (GUNZIP) -> ObjectInputStream
+        java.io.PushbackInputStream decoded = new java.io.PushbackInputStream( 
+            new Base64.InputStream( new NonClosingInputStream( in ), 
+                DECODE | (options & ~ENCODE) ), 2 );
+        java.io.InputStream objIn = decoded;
+        
+        // Check to see if it's gzip-compressed
+        // GZIP Magic Two-Byte Number: 0x8b1f (35615)
+        if( (options & DONT_GUNZIP) == 0 ) {
+            int b0 = decoded.read();
+            int b1 = b0 < 0 ? -1 : decoded.read();
+            if( b1 >= 0 ){
+                decoded.unread( b1 );
+            }   // end if: got second byte
+            if( b0 >= 0 ){
+                decoded.unread( b0 );
+            }   // end if: got first byte
+            if( b0 >= 0 && b1 >= 0 && ( b0 | (b1 << 8) ) == java.util.zip.GZIPInputStream.GZIP_MAGIC ){
+                objIn = new java.util.zip.GZIPInputStream( decoded );
+            }   // end if: gzipped
+        }   // end if: may be gzipped
+        
+        java.io.ObjectInputStream ois = newObjectInputStream( objIn, loader );
+        try {
+            return ois.readObject();
+        }   // end try
+        finally {
+            try{ ois.close(); } catch( Exception e ){}  // Leaves the caller's stream open
+        }   // end finally
+    }   // end decodeToObject
+    
+    
+    
+    /**
+     * Deserializes a Java Object while it is being decoded from
+     * the Base64 characters in <var>in</var>. Only a small buffer is
+     * held in memory. The reader is not closed.
+     *
+     * @param in The Base64 data to decode
+     * @param options Various parameters related to decoding
+     * @param loader Optional class loader to use in deserializing classes.
+     * @return The decoded and deserialized object
+     * @throws NullPointerException if in is null
+     * @throws java.io.IOException if there is a general error
+     * @throws ClassNotFoundException if the decoded object is of a 
+     *         class that cannot be found by the JVM
+     * @see #decodeToObject(java.io.InputStream, int, ClassLoader)
+     */
+    public static Object decodeToObject( 
+    java.io.Reader in, int options, final ClassLoader loader )
+    throws java.io.IOException, java.lang.ClassNotFoundException {
+        if( in == null ){
+            throw new NullPointerException( "Reader was null." );
+        }   // end if
+        return decodeToObject( new ReaderInputStream( in ), options, loader );
+    }   // end decodeToObject
+    
+    
+    
+    /**
+     * Builds an ObjectInputStream, using <var>loader</var> to
+     * resolve classes if it is not null.
+     */
+    private static java.io.ObjectInputStream newObjectInputStream( 
+    java.io.InputStream in, final ClassLoader loader ) throws java.io.IOException {
+        
+        // If no custom class loader is provided, use Java's builtin OIS.
+        if( loader == null ){
+            return new java.io.ObjectInputStream( in );
+        }   // end if: no loader provided
+
+        // Else make a customized object input stream that uses
+        // the provided class loader.
+        return new java.io.ObjectInputStream( in ){
+            @Override
+            public Class<?> resolveClass(java.io.ObjectStreamClass streamClass)
+            throws java.io.IOException, ClassNotFoundException {
+                Class<?> c = Class.forName(streamClass.getName(), false, loader);
+                if( c == null ){
+                    return super.resolveClass(streamClass);
+                } else {
+                    return c;   // Class loader knows of this class.
+                }   // end else: not null
+            }   // end resolveClass
+        };  // end ois
+    }   // end newObjectInputStream
+    
+    
+    
     /**
      * Convenience method for encoding data to a file.
      *
@@ -1626,6 +2370,517 @@ public class Base64
     }   // end decodeFileToFile
     
     
+    
+/* ********  G Z I P   S U P P O R T  ******** */
+    
+    
+    /** Largest number of idle Deflaters or Inflaters kept for reuse. */
+    private final static int MAX_POOLED = 2 * Runtime.getRuntime().availableProcessors();
+    
+    
+    /** Size of the chunks handed between zlib and the Base64 encoder. */
+    private final static int GZIP_CHUNK = 2048;
+    
+    
+    /** Length of the fixed gzip header written by the encoder. */
+    private final static int GZIP_HEADER_LENGTH = 10;
+    
+    
+    /** Length of the CRC-32 and size trailer ending a gzip member. */
+    private final static int GZIP_TRAILER_LENGTH = 8;
+    
+    
+    /** Level used when the GZIP option is given. */
+    private static volatile int compressionLevel = java.util.zip.Deflater.DEFAULT_COMPRESSION;
+    
+    
+    /**
+     * Idle compressors. Each carries its own chunk buffer and checksum
+     * so that a gzip call allocates no native zlib state or temporary arrays.
+     */
+    private final static java.util.concurrent.BlockingQueue<Deflating> DEFLATERS =
+        new java.util.concurrent.ArrayBlockingQueue<Deflating>( MAX_POOLED );
+    
+    
+    /** Idle decompressors. */
+    private final static java.util.concurrent.BlockingQueue<java.util.zip.Inflater> INFLATERS =
+        new java.util.concurrent.ArrayBlockingQueue<java.util.zip.Inflater>( MAX_POOLED );
+    
+    
+    /**
+     * Sets the compression level used whenever the {@link #GZIP} option
+     * is given, from 0 (none) through 9 (best), or -1 for zlib's default.
+     *
+     * @param level the new compression level
+     * @throws IllegalArgumentException if the level is out of range
+     * @see java.util.zip.Deflater
+     */
+    public static void setCompressionLevel( int level ) {
+        if( level < java.util.zip.Deflater.DEFAULT_COMPRESSION || level > java.util.zip.Deflater.BEST_COMPRESSION ){
+            throw new IllegalArgumentException( "Invalid compression level: " + level );
+        }   // end if: out of range
+        compressionLevel = level;
+    }   // end setCompressionLevel
+    
+    
+    /**
+     * Returns the compression level used with the {@link #GZIP} option.
+     *
+     * @return the compression level
+     */
+    public static int getCompressionLevel() {
+        return compressionLevel;
+    }   // end getCompressionLevel
+    
+    
+    /**
+     * A raw Deflater plus the buffers that go with it.
+     */
+    private static class Deflating {
+        final java.util.zip.Deflater deflater = new java.util.zip.Deflater( 
+            java.util.zip.Deflater.DEFAULT_COMPRESSION, true );
+        final java.util.zip.CRC32    crc      = new java.util.zip.CRC32();
+        final byte[]                 chunk    = new byte[ GZIP_CHUNK ];
+    }   // end class Deflating
+    
+    
+    private static Deflating acquireDeflater() {
+        Deflating d = DEFLATERS.poll();
+        if( d == null ){
+            d = new Deflating();
+        }   // end if: pool empty
+        d.deflater.setLevel( compressionLevel );
+        return d;
+    }   // end acquireDeflater
+    
+    
+    private static void releaseDeflater( Deflating d ) {
+        d.deflater.reset();
+        d.crc.reset();
+        if( !DEFLATERS.offer( d ) ){
+            d.deflater.end();
+        }   // end if: pool full
+    }   // end releaseDeflater
+    
+    
+    private static java.util.zip.Inflater acquireInflater() {
+        java.util.zip.Inflater inf = INFLATERS.poll();
+        return inf != null ? inf : new java.util.zip.Inflater( true );
+    }   // end acquireInflater
+    
+    
+    private static void releaseInflater( java.util.zip.Inflater inf ) {
+        inf.reset();
+        if( !INFLATERS.offer( inf ) ){
+            inf.end();
+        }   // end if: pool full
+    }   // end releaseInflater
+    
+    
+    /**
+     * Fills in the fixed gzip header, as written by
+     * <tt>java.util.zip.GZIPOutputStream</tt>.
+     */
+    private static int writeGzipHeader( byte[] dest, int off ) {
+        dest[ off     ] = (byte)  java.util.zip.GZIPInputStream.GZIP_MAGIC;
+        dest[ off + 1 ] = (byte)( java.util.zip.GZIPInputStream.GZIP_MAGIC >> 8 );
+        dest[ off + 2 ] = (byte)  java.util.zip.Deflater.DEFLATED;
+        for( int i = 3; i < GZIP_HEADER_LENGTH - 1; i++ ){
+            dest[ off + i ] = 0;
+        }   // end for: flags, mtime, xfl
+        dest[ off + GZIP_HEADER_LENGTH - 1 ] = (byte)0xff;   // OS: unknown
+        return GZIP_HEADER_LENGTH;
+    }   // end writeGzipHeader
+    
+    
+    /**
+     * Fills in the little-endian CRC-32 and input size that end a gzip member.
+     */
+    private static int writeGzipTrailer( byte[] dest, int off, long crc, long size ) {
+        for( int i = 0; i < 4; i++ ){
+            dest[ off + i     ] = (byte)( crc  >>> (8 * i) );
+            dest[ off + i + 4 ] = (byte)( size >>> (8 * i) );
+        }   // end for: each byte
+        return GZIP_TRAILER_LENGTH;
+    }   // end writeGzipTrailer
+    
+    
+    /**
+     * Gzip-compresses <var>source</var> and feeds the compressed chunks straight
+     * into a {@link Base64.Encoder} that writes into the returned array. The array
+     * is sized once from zlib's worst-case bound and trimmed at the end, so no
+     * <tt>ByteArrayOutputStream</tt> or intermediate compressed copy is needed.
+     */
+    private static byte[] gzipEncode( byte[] source, int off, int len, int options ) {
+        
+        long bound = (long)len + ((len + 7) >> 3) + ((len + 63) >> 6) + 5
+                   + GZIP_HEADER_LENGTH + GZIP_TRAILER_LENGTH;  // deflateBound() for any level
+        long encLen = ( (bound + 2) / 3 ) * 4;
+        if( (options & DO_BREAK_LINES) != 0 ){
+            encLen += encLen / MAX_LINE_LENGTH;
+        }   // end if: newlines
+        
+        java.nio.ByteBuffer out  = java.nio.ByteBuffer.wrap( new byte[ (int)Math.min( encLen, Integer.MAX_VALUE - 8 ) ] );
+        Base64.Encoder      enc  = new Base64.Encoder( options );
+        Deflating           d    = acquireDeflater();
+        byte[]              buf  = d.chunk;
+        
+        try {
+            enc.encode( java.nio.ByteBuffer.wrap( buf, 0, writeGzipHeader( buf, 0 ) ), out, false );
+            
+            d.crc.update( source, off, len );
+            d.deflater.setInput( source, off, len );
+            d.deflater.finish();
+            while( !d.deflater.finished() ){
+                int n = d.deflater.deflate( buf, 0, buf.length );
+                out = encodeChunk( enc, buf, n, out, false );
+            }   // end while: compressing
+            
+            int n = writeGzipTrailer( buf, 0, d.crc.getValue(), len );
+            out = encodeChunk( enc, buf, n, out, true );
+        }   // end try
+        finally {
+            releaseDeflater( d );
+        }   // end finally
+        
+        // Only resize array if we didn't guess it right.
+        byte[] encoded = out.array();
+        if( out.position() == encoded.length ){
+            return encoded;
+        }   // end if: exact
+        byte[] finalOut = new byte[ out.position() ];
+        System.arraycopy( encoded, 0, finalOut, 0, finalOut.length );
+        return finalOut;
+    }   // end gzipEncode
+    
+    
+    /**
+     * Encodes one chunk, growing the output in the unlikely event that
+     * zlib exceeded its bound.
+     */
+    private static java.nio.ByteBuffer encodeChunk( 
+    Base64.Encoder enc, byte[] chunk, int len, java.nio.ByteBuffer out, boolean endOfInput ) {
+        java.nio.ByteBuffer in = java.nio.ByteBuffer.wrap( chunk, 0, len );
+        while( enc.encode( in, out, endOfInput ).isOverflow() ){
+            java.nio.ByteBuffer bigger = java.nio.ByteBuffer.wrap( new byte[ out.capacity() * 2 + 8 ] );
+            out.flip();
+            bigger.put( out );
+            out = bigger;
+        }   // end while: out of room
+        return out;
+    }   // end encodeChunk
+    
+    
+    /**
+     * Decompresses gzip data with a pooled Inflater. The output array is sized
+     * from the length recorded in the gzip trailer, so a well-formed single-member
+     * input is inflated straight into an array of the right size.
+     *
+     * @param bytes gzip-compressed data
+     * @return the decompressed data
+     * @throws java.io.IOException if the data is not valid gzip
+     */
+    private static byte[] gunzip( byte[] bytes ) throws java.io.IOException {
+        
+        int    size   = bytes.length < GZIP_HEADER_LENGTH + GZIP_TRAILER_LENGTH ? 0 
+                      : readLittleEndianInt( bytes, bytes.length - 4 );
+        if( size <= 0 || size > 1032L * bytes.length || size > Integer.MAX_VALUE - 8 ){
+            size = 2048;    // Trailer is implausible (deflate tops out near 1032:1); grow as needed
+        }   // end if: bad hint
+        byte[] out    = new byte[ size ];
+        int    outPos = 0;
+        int    pos    = 0;
+        java.util.zip.Inflater inf = acquireInflater();
+        java.util.zip.CRC32    crc = new java.util.zip.CRC32();
+        
+        try {
+            pos = skipGzipHeader( bytes, pos );
+            while( true ){
+                inf.reset();
+                inf.setInput( bytes, pos, bytes.length - pos );
+                int start = outPos;
+                while( !inf.finished() ){
+                    if( outPos == out.length ){
+                        out = java.util.Arrays.copyOf( out, out.length * 2 );
+                    }   // end if: grow
+                    int n;
+                    try {
+                        n = inf.inflate( out, outPos, out.length - outPos );
+                    } catch( java.util.zip.DataFormatException e ) {
+                        throw new java.io.IOException( "Corrupt gzip data: " + e.getMessage() );
+                    }   // end catch
+                    if( n == 0 && (inf.needsInput() || inf.needsDictionary()) ){
+                        throw new java.io.IOException( "Truncated gzip data." );
+                    }   // end if: stuck
+                    outPos += n;
+                }   // end while: inflating
+                
+                pos = bytes.length - inf.getRemaining();
+                if( pos + GZIP_TRAILER_LENGTH > bytes.length ){
+                    throw new java.io.IOException( "Truncated gzip trailer." );
+                }   // end if: no trailer
+                crc.reset();
+                crc.update( out, start, outPos - start );
+                if( readLittleEndianInt( bytes, pos ) != (int)crc.getValue()
+                 || readLittleEndianInt( bytes, pos + 4 ) != outPos - start ){
+                    throw new java.io.IOException( "Corrupt gzip trailer." );
+                }   // end if: mismatch
+                pos += GZIP_TRAILER_LENGTH;
+                
+                // Another member may follow; anything else after the trailer is
+                // ignored, as GZIPInputStream does.
+                try {
+                    pos = skipGzipHeader( bytes, pos );
+                } catch( java.io.IOException e ) {
+                    break;
+                }   // end catch
+            }   // end while: concatenated members
+        }   // end try
+        finally {
+            releaseInflater( inf );
+        }   // end finally
+        
+        return outPos == out.length ? out : java.util.Arrays.copyOf( out, outPos );
+    }   // end gunzip
+    
+    
+    /**
+     * Checks the gzip header at <var>pos</var> and returns the
+     * position of the compressed data that follows it.
+     */
+    private static int skipGzipHeader( byte[] bytes, int pos ) throws java.io.IOException {
+        if( pos + GZIP_HEADER_LENGTH > bytes.length
+         || ( (bytes[ pos ] & 0xff) | ((bytes[ pos + 1 ] << 8) & 0xff00) ) != java.util.zip.GZIPInputStream.GZIP_MAGIC
+         || bytes[ pos + 2 ] != java.util.zip.Deflater.DEFLATED ){
+            throw new java.io.IOException( "Not in gzip format." );
+        }   // end if: bad header
+        int flags = bytes[ pos + 3 ];
+        pos += GZIP_HEADER_LENGTH;
+        try {
+            if( (flags & 4) != 0 ){                                     // FEXTRA
+                pos += 2 + ( (bytes[ pos ] & 0xff) | ((bytes[ pos + 1 ] & 0xff) << 8) );
+            }   // end if: extra field
+            if( (flags & 8) != 0 ){                                     // FNAME
+                while( bytes[ pos++ ] != 0 ){}
+            }   // end if: file name
+            if( (flags & 16) != 0 ){                                    // FCOMMENT
+                while( bytes[ pos++ ] != 0 ){}
+            }   // end if: comment
+            if( (flags & 2) != 0 ){                                     // FHCRC
+                pos += 2;
+            }   // end if: header crc
+        } catch( ArrayIndexOutOfBoundsException e ) {
+            throw new java.io.IOException( "Truncated gzip header." );
+        }   // end catch
+        if( pos > bytes.length ){
+            throw new java.io.IOException( "Truncated gzip header." );
+        }   // end if: past the end
+        return pos;
+    }   // end skipGzipHeader
+    
+    
+    private static int readLittleEndianInt( byte[] bytes, int off ) {
+        return  (bytes[ off     ] & 0xff)
+             | ((bytes[ off + 1 ] & 0xff) <<  8)
+             | ((bytes[ off + 2 ] & 0xff) << 16)
+             | ((bytes[ off + 3 ] & 0xff) << 24);
+    }   // end readLittleEndianInt
+    
+    
+    
+    /**
+     * Like <tt>java.util.zip.GZIPOutputStream</tt>, but borrows its Deflater
+     * and buffers from the pool and honours {@link #setCompressionLevel(int)}.
+     * Closing or finishing the stream returns them to the pool.
+     */
+    private static class GzipOutputStream extends java.io.FilterOutputStream {
+        
+        private Deflating d;
+        private long      size;
+        private final byte[] one = new byte[1];
+        
+        GzipOutputStream( java.io.OutputStream out ) throws java.io.IOException {
+            super( out );
+            this.d = acquireDeflater();
+            out.write( d.chunk, 0, writeGzipHeader( d.chunk, 0 ) );
+        }   // end constructor
+        
+        @Override
+        public void write( int b ) throws java.io.IOException {
+            one[0] = (byte)b;
+            write( one, 0, 1 );
+        }   // end write
+        
+        @Override
+        public void write( byte[] b, int off, int len ) throws java.io.IOException {
+            if( d == null ){
+                throw new java.io.IOException( "Stream already finished." );
+            }   // end if: finished
+            d.crc.update( b, off, len );
+            d.deflater.setInput( b, off, len );
+            while( !d.deflater.needsInput() ){
+                deflate();
+            }   // end while: compressing
+            size += len;
+        }   // end write
+        
+        private void deflate() throws java.io.IOException {
+            int n = d.deflater.deflate( d.chunk, 0, d.chunk.length );
+            if( n > 0 ){
+                out.write( d.chunk, 0, n );
+            }   // end if: output ready
+        }   // end deflate
+        
+        /**
+         * Writes the remaining compressed data and the trailer,
+         * and returns the Deflater to the pool.
+         */
+        public void finish() throws java.io.IOException {
+            if( d == null ){
+                return;
+            }   // end if: already finished
+            try {
+                d.deflater.finish();
+                while( !d.deflater.finished() ){
+                    deflate();
+                }   // end while: draining
+                out.write( d.chunk, 0, writeGzipTrailer( d.chunk, 0, d.crc.getValue(), size ) );
+            }   // end try
+            finally {
+                releaseDeflater( d );
+                d = null;
+            }   // end finally
+        }   // end finish
+        
+        /**
+         * Returns the Deflater to the pool without writing anything more,
+         * for when the stream is being abandoned part way through.
+         */
+        void release() {
+            if( d != null ){
+                releaseDeflater( d );
+                d = null;
+            }   // end if: not finished
+        }   // end release
+        
+        @Override
+        public void close() throws java.io.IOException {
+            try {
+                finish();
+            }   // end try
+            finally {
+                out.close();
+            }   // end finally
+        }   // end close
+        
+    }   // end class GzipOutputStream
+    
+    
+    
+    
+    
+/* ********  S T R E A M   A D A P T E R S  ******** */
+    
+    
+    /**
+     * Presents a Writer as an OutputStream of ASCII characters,
+     * which is all that Base64 output ever contains.
+     */
+    private static class WriterOutputStream extends java.io.OutputStream {
+        
+        private final java.io.Writer writer;
+        private final char[]         chars = new char[ 1024 ];
+        
+        WriterOutputStream( java.io.Writer writer ) {
+            this.writer = writer;
+        }   // end constructor
+        
+        @Override
+        public void write( int b ) throws java.io.IOException {
+            writer.write( b & 0xFF );
+        }   // end write
+        
+        @Override
+        public void write( byte[] b, int off, int len ) throws java.io.IOException {
+            while( len > 0 ){
+                int n = Math.min( len, chars.length );
+                for( int i = 0; i < n; i++ ){
+                    chars[i] = (char)( b[ off + i ] & 0xFF );
+                }   // end for: each byte
+                writer.write( chars, 0, n );
+                off += n;
+                len -= n;
+            }   // end while: more to write
+        }   // end write
+        
+        @Override
+        public void flush() throws java.io.IOException {
+            writer.flush();
+        }   // end flush
+        
+        @Override
+        public void close() throws java.io.IOException {
+            writer.close();
+        }   // end close
+        
+    }   // end class WriterOutputStream
+    
+    
+    /**
+     * Presents a Reader as an InputStream. Characters outside
+     * ISO-8859-1 become a byte that no Base64 alphabet accepts.
+     */
+    private static class ReaderInputStream extends java.io.InputStream {
+        
+        private final java.io.Reader reader;
+        private final char[]         chars = new char[ 1024 ];
+        
+        ReaderInputStream( java.io.Reader reader ) {
+            this.reader = reader;
+        }   // end constructor
+        
+        @Override
+        public int read() throws java.io.IOException {
+            int c = reader.read();
+            return c < 0 ? -1 : ( c > 0xFF ? 0xFF : c );
+        }   // end read
+        
+        @Override
+        public int read( byte[] b, int off, int len ) throws java.io.IOException {
+            int n = reader.read( chars, 0, Math.min( len, chars.length ) );
+            for( int i = 0; i < n; i++ ){
+                char c = chars[i];
+                b[ off + i ] = (byte)( c > 0xFF ? 0xFF : c );
+            }   // end for: each char
+            return n;
+        }   // end read
+        
+    }   // end class ReaderInputStream
+    
+    
+    /**
+     * Shields a caller's stream from being closed along with
+     * the streams layered on top of it.
+     */
+    private static class NonClosingInputStream extends java.io.FilterInputStream {
+        
+        NonClosingInputStream( java.io.InputStream in ) {
+            super( in );
+        }   // end constructor
+        
+        @Override
+        public int read( byte[] b, int off, int len ) throws java.io.IOException {
+            return in.read( b, off, len );
+        }   // end read
+        
+        @Override
+        public void close() {
+        }   // end close
+        
+    }   // end class NonClosingInputStream
+    
+    
+    
     /* ********  I N N E R   C L A S S   I N P U T S T R E A M  ******** */
     
     
@@ -2062,4 +3317,403 @@ public class Base64
     }   // end inner class OutputStream
     
     
+    
+    
+    
+    
+    /* ********  I N N E R   C L A S S   E N C O D E R  ******** */
+    
+    
+    
+    /**
+     * A {@link Base64.Encoder} converts binary data to Base64 notation
+     * incrementally, in the manner of a <tt>java.nio.charset.CharsetEncoder</tt>.
+     * Input may arrive in arbitrary fragments; up to two bytes that do not
+     * yet make up a full three-byte group are carried over to the next call.
+     * Buffers are read and written in place with absolute get/put calls,
+     * so direct buffers work without any copying.
+     * <p>
+     * Example:<pre>
+     *   Base64.Encoder enc = new Base64.Encoder();
+     *   while( channel.read( in ) &gt;= 0 ) {
+     *       in.flip();
+     *       enc.encode( in, out, false );  // drain out on OVERFLOW
+     *       in.compact();
+     *   }
+     *   in.flip();
+     *   enc.encode( in, out, true );
+     * </pre>
+     *
+     * @see Base64
+     */
+    public static class Encoder {
+        
+        private byte[]  alphabet;       // Local copy to avoid extra method calls
+        private boolean breakLines;     // Break lines at 76 characters
+        private boolean unpadded;       // Final group is not padded (bcrypt dialect)
+        private byte[]  pending;        // Bytes carried over between calls
+        private int     numPending;     // Number of meaningful bytes in pending
+        private int     lineLength;
+        private boolean newLinePending; // Line is full but the newline is not yet written
+        
+        
+        /**
+         * Constructs a {@link Base64.Encoder} with no options.
+         */
+        public Encoder() {
+            this( NO_OPTIONS );
+        }   // end constructor
+        
+        
+        /**
+         * Constructs a {@link Base64.Encoder}.
+         * <p>
+         * Valid options:<pre>
+         *   DO_BREAK_LINES: break lines at 76 characters
+         *   URL_SAFE, ORDERED or BCRYPT: select the alphabet
+         * </pre>
+         *
+         * @param options Specified options
+         * @see Base64#DO_BREAK_LINES
+         * @see Base64#URL_SAFE
+         * @see Base64#ORDERED
+         * @see Base64#BCRYPT
+         */
+        public Encoder( int options ) {
+            this.alphabet   = getAlphabet( options );
+            this.breakLines = (options & DO_BREAK_LINES) != 0;
+            this.unpadded   = isUnpadded( options );
+            this.pending    = new byte[3];
+            reset();
+        }   // end constructor
+        
+        
+        /**
+         * Encodes as many bytes as possible from <var>in</var> into <var>out</var>.
+         * Returns {@link java.nio.charset.CoderResult#UNDERFLOW} once all of the
+         * input has been consumed, or {@link java.nio.charset.CoderResult#OVERFLOW}
+         * if <var>out</var> filled up first, in which case the caller should drain
+         * <var>out</var> and call again with the same input.
+         * <p>
+         * Pass <var>endOfInput</var> as <tt>true</tt> on the last call so that the
+         * final, padded group is written. After that, call {@link #reset()} before
+         * encoding anything else.
+         *
+         * @param in the bytes to encode
+         * @param out the buffer receiving Base64 characters
+         * @param endOfInput whether no further input will follow
+         * @return UNDERFLOW or OVERFLOW
+         */
+        public java.nio.charset.CoderResult encode( 
+        java.nio.ByteBuffer in, java.nio.ByteBuffer out, boolean endOfInput ) {
+            
+            int inPos  = in.position();
+            int inLim  = in.limit();
+            int outPos = out.position();
+            int outLim = out.limit();
+            
+            try {
+                while( true ) {
+                    
+                    if( newLinePending ) {
+                        if( outPos >= outLim ) {
+                            return java.nio.charset.CoderResult.OVERFLOW;
+                        }   // end if: no room
+                        out.put( outPos++, NEW_LINE );
+                        newLinePending = false;
+                    }   // end if: finish previous line
+                    
+                    // Whole groups straight from the input, the common case
+                    if( numPending == 0 && inLim - inPos >= 3 ) {
+                        if( outLim - outPos < 4 ) {
+                            return java.nio.charset.CoderResult.OVERFLOW;
+                        }   // end if: no room
+                        int inBuff = ( ( in.get( inPos     ) & 0xFF ) << 16 )
+                                   | ( ( in.get( inPos + 1 ) & 0xFF ) <<  8 )
+                                   | ( ( in.get( inPos + 2 ) & 0xFF )       );
+                        inPos += 3;
+                        out.put( outPos++, alphabet[ (inBuff >>> 18)        ] );
+                        out.put( outPos++, alphabet[ (inBuff >>> 12) & 0x3f ] );
+                        out.put( outPos++, alphabet[ (inBuff >>>  6) & 0x3f ] );
+                        out.put( outPos++, alphabet[ (inBuff       ) & 0x3f ] );
+                    }   // end if: whole group available
+                    
+                    // Else, a group split across calls
+                    else {
+                        while( numPending < 3 && inPos < inLim ) {
+                            pending[ numPending++ ] = in.get( inPos++ );
+                        }   // end while: collect leftovers
+                        
+                        if( numPending < 3 ) {
+                            if( !endOfInput || numPending == 0 ) {
+                                return java.nio.charset.CoderResult.UNDERFLOW;
+                            }   // end if: wait for more input
+                            if( outLim - outPos < (unpadded ? numPending + 1 : 4) ) {
+                                return java.nio.charset.CoderResult.OVERFLOW;
+                            }   // end if: no room for final group
+                            outPos += putGroup( out, outPos );
+                            numPending = 0;
+                            return java.nio.charset.CoderResult.UNDERFLOW;
+                        }   // end if: partial group
+                        
+                        if( outLim - outPos < 4 ) {
+                            return java.nio.charset.CoderResult.OVERFLOW;
+                        }   // end if: no room
+                        outPos += putGroup( out, outPos );
+                        numPending = 0;
+                    }   // end else: leftovers
+                    
+                    lineLength += 4;
+                    if( breakLines && lineLength >= MAX_LINE_LENGTH ) {
+                        newLinePending = true;
+                        lineLength = 0;
+                    }   // end if: end of line
+                }   // end while: more to do
+            }   // end try
+            finally {
+                in.position( inPos );
+                out.position( outPos );
+            }   // end finally
+        }   // end encode
+        
+        
+        /**
+         * Writes the (possibly padded) group held in <var>pending</var>
+         * and returns the number of characters written.
+         */
+        private int putGroup( java.nio.ByteBuffer out, int outPos ) {
+            int inBuff = (   ( pending[0] & 0xFF ) << 16 )
+                       | ( numPending > 1 ? ( pending[1] & 0xFF ) << 8 : 0 )
+                       | ( numPending > 2 ? ( pending[2] & 0xFF )      : 0 );
+            out.put( outPos,     alphabet[ (inBuff >>> 18)        ] );
+            out.put( outPos + 1, alphabet[ (inBuff >>> 12) & 0x3f ] );
+            if( unpadded && numPending < 3 ) {
+                if( numPending > 1 ) {
+                    out.put( outPos + 2, alphabet[ (inBuff >>> 6) & 0x3f ] );
+                }   // end if: two bytes
+                return numPending + 1;
+            }   // end if: no padding
+            out.put( outPos + 2, numPending > 1 ? alphabet[ (inBuff >>> 6) & 0x3f ] : EQUALS_SIGN );
+            out.put( outPos + 3, numPending > 2 ? alphabet[ (inBuff      ) & 0x3f ] : EQUALS_SIGN );
+            return 4;
+        }   // end putGroup
+        
+        
+        /**
+         * Discards any carried-over bytes so that the encoder
+         * can be used for a new, unrelated input.
+         *
+         * @return this encoder
+         */
+        public Encoder reset() {
+            this.numPending     = 0;
+            this.lineLength     = 0;
+            this.newLinePending = false;
+            return this;
+        }   // end reset
+        
+    }   // end inner class Encoder
+    
+    
+    
+    
+    
+    
+    /* ********  I N N E R   C L A S S   D E C O D E R  ******** */
+    
+    
+    
+    /**
+     * A {@link Base64.Decoder} converts Base64 notation back to binary
+     * incrementally, in the manner of a <tt>java.nio.charset.CharsetDecoder</tt>.
+     * Characters that do not yet make up a full four-character quantum are
+     * carried over to the next call, and white space is skipped wherever it
+     * appears. Buffers are read and written in place, so direct buffers work
+     * without any copying.
+     * <p>
+     * Bad characters are reported as
+     * {@link java.nio.charset.CoderResult#malformedForLength(int)} with a length
+     * of one, leaving the input positioned at the offending character.
+     *
+     * @see Base64
+     */
+    public static class Decoder {
+        
+        private byte[]  decodabet;  // Local copy to avoid extra method calls
+        private boolean unpadded;   // Final quantum may be short (bcrypt dialect)
+        private int     quantum;    // Six-bit values collected so far
+        private int     numChars;   // Number of characters in quantum
+        private boolean padding;    // Seen one '=' and expecting another
+        private boolean done;       // Seen the end of the padded data
+        
+        
+        /**
+         * Constructs a {@link Base64.Decoder} for the standard alphabet.
+         */
+        public Decoder() {
+            this( NO_OPTIONS );
+        }   // end constructor
+        
+        
+        /**
+         * Constructs a {@link Base64.Decoder}.
+         * <p>
+         * Valid options:<pre>
+         *   URL_SAFE, ORDERED or BCRYPT: select the alphabet
+         * </pre>
+         *
+         * @param options Specified options
+         * @see Base64#URL_SAFE
+         * @see Base64#ORDERED
+         * @see Base64#BCRYPT
+         */
+        public Decoder( int options ) {
+            this.decodabet = getDecodabet( options );
+            this.unpadded  = isUnpadded( options );
+            reset();
+        }   // end constructor
+        
+        
+        /**
+         * Decodes as many characters as possible from <var>in</var> into <var>out</var>.
+         * Returns {@link java.nio.charset.CoderResult#UNDERFLOW} once all of the
+         * input has been consumed, {@link java.nio.charset.CoderResult#OVERFLOW}
+         * if <var>out</var> cannot hold the next decoded quantum, or a malformed
+         * result if a bad character is met.
+         * <p>
+         * Pass <var>endOfInput</var> as <tt>true</tt> on the last call. If the input
+         * stops in the middle of a quantum, a malformed result is returned whose
+         * length is the number of characters already consumed from that quantum.
+         *
+         * @param in the Base64 characters to decode
+         * @param out the buffer receiving decoded bytes
+         * @param endOfInput whether no further input will follow
+         * @return UNDERFLOW, OVERFLOW, or a malformed-input result
+         */
+        public java.nio.charset.CoderResult decode(
+        java.nio.ByteBuffer in, java.nio.ByteBuffer out, boolean endOfInput ) {
+            
+            int inPos  = in.position();
+            int inLim  = in.limit();
+            int outPos = out.position();
+            int outLim = out.limit();
+            
+            try {
+                while( inPos < inLim ) {
+                    
+                    // Whole quanta straight from the input, the common case
+                    if( numChars == 0 && !done && !padding && inLim - inPos >= 4 && outLim - outPos >= 3 ) {
+                        byte d0 = decodabet[ in.get( inPos     ) & 0xFF ];
+                        byte d1 = decodabet[ in.get( inPos + 1 ) & 0xFF ];
+                        byte d2 = decodabet[ in.get( inPos + 2 ) & 0xFF ];
+                        byte d3 = decodabet[ in.get( inPos + 3 ) & 0xFF ];
+                        if( (d0 | d1 | d2 | d3) >= 0 ) {
+                            int outBuff = (d0 << 18) | (d1 << 12) | (d2 << 6) | d3;
+                            out.put( outPos++, (byte)( outBuff >> 16 ) );
+                            out.put( outPos++, (byte)( outBuff >>  8 ) );
+                            out.put( outPos++, (byte)( outBuff       ) );
+                            inPos += 4;
+                            continue;
+                        }   // end if: four plain characters
+                    }   // end if: room for a whole quantum
+                    
+                    byte sbiDecode = decodabet[ in.get( inPos ) & 0xFF ];
+                    
+                    if( sbiDecode == WHITE_SPACE_ENC ) {
+                        inPos++;
+                    }   // end if: white space
+                    
+                    else if( done || sbiDecode < EQUALS_SIGN_ENC ) {
+                        return java.nio.charset.CoderResult.malformedForLength( 1 );
+                    }   // end else if: bad character, or data after padding
+                    
+                    else if( sbiDecode == EQUALS_SIGN_ENC ) {
+                        if( padding ) {
+                            padding = false;
+                            done    = true;
+                        }   // end if: second '='
+                        else if( numChars == 2 ) {
+                            if( outPos >= outLim ) {
+                                return java.nio.charset.CoderResult.OVERFLOW;
+                            }   // end if: no room
+                            out.put( outPos++, (byte)( quantum >>> 4 ) );
+                            padding = true;
+                        }   // end else if: xx==
+                        else if( numChars == 3 ) {
+                            if( outLim - outPos < 2 ) {
+                                return java.nio.charset.CoderResult.OVERFLOW;
+                            }   // end if: no room
+                            out.put( outPos++, (byte)( quantum >>> 10 ) );
+                            out.put( outPos++, (byte)( quantum >>>  2 ) );
+                            done = true;
+                        }   // end else if: xxx=
+                        else {
+                            return java.nio.charset.CoderResult.malformedForLength( 1 );
+                        }   // end else: padding out of place
+                        numChars = 0;
+                        quantum  = 0;
+                        inPos++;
+                    }   // end else if: equals sign
+                    
+                    else if( padding ) {
+                        return java.nio.charset.CoderResult.malformedForLength( 1 );
+                    }   // end else if: expected '='
+                    
+                    else {
+                        if( numChars == 3 && outLim - outPos < 3 ) {
+                            return java.nio.charset.CoderResult.OVERFLOW;
+                        }   // end if: no room for the completed quantum
+                        quantum = (quantum << 6) | sbiDecode;
+                        inPos++;
+                        if( ++numChars == 4 ) {
+                            out.put( outPos++, (byte)( quantum >> 16 ) );
+                            out.put( outPos++, (byte)( quantum >>  8 ) );
+                            out.put( outPos++, (byte)( quantum       ) );
+                            numChars = 0;
+                            quantum  = 0;
+                        }   // end if: quantum complete
+                    }   // end else: legit Base64 character
+                }   // end while: input remaining
+                
+                if( endOfInput && unpadded && numChars > 1 ) {
+                    if( outLim - outPos < numChars - 1 ) {
+                        return java.nio.charset.CoderResult.OVERFLOW;
+                    }   // end if: no room
+                    out.put( outPos++, (byte)( quantum >>> (numChars == 2 ? 4 : 10) ) );
+                    if( numChars == 3 ) {
+                        out.put( outPos++, (byte)( quantum >>> 2 ) );
+                    }   // end if: two bytes
+                    numChars = 0;
+                    quantum  = 0;
+                    done     = true;
+                }   // end if: short final quantum
+                if( endOfInput && (numChars > 0 || padding) ) {
+                    return java.nio.charset.CoderResult.malformedForLength( padding ? 3 : numChars );
+                }   // end if: improperly padded
+                return java.nio.charset.CoderResult.UNDERFLOW;
+            }   // end try
+            finally {
+                in.position( inPos );
+                out.position( outPos );
+            }   // end finally
+        }   // end decode
+        
+        
+        /**
+         * Discards any carried-over characters so that the decoder
+         * can be used for a new, unrelated input.
+         *
+         * @return this decoder
+         */
+        public Decoder reset() {
+            this.quantum  = 0;
+            this.numChars = 0;
+            this.padding  = false;
+            this.done     = false;
+            return this;
+        }   // end reset
+        
+    }   // end inner class Decoder
+    
+    
 }   // end class Base64
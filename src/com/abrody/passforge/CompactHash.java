@@ -0,0 +1,250 @@
+package com.abrody.passforge;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+import javax.crypto.Mac;
+
+/**
+ * Binary form of bcrypt and PBKDF2 hashes, for caches that hold millions
+ * of them. A bcrypt hash String costs well over 100 bytes of heap; its
+ * binary form is 40 bytes, and can sit in a larger array with many
+ * others. Hashes convert both ways, and verify() checks a password
+ * against the binary form directly.
+ *
+ * The first byte gives the kind of hash in its top three bits:
+ * <pre>
+ *   bcrypt, 40 bytes
+ *     0   kind (BCRYPT or BCRYPT_2A) &lt;&lt; 5 | log rounds
+ *     1   byte[16] salt
+ *     17  byte[23] digest
+ *
+ *   PBKDF2, 7 bytes + salt + key
+ *     0   kind (PBKDF2_SHA1, PBKDF2_SHA256 or PBKDF2_SHA512) &lt;&lt; 5
+ *     1   int  iterations, big-endian
+ *     5   byte salt length
+ *     6   byte key length
+ *     7   salt, then key
+ * </pre>
+ * A hash made by BCrypt.hashpw or Pbkdf2Function.hash comes back from
+ * decode() exactly as it went in.
+ */
+public final class CompactHash {
+    public static final int BCRYPT = 1;
+    public static final int BCRYPT_2A = 2;
+    public static final int PBKDF2_SHA1 = 3;
+    public static final int PBKDF2_SHA256 = 4;
+    public static final int PBKDF2_SHA512 = 5;
+
+    public static final int BCRYPT_LENGTH = 1 + BCrypt.BCRYPT_SALT_LEN + BCrypt.BCRYPT_HASH_LEN;
+    public static final int MAX_LENGTH = 7 + 255 + 255;
+
+    // PBKDF2 identifiers by kind, from PBKDF2_SHA1
+    private static final String[] PBKDF2_IDENTIFIERS = {
+        "pbkdf2", "pbkdf2-sha256", "pbkdf2-sha512"
+    };
+
+    private static final int SALT_CHARS = 22;
+    private static final int DIGEST_CHARS = 31;
+
+    private CompactHash() {
+    }
+
+    /**
+     * The binary form of a bcrypt or PBKDF2 hash String.
+     */
+    public static byte[] encode(String hash) {
+        byte[] record = new byte[MAX_LENGTH];
+        return Arrays.copyOf(record, encode(hash, record, 0));
+    }
+
+    /**
+     * Writes the binary form of a hash into dest at off.
+     *
+     * @return the number of bytes written
+     * @throws IllegalArgumentException if the hash is neither bcrypt nor
+     *             PBKDF2, or is malformed
+     */
+    public static int encode(String hash, byte[] dest, int off) {
+        if (hash.startsWith("$2")) {
+            return encodeBCrypt(hash, dest, off);
+        }
+        return encodePbkdf2(hash, dest, off);
+    }
+
+    private static int encodeBCrypt(String hash, byte[] dest, int off) {
+        int kind;
+        int p;
+        if (hash.startsWith("$2$")) {
+            kind = BCRYPT;
+            p = 3;
+        } else if (hash.startsWith("$2a$")) {
+            kind = BCRYPT_2A;
+            p = 4;
+        } else {
+            throw new IllegalArgumentException("Unsupported bcrypt revision");
+        }
+        if (hash.length() != p + 3 + SALT_CHARS + DIGEST_CHARS || hash.charAt(p + 2) != '$') {
+            throw new IllegalArgumentException("Not a bcrypt hash");
+        }
+        int logRounds = BCrypt.log_rounds(hash);
+        if (logRounds < 4 || logRounds > 31) {
+            throw new IllegalArgumentException("Not a bcrypt hash");
+        }
+        p += 3;
+        PassforgeMetrics.base64Decoded(SALT_CHARS + DIGEST_CHARS);
+        try {
+            if (Base64.decode(hash, p, SALT_CHARS, dest, off + 1, Base64.BCRYPT)
+                    != BCrypt.BCRYPT_SALT_LEN
+                    || Base64.decode(hash, p + SALT_CHARS, DIGEST_CHARS, dest,
+                            off + 1 + BCrypt.BCRYPT_SALT_LEN, Base64.BCRYPT)
+                    != BCrypt.BCRYPT_HASH_LEN) {
+                throw new IllegalArgumentException("Not a bcrypt hash");
+            }
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Bad Base64 in bcrypt hash", e);
+        }
+        dest[off] = (byte) (kind << 5 | logRounds);
+        return BCRYPT_LENGTH;
+    }
+
+    private static int encodePbkdf2(String hash, byte[] dest, int off) {
+        String[] fields = hash.split("\\$", -1);
+        if (fields.length != 5 || fields[0].length() != 0) {
+            throw new IllegalArgumentException("Not a bcrypt or PBKDF2 hash");
+        }
+        int kind = Arrays.asList(PBKDF2_IDENTIFIERS).indexOf(fields[1]) + PBKDF2_SHA1;
+        if (kind < PBKDF2_SHA1) {
+            throw new IllegalArgumentException("Unknown PBKDF2 variant " + fields[1]);
+        }
+        int iterations = Integer.parseInt(fields[2]);
+        byte[] salt = Pbkdf2Function.unab64(fields[3]);
+        byte[] key = Pbkdf2Function.unab64(fields[4]);
+        if (iterations <= 0 || salt.length == 0 || salt.length > 255
+                || key.length < Pbkdf2Function.MIN_KEY_LENGTH || key.length > 255) {
+            throw new IllegalArgumentException("PBKDF2 hash out of range");
+        }
+        dest[off] = (byte) (kind << 5);
+        dest[off + 1] = (byte) (iterations >>> 24);
+        dest[off + 2] = (byte) (iterations >>> 16);
+        dest[off + 3] = (byte) (iterations >>> 8);
+        dest[off + 4] = (byte) iterations;
+        dest[off + 5] = (byte) salt.length;
+        dest[off + 6] = (byte) key.length;
+        System.arraycopy(salt, 0, dest, off + 7, salt.length);
+        System.arraycopy(key, 0, dest, off + 7 + salt.length, key.length);
+        return 7 + salt.length + key.length;
+    }
+
+    /**
+     * The hash String for a binary form.
+     */
+    public static String decode(byte[] record) {
+        return decode(record, 0);
+    }
+
+    public static String decode(byte[] record, int off) {
+        int kind = kind(record, off);
+        if (kind == BCRYPT || kind == BCRYPT_2A) {
+            int logRounds = logRounds(record, off);
+            byte[] rs = new byte[7 + SALT_CHARS + DIGEST_CHARS];
+            int p = 0;
+            rs[p++] = '$';
+            rs[p++] = '2';
+            if (kind == BCRYPT_2A) {
+                rs[p++] = 'a';
+            }
+            rs[p++] = '$';
+            rs[p++] = (byte) ('0' + logRounds / 10);
+            rs[p++] = (byte) ('0' + logRounds % 10);
+            rs[p++] = '$';
+            PassforgeMetrics.base64Encoded(BCrypt.BCRYPT_SALT_LEN + BCrypt.BCRYPT_HASH_LEN);
+            p += Base64.encode(record, off + 1, BCrypt.BCRYPT_SALT_LEN, rs, p, Base64.BCRYPT);
+            p += Base64.encode(record, off + 1 + BCrypt.BCRYPT_SALT_LEN,
+                    BCrypt.BCRYPT_HASH_LEN, rs, p, Base64.BCRYPT);
+            return BCrypt.ascii(rs, p);
+        }
+        int saltLength = record[off + 5] & 0xff;
+        int keyLength = record[off + 6] & 0xff;
+        int p = off + 7;
+        return "$" + PBKDF2_IDENTIFIERS[kind - PBKDF2_SHA1] + "$" + iterations(record, off)
+                + "$" + Pbkdf2Function.ab64(Arrays.copyOfRange(record, p, p + saltLength))
+                + "$" + Pbkdf2Function.ab64(Arrays.copyOfRange(record, p + saltLength,
+                        p + saltLength + keyLength));
+    }
+
+    /**
+     * Checks a password against the binary form of a hash, as
+     * BCrypt.checkpw or Pbkdf2Function.verify would against the String.
+     */
+    public static boolean verify(String password, byte[] record, int off)
+            throws GeneralSecurityException {
+        int kind = kind(record, off);
+        if (kind == BCRYPT || kind == BCRYPT_2A) {
+            return BCrypt.checkpw_raw(password, kind == BCRYPT_2A ? 'a' : (char) 0,
+                    logRounds(record, off), record, off + 1,
+                    record, off + 1 + BCrypt.BCRYPT_SALT_LEN);
+        }
+
+        int saltLength = record[off + 5] & 0xff;
+        int keyLength = record[off + 6] & 0xff;
+        byte[] salt = Arrays.copyOfRange(record, off + 7, off + 7 + saltLength);
+        Mac hmac = Mac.getInstance(Pbkdf2Function.hmacFor(PBKDF2_IDENTIFIERS[kind - PBKDF2_SHA1]));
+        hmac.init(new RawKey(Pbkdf2Function.utf8(password), hmac.getAlgorithm()));
+        byte[] actual = PBKDF2KeyGenerator.derive(hmac, salt, iterations(record, off), keyLength);
+        int diff = 0;
+        for (int i = 0, p = off + 7 + saltLength; i < keyLength; i++) {
+            diff |= actual[i] ^ record[p + i];
+        }
+        Arrays.fill(actual, (byte) 0);
+        return diff == 0;
+    }
+
+    public static boolean verify(String password, byte[] record) throws GeneralSecurityException {
+        return verify(password, record, 0);
+    }
+
+    /**
+     * The number of bytes in the binary form at off.
+     */
+    public static int length(byte[] record, int off) {
+        int kind = kind(record, off);
+        if (kind == BCRYPT || kind == BCRYPT_2A) {
+            return BCRYPT_LENGTH;
+        }
+        return 7 + (record[off + 5] & 0xff) + (record[off + 6] & 0xff);
+    }
+
+    /**
+     * The settings a binary form was made with.
+     */
+    public static KdfParameters getParameters(byte[] record, int off) {
+        int kind = kind(record, off);
+        if (kind == BCRYPT || kind == BCRYPT_2A) {
+            return new BCryptParameters(logRounds(record, off));
+        }
+        return new Pbkdf2Parameters(Pbkdf2Function.hmacFor(PBKDF2_IDENTIFIERS[kind - PBKDF2_SHA1]),
+                iterations(record, off));
+    }
+
+    /**
+     * The kind of hash at off, BCRYPT to PBKDF2_SHA512.
+     */
+    public static int kind(byte[] record, int off) {
+        int kind = (record[off] >> 5) & 7;
+        if (kind < BCRYPT || kind > PBKDF2_SHA512) {
+            throw new IllegalArgumentException("Not a compact hash");
+        }
+        return kind;
+    }
+
+    private static int logRounds(byte[] record, int off) {
+        return record[off] & 0x1f;
+    }
+
+    private static int iterations(byte[] record, int off) {
+        return (record[off + 1] & 0xff) << 24 | (record[off + 2] & 0xff) << 16
+                | (record[off + 3] & 0xff) << 8 | (record[off + 4] & 0xff);
+    }
+}
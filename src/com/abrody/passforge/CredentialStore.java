@@ -0,0 +1,579 @@
+package com.abrody.passforge;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.locks.StampedLock;
+import java.util.zip.CRC32;
+
+/**
+ * User ids mapped to password hashes, kept in a memory-mapped file rather
+ * than on the heap, so millions of users cost the garbage collector
+ * nothing.
+ *
+ * Hashes are stored in their CompactHash form, up to HASH_BYTES long,
+ * which takes bcrypt and PBKDF2 with SHA-1 or SHA-256. The file is an
+ * open-addressing hash table keyed on the UTF-8 user id, split into
+ * segments. The id's hash picks a segment, then a home slot in it;
+ * collisions probe the following slots. Removed users leave a tombstone
+ * that lookups probe past and inserts reuse. The table does not grow:
+ * capacity is set when the store is created.
+ *
+ * Each segment has a StampedLock. Lookups take no lock: they read
+ * optimistically and check the stamp afterwards, only falling back to
+ * the read lock if a writer got in the way. Writers take their segment's
+ * write lock, so updates to different segments run in parallel.
+ *
+ * A slot holds two copies of its record, each with a sequence number and
+ * a CRC32. An update writes the copy not in use with the next sequence
+ * number, and the copy with the higher number is the current one. A
+ * crash part way through a write leaves a copy whose CRC doesn't match;
+ * open() discards it and the slot keeps its previous record, so the file
+ * is never left with a torn record. Updates reach the disk when the OS
+ * writes the pages back, or at flush().
+ *
+ * get() copies a hash into a caller's array, and verify() checks a
+ * password against it, without allocating; bcrypt itself still allocates
+ * its key schedule.
+ */
+public class CredentialStore {
+    public static final int VERSION = 1;
+    public static final int ID_BYTES = 64;
+    public static final int HASH_BYTES = 56;
+
+    static final int HEADER_BYTES = 64;
+    private static final byte[] MAGIC = { 'P', 'F', 'C', 'S' };
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /*
+     * Copy layout:
+     *   0  int  sequence number, 0 for never written
+     *   4  int  CRC32 of the copy, this field excluded
+     *   8  byte USED or DELETED
+     *   9  byte id length
+     *  10  byte hash length
+     *  11  byte reserved
+     *  12  byte[ID_BYTES] id
+     *   .  byte[HASH_BYTES] hash
+     */
+    private static final int COPY_BYTES = 12 + ID_BYTES + HASH_BYTES;
+    private static final int SLOT_BYTES = 2 * COPY_BYTES;
+    private static final int ID_OFFSET = 12;
+    private static final int HASH_OFFSET = ID_OFFSET + ID_BYTES;
+    private static final byte USED = 1;
+    private static final byte DELETED = 2;
+
+    private static final int MIN_SEGMENTS = 16;
+    private static final int MIN_SLOTS_PER_SEGMENT = 64;
+    private static final long MAX_SEGMENT_BYTES = 1L << 30;
+    // Capacity is sized for this load; a segment refuses inserts past MAX_LOAD
+    private static final double TARGET_LOAD = 0.75;
+    private static final double MAX_LOAD = 0.9;
+    // Ids don't spread evenly over segments: capacity leaves each segment
+    // room for this many standard deviations above its share
+    private static final double LOAD_DEVIATIONS = 5;
+
+    // Lookups that lose to a writer this often take the read lock
+    private static final int OPTIMISTIC_TRIES = 2;
+    // Returned by a lookup that read a slot mid-write
+    private static final int TORN = -2;
+
+    private final FileChannel channel;
+    private final Segment[] segments;
+    private final int segmentShift;
+    private final int slotsPerSegment;
+
+    private final ThreadLocal<Scratch> scratch = new ThreadLocal<Scratch>() {
+        @Override
+        protected Scratch initialValue() {
+            return new Scratch();
+        }
+    };
+
+    private CredentialStore(FileChannel channel, int segmentCount, int slotsPerSegment)
+            throws IOException {
+        this.channel = channel;
+        this.slotsPerSegment = slotsPerSegment;
+        this.segmentShift = 32 - Integer.numberOfTrailingZeros(segmentCount);
+        this.segments = new Segment[segmentCount];
+        long segmentBytes = (long) slotsPerSegment * SLOT_BYTES;
+        for (int i = 0; i < segmentCount; i++) {
+            segments[i] = new Segment(channel.map(FileChannel.MapMode.READ_WRITE,
+                    HEADER_BYTES + i * segmentBytes, segmentBytes));
+        }
+    }
+
+    /**
+     * Creates an empty store with room for at least capacity users.
+     */
+    public static CredentialStore create(Path path, int capacity) throws IOException {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive");
+        }
+        long slots = Long.highestOneBit((long) Math.ceil(capacity / TARGET_LOAD) * 2 - 1);
+        slots = Math.max(slots, (long) MIN_SEGMENTS * MIN_SLOTS_PER_SEGMENT);
+        int segmentCount = MIN_SEGMENTS;
+        for (;;) {
+            while (slots / segmentCount * SLOT_BYTES > MAX_SEGMENT_BYTES) {
+                segmentCount *= 2;
+            }
+            if (capacity(segmentCount, (int) (slots / segmentCount)) >= capacity) {
+                break;
+            }
+            slots *= 2;
+        }
+
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_BYTES);
+            header.put(MAGIC);
+            header.putInt(VERSION);
+            header.putInt(segmentCount);
+            header.putInt((int) (slots / segmentCount));
+            header.putInt(COPY_BYTES);
+            header.putInt(ID_BYTES);
+            header.putInt(HASH_BYTES);
+            header.force();
+            return new CredentialStore(channel, segmentCount, (int) (slots / segmentCount));
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Opens an existing store, discarding any record copy a crash left
+     * half written.
+     */
+    public static CredentialStore open(Path path) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        try {
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_BYTES);
+            for (int i = 0; i < MAGIC.length; i++) {
+                if (header.get(i) != MAGIC[i]) {
+                    throw new IOException("Not a credential store");
+                }
+            }
+            int segmentCount = header.getInt(8);
+            int slotsPerSegment = header.getInt(12);
+            if (header.getInt(4) != VERSION || header.getInt(16) != COPY_BYTES
+                    || header.getInt(20) != ID_BYTES || header.getInt(24) != HASH_BYTES) {
+                throw new IOException("Unsupported credential store layout");
+            }
+            if (Integer.bitCount(segmentCount) != 1 || segmentCount < MIN_SEGMENTS
+                    || Integer.bitCount(slotsPerSegment) != 1
+                    || (long) slotsPerSegment * SLOT_BYTES > MAX_SEGMENT_BYTES
+                    || channel.size() < HEADER_BYTES
+                            + (long) segmentCount * slotsPerSegment * SLOT_BYTES) {
+                throw new IOException("Corrupt credential store header");
+            }
+            CredentialStore store = new CredentialStore(channel, segmentCount, slotsPerSegment);
+            for (Segment segment : store.segments) {
+                segment.recover();
+            }
+            return store;
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Copies the user's hash, in CompactHash form, into dest at off;
+     * dest needs room for HASH_BYTES. Takes no lock and allocates
+     * nothing.
+     *
+     * @return the length of the hash, or -1 if the user isn't stored
+     */
+    public int get(String userId, byte[] dest, int off) {
+        Scratch s = scratch.get();
+        int idLength = utf8(userId, s.id);
+        if (idLength < 0) {
+            return -1;
+        }
+        int hash = DerivationFile.hash(s.id, 0, idLength);
+        Segment segment = segments[hash >>> segmentShift];
+
+        for (int tries = 0; tries < OPTIMISTIC_TRIES; tries++) {
+            long stamp = segment.lock.tryOptimisticRead();
+            if (stamp != 0) {
+                int n = segment.find(s.id, idLength, hash, dest, off);
+                if (segment.lock.validate(stamp)) {
+                    return n;
+                }
+            }
+        }
+        long stamp = segment.lock.readLock();
+        try {
+            return segment.find(s.id, idLength, hash, dest, off);
+        } finally {
+            segment.lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * The user's hash as a String, or null if the user isn't stored.
+     */
+    public String getHash(String userId) {
+        byte[] hash = new byte[HASH_BYTES];
+        return get(userId, hash, 0) < 0 ? null : CompactHash.decode(hash);
+    }
+
+    /**
+     * Checks a user's password against the stored hash.
+     *
+     * @return false if the password is wrong or the user isn't stored
+     */
+    public boolean verify(String userId, String password) throws GeneralSecurityException {
+        byte[] hash = scratch.get().hash;
+        if (get(userId, hash, 0) < 0) {
+            return false;
+        }
+        return CompactHash.verify(password, hash, 0);
+    }
+
+    /**
+     * Stores a bcrypt or PBKDF2 hash for a user, replacing any they had.
+     *
+     * @throws IllegalArgumentException if the id or the compact hash is
+     *             too long to store
+     * @throws IllegalStateException if the user's segment is full
+     */
+    public void put(String userId, String hash) {
+        byte[] id = userId.getBytes(UTF8);
+        if (id.length > ID_BYTES) {
+            throw new IllegalArgumentException("User id longer than " + ID_BYTES + " bytes");
+        }
+        byte[] compact = CompactHash.encode(hash);
+        if (compact.length > HASH_BYTES) {
+            throw new IllegalArgumentException("Hash longer than " + HASH_BYTES
+                    + " bytes in compact form");
+        }
+        segment(id).write(id, USED, compact);
+    }
+
+    /**
+     * Removes a user.
+     *
+     * @return whether the user was stored
+     */
+    public boolean remove(String userId) {
+        byte[] id = userId.getBytes(UTF8);
+        if (id.length > ID_BYTES) {
+            return false;
+        }
+        return segment(id).write(id, DELETED, null);
+    }
+
+    /**
+     * The number of users stored.
+     */
+    public int size() {
+        int n = 0;
+        for (Segment segment : segments) {
+            n += segment.used;
+        }
+        return n;
+    }
+
+    /**
+     * The number of users the store was sized for.
+     */
+    public long getCapacity() {
+        return capacity(segments.length, slotsPerSegment);
+    }
+
+    /**
+     * The users a table fits: TARGET_LOAD of its slots, or fewer if small
+     * segments could otherwise pass MAX_LOAD. A segment's share of n users
+     * varies by about the square root of its mean m, so m is the largest
+     * with m + LOAD_DEVIATIONS * sqrt(m) under the segment's limit.
+     */
+    private static long capacity(int segmentCount, int slotsPerSegment) {
+        double limit = slotsPerSegment * MAX_LOAD;
+        double half = LOAD_DEVIATIONS / 2;
+        double root = Math.sqrt(half * half + limit) - half;
+        return (long) Math.min((double) segmentCount * slotsPerSegment * TARGET_LOAD,
+                segmentCount * root * root);
+    }
+
+    /**
+     * Writes every update so far to the disk.
+     */
+    public void flush() {
+        for (Segment segment : segments) {
+            long stamp = segment.lock.readLock();
+            try {
+                segment.buffer.force();
+            } finally {
+                segment.lock.unlockRead(stamp);
+            }
+        }
+    }
+
+    public void close() throws IOException {
+        flush();
+        channel.close();
+    }
+
+    private Segment segment(byte[] id) {
+        return segments[DerivationFile.hash(id, 0, id.length) >>> segmentShift];
+    }
+
+    /**
+     * Encodes s as UTF-8 into dest without allocating, the same as
+     * getBytes("UTF-8"), lone surrogates becoming '?'.
+     *
+     * @return the number of bytes, or -1 if they don't fit
+     */
+    static int utf8(String s, byte[] dest) {
+        int n = 0;
+        for (int i = 0; i < s.length(); i++) {
+            int c = s.charAt(i);
+            int bytes;
+            if (c < 0x80) {
+                bytes = 1;
+            } else if (c < 0x800) {
+                bytes = 2;
+            } else if (Character.isHighSurrogate((char) c) && i + 1 < s.length()
+                    && Character.isLowSurrogate(s.charAt(i + 1))) {
+                c = Character.toCodePoint((char) c, s.charAt(++i));
+                bytes = 4;
+            } else if (Character.isSurrogate((char) c)) {
+                c = '?';
+                bytes = 1;
+            } else {
+                bytes = 3;
+            }
+            if (n + bytes > dest.length) {
+                return -1;
+            }
+            switch (bytes) {
+            case 1:
+                dest[n++] = (byte) c;
+                break;
+            case 2:
+                dest[n++] = (byte) (0xc0 | c >> 6);
+                dest[n++] = (byte) (0x80 | c & 0x3f);
+                break;
+            case 3:
+                dest[n++] = (byte) (0xe0 | c >> 12);
+                dest[n++] = (byte) (0x80 | c >> 6 & 0x3f);
+                dest[n++] = (byte) (0x80 | c & 0x3f);
+                break;
+            default:
+                dest[n++] = (byte) (0xf0 | c >> 18);
+                dest[n++] = (byte) (0x80 | c >> 12 & 0x3f);
+                dest[n++] = (byte) (0x80 | c >> 6 & 0x3f);
+                dest[n++] = (byte) (0x80 | c & 0x3f);
+                break;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * One segment of the table: its slots, lock and counts.
+     */
+    private class Segment {
+        final MappedByteBuffer buffer;
+        final StampedLock lock = new StampedLock();
+        // Live users, and those plus tombstones; written under the write lock
+        volatile int used;
+        volatile int occupied;
+
+        Segment(MappedByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        /**
+         * Looks an id up, copying its hash into dest. May run while a
+         * writer changes the segment; the caller validates the result.
+         *
+         * @return the hash length, -1 if not found, or TORN
+         */
+        int find(byte[] id, int idLength, int hash, byte[] dest, int off) {
+            int mask = slotsPerSegment - 1;
+            for (int i = 0, slot = hash & mask; i < slotsPerSegment; i++, slot = (slot + 1) & mask) {
+                int copy = current(slot);
+                if (copy < 0) {
+                    return -1;
+                }
+                if (buffer.get(copy + 8) == USED && idEquals(copy, id, idLength)) {
+                    int length = buffer.get(copy + 10) & 0xff;
+                    if (length > HASH_BYTES) {
+                        return TORN;
+                    }
+                    for (int k = 0; k < length; k++) {
+                        dest[off + k] = buffer.get(copy + HASH_OFFSET + k);
+                    }
+                    return length;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * Writes a record for id: its hash if state is USED, or a
+         * tombstone if DELETED.
+         *
+         * @return whether id was stored before
+         */
+        boolean write(byte[] id, byte state, byte[] compact) {
+            int hash = DerivationFile.hash(id, 0, id.length);
+            int mask = slotsPerSegment - 1;
+            long stamp = lock.writeLock();
+            try {
+                // The id's slot if stored, else the first tombstone, else the empty slot ending the probe
+                int target = -1;
+                int empty = -1;
+                boolean found = false;
+                for (int i = 0, slot = hash & mask; i < slotsPerSegment; i++, slot = (slot + 1) & mask) {
+                    int copy = current(slot);
+                    if (copy < 0) {
+                        empty = slot;
+                        break;
+                    }
+                    if (buffer.get(copy + 8) == USED) {
+                        if (idEquals(copy, id, id.length)) {
+                            found = true;
+                            target = slot;
+                            break;
+                        }
+                    } else if (target < 0) {
+                        target = slot;
+                    }
+                }
+
+                if (state == DELETED) {
+                    if (found) {
+                        writeCopy(target, id, DELETED, null);
+                        used--;
+                    }
+                    return found;
+                }
+                if (!found) {
+                    if (target < 0) {
+                        if (empty < 0 || occupied + 1 > slotsPerSegment * MAX_LOAD) {
+                            throw new IllegalStateException("Credential store is full");
+                        }
+                        target = empty;
+                        occupied++;
+                    }
+                    used++;
+                }
+                writeCopy(target, id, USED, compact);
+                return found;
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+
+        /**
+         * Position of the slot's current copy, or -1 if the slot has
+         * never been written.
+         */
+        private int current(int slot) {
+            int a = slot * SLOT_BYTES;
+            int b = a + COPY_BYTES;
+            int seqA = buffer.getInt(a);
+            int seqB = buffer.getInt(b);
+            if (seqA == 0 && seqB == 0) {
+                return -1;
+            }
+            // Sequence numbers may wrap; the later one is ahead by a little
+            return seqB != 0 && (seqA == 0 || seqB - seqA > 0) ? b : a;
+        }
+
+        private boolean idEquals(int copy, byte[] id, int idLength) {
+            if ((buffer.get(copy + 9) & 0xff) != idLength) {
+                return false;
+            }
+            for (int i = 0; i < idLength; i++) {
+                if (buffer.get(copy + ID_OFFSET + i) != id[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Writes the slot's other copy with the next sequence number,
+         * making it current.
+         */
+        private void writeCopy(int slot, byte[] id, byte state, byte[] compact) {
+            int current = current(slot);
+            int a = slot * SLOT_BYTES;
+            int target = current == a ? a + COPY_BYTES : a;
+            int sequence = current < 0 ? 1 : buffer.getInt(current) + 1;
+            if (sequence == 0) {
+                sequence = 1;
+            }
+
+            byte[] copy = new byte[COPY_BYTES];
+            ByteBuffer.wrap(copy).putInt(sequence);
+            copy[8] = state;
+            copy[9] = (byte) id.length;
+            System.arraycopy(id, 0, copy, ID_OFFSET, id.length);
+            if (compact != null) {
+                copy[10] = (byte) compact.length;
+                System.arraycopy(compact, 0, copy, HASH_OFFSET, compact.length);
+            }
+            ByteBuffer.wrap(copy).putInt(4, crc(copy));
+
+            ByteBuffer out = buffer.duplicate();
+            out.position(target);
+            out.put(copy);
+        }
+
+        /**
+         * Discards copies whose CRC doesn't match, and counts the slots.
+         */
+        void recover() {
+            byte[] copy = new byte[COPY_BYTES];
+            ByteBuffer in = buffer.duplicate();
+            for (int slot = 0; slot < slotsPerSegment; slot++) {
+                for (int c = 0; c < 2; c++) {
+                    int position = slot * SLOT_BYTES + c * COPY_BYTES;
+                    if (buffer.getInt(position) == 0) {
+                        continue;
+                    }
+                    in.position(position);
+                    in.get(copy);
+                    if (ByteBuffer.wrap(copy).getInt(4) != crc(copy)) {
+                        buffer.putInt(position, 0);
+                    }
+                }
+                int current = current(slot);
+                if (current >= 0) {
+                    occupied++;
+                    if (buffer.get(current + 8) == USED) {
+                        used++;
+                    }
+                }
+            }
+        }
+    }
+
+    private static int crc(byte[] copy) {
+        CRC32 crc = new CRC32();
+        crc.update(copy, 0, 4);
+        crc.update(copy, 8, copy.length - 8);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Per-thread buffers, so that lookups don't allocate.
+     */
+    private static class Scratch {
+        final byte[] id = new byte[ID_BYTES];
+        final byte[] hash = new byte[HASH_BYTES];
+    }
+}
@@ -0,0 +1,271 @@
+package com.abrody.passforge;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A file of derived keys written by PassforgeBulk, read in place through
+ * memory mapping, so a provisioning system can look up any record
+ * without parsing the rest.
+ *
+ * All numbers are big-endian. The file is a header, then fixed-size
+ * records in input order, then an index:
+ * <pre>
+ *   header (HEADER_BYTES)
+ *     0  magic "PFDK"
+ *     4  int    format version (VERSION)
+ *     8  int    flags; FLAG_COMPLETE once every record and the index are written
+ *    12  int    record size in bytes
+ *    16  int    key length in bytes
+ *    20  int    id field length in bytes
+ *    24  long   record count
+ *    32  long   offset of the first record
+ *    40  long   offset of the index
+ *    48  byte[16] HMAC algorithm, ASCII, zero padded
+ *
+ *   record
+ *     0  byte   STATUS_OK or STATUS_FAILED
+ *     1  byte   id length
+ *     2  short  reserved
+ *     4  int    iterations
+ *     8  byte[id field length]  id, the salt, zero padded
+ *     .  byte[key length]       derived key, zeros if the record failed
+ *
+ *   index: one long per record, sorted, each the id's 32-bit hash in the
+ *   high half and the record number in the low half
+ * </pre>
+ * Record i starts at first record offset + i * record size. find()
+ * binary-searches the index by hash, then compares ids.
+ *
+ * Files over 1 GiB are mapped in several pieces, since one mapping
+ * can't exceed 2 GiB.
+ */
+public class DerivationFile {
+    public static final int VERSION = 1;
+    public static final int HEADER_BYTES = 64;
+    public static final int FLAG_COMPLETE = 1;
+
+    public static final byte STATUS_OK = 1;
+    public static final byte STATUS_FAILED = 2;
+
+    /** Longest id a record holds, in bytes. */
+    public static final int DEFAULT_ID_BYTES = 64;
+
+    static final byte[] MAGIC = { 'P', 'F', 'D', 'K' };
+    static final int HMAC_NAME_BYTES = 16;
+    static final int RECORD_ID_OFFSET = 8;
+    static final long MAX_MAPPING = 1L << 30;
+
+    private final FileChannel channel;
+    private final int recordSize;
+    private final int keyLength;
+    private final int idBytes;
+    private final long recordCount;
+    private final long recordsOffset;
+    private final long indexOffset;
+    private final String hmacAlgorithm;
+    private final int recordsPerMapping;
+    private final MappedByteBuffer[] records;
+    private final MappedByteBuffer[] index;
+
+    private DerivationFile(FileChannel channel) throws IOException {
+        this.channel = channel;
+        ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_BYTES);
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (header.get(i) != MAGIC[i]) {
+                throw new IOException("Not a derivation file");
+            }
+        }
+        if (header.getInt(4) != VERSION) {
+            throw new IOException("Unsupported derivation file version " + header.getInt(4));
+        }
+        if ((header.getInt(8) & FLAG_COMPLETE) == 0) {
+            throw new IOException("Derivation file is incomplete");
+        }
+        this.recordSize = header.getInt(12);
+        this.keyLength = header.getInt(16);
+        this.idBytes = header.getInt(20);
+        this.recordCount = header.getLong(24);
+        this.recordsOffset = header.getLong(32);
+        this.indexOffset = header.getLong(40);
+        StringBuilder name = new StringBuilder();
+        for (int i = 0; i < HMAC_NAME_BYTES && header.get(48 + i) != 0; i++) {
+            name.append((char) header.get(48 + i));
+        }
+        this.hmacAlgorithm = name.toString();
+
+        if (recordSize < RECORD_ID_OFFSET + idBytes + keyLength || idBytes > 255
+                || recordCount < 0 || recordCount > Integer.MAX_VALUE
+                || indexOffset < recordsOffset + recordCount * recordSize
+                || channel.size() < indexOffset + recordCount * 8) {
+            throw new IOException("Corrupt derivation file header");
+        }
+
+        this.recordsPerMapping = (int) (MAX_MAPPING / recordSize);
+        this.records = map(recordsOffset, recordCount, recordSize, recordsPerMapping);
+        this.index = map(indexOffset, recordCount, 8, (int) (MAX_MAPPING / 8));
+    }
+
+    /**
+     * Maps count items of size bytes from offset, perMapping at a time.
+     */
+    private MappedByteBuffer[] map(long offset, long count, int size, int perMapping)
+            throws IOException {
+        MappedByteBuffer[] maps = new MappedByteBuffer[(int) ((count + perMapping - 1) / perMapping)];
+        for (int i = 0; i < maps.length; i++) {
+            long n = Math.min(perMapping, count - (long) i * perMapping);
+            maps[i] = channel.map(FileChannel.MapMode.READ_ONLY,
+                    offset + (long) i * perMapping * size, n * size);
+        }
+        return maps;
+    }
+
+    public static DerivationFile open(Path path) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            return new DerivationFile(channel);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    public long getRecordCount() {
+        return recordCount;
+    }
+
+    public int getKeyLength() {
+        return keyLength;
+    }
+
+    public String getHmacAlgorithm() {
+        return hmacAlgorithm;
+    }
+
+    public boolean isOk(int record) {
+        return buffer(record).get(position(record)) == STATUS_OK;
+    }
+
+    public int getIterations(int record) {
+        return buffer(record).getInt(position(record) + 4);
+    }
+
+    public String getId(int record) {
+        ByteBuffer b = buffer(record);
+        int p = position(record);
+        byte[] id = new byte[b.get(p + 1) & 0xff];
+        for (int i = 0; i < id.length; i++) {
+            id[i] = b.get(p + RECORD_ID_OFFSET + i);
+        }
+        return new String(id);
+    }
+
+    /**
+     * Copies a record's key into dest at off, without allocating.
+     */
+    public void getKey(int record, byte[] dest, int off) {
+        ByteBuffer b = buffer(record);
+        int p = position(record) + RECORD_ID_OFFSET + idBytes;
+        for (int i = 0; i < keyLength; i++) {
+            dest[off + i] = b.get(p + i);
+        }
+    }
+
+    public byte[] getKey(int record) {
+        byte[] key = new byte[keyLength];
+        getKey(record, key, 0);
+        return key;
+    }
+
+    /**
+     * The number of the record for an id, or -1 if there is none.
+     */
+    public int find(String id) {
+        byte[] wanted = id.getBytes();
+        int hash = hash(wanted, 0, wanted.length);
+        long lo = 0;
+        long hi = recordCount - 1;
+        // First index entry whose hash is not below the wanted one
+        while (lo <= hi) {
+            long mid = (lo + hi) >>> 1;
+            if ((int) (indexEntry(mid) >> 32) < hash) {
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        for (long i = lo; i < recordCount; i++) {
+            long entry = indexEntry(i);
+            if ((int) (entry >> 32) != hash) {
+                break;
+            }
+            int record = (int) entry;
+            if (idEquals(record, wanted)) {
+                return record;
+            }
+        }
+        return -1;
+    }
+
+    private boolean idEquals(int record, byte[] id) {
+        ByteBuffer b = buffer(record);
+        int p = position(record);
+        if ((b.get(p + 1) & 0xff) != id.length) {
+            return false;
+        }
+        for (int i = 0; i < id.length; i++) {
+            if (b.get(p + RECORD_ID_OFFSET + i) != id[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private long indexEntry(long i) {
+        int perMapping = (int) (MAX_MAPPING / 8);
+        return index[(int) (i / perMapping)].getLong((int) (i % perMapping) * 8);
+    }
+
+    private ByteBuffer buffer(int record) {
+        if (record < 0 || record >= recordCount) {
+            throw new IndexOutOfBoundsException("No record " + record);
+        }
+        return records[record / recordsPerMapping];
+    }
+
+    private int position(int record) {
+        return (record % recordsPerMapping) * recordSize;
+    }
+
+    /**
+     * The index hash of an id: FNV-1a, finished with MurmurHash3's mix
+     * so that similar ids spread out.
+     */
+    static int hash(byte[] b, int off, int len) {
+        int h = 0x811c9dc5;
+        for (int i = off; i < off + len; i++) {
+            h = (h ^ (b[i] & 0xff)) * 0x01000193;
+        }
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    /**
+     * Record size for a key and id field length, rounded up to 8 bytes.
+     */
+    static int recordSize(int keyLength, int idBytes) {
+        return (RECORD_ID_OFFSET + idBytes + keyLength + 7) & ~7;
+    }
+}
@@ -0,0 +1,666 @@
+package com.abrody.passforge;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Audit mode for the command line: counts the hashes in a dump by scheme
+ * and cost, and finds the ones that are malformed, to see where a cost
+ * policy stands before raising it.
+ *
+ * A dump has one hash per line, or with -c, is CSV with the hash in the
+ * given column. Blank lines and lines starting with # are skipped.
+ * bcrypt ($2$, $2a$, $2b$, $2y$) and PBKDF2 ($pbkdf2$, $pbkdf2-sha256$,
+ * $pbkdf2-sha512$) hashes are recognised; anything else is reported.
+ *
+ * The file is memory-mapped and split between threads at line
+ * boundaries. Each thread walks its part a window at a time, checking
+ * hashes in place in the mapping, so no line is copied or turned into a
+ * String and nothing is allocated per line. Threads keep their own counts,
+ * merged at the end. Offending records are reported by their byte offset
+ * in the file.
+ */
+public class HashAudit {
+    public static final String USAGE =
+            "usage: passforge --audit [-t THREADS] [-c COLUMN] [-H] [-m MAX_LISTED] FILE";
+
+    public static final int DEFAULT_MAX_LISTED = 100;
+
+    /** Schemes, as counted by Report.getCount(). */
+    public static final String[] SCHEMES = {
+        "$2$", "$2a$", "$2b$", "$2y$", "$pbkdf2$", "$pbkdf2-sha256$", "$pbkdf2-sha512$"
+    };
+    private static final int FIRST_PBKDF2 = 4;
+    // Longest PBKDF2 key CompactHash and so CredentialStore can hold
+    private static final int MAX_PBKDF2_KEY_BYTES = 255;
+
+    /** Reasons a record is malformed, as counted by Report.getMalformed(). */
+    public static final String[] REASONS = {
+        "unknown scheme", "bad cost", "bad iterations", "bad length",
+        "bad character", "missing column", "line too long"
+    };
+    static final int UNKNOWN_SCHEME = 0;
+    static final int BAD_COST = 1;
+    static final int BAD_ITERATIONS = 2;
+    static final int BAD_LENGTH = 3;
+    static final int BAD_CHARACTER = 4;
+    static final int MISSING_COLUMN = 5;
+    static final int LINE_TOO_LONG = 6;
+    private static final int OK = -1;
+
+    // Bytes mapped at a time; also the longest line
+    static final int WINDOW = 64 << 20;
+
+    private static final int BCRYPT_SALT_CHARS = 22;
+    private static final int BCRYPT_DIGEST_CHARS = 31;
+
+    private final int threads;
+    private final int column;
+    private final boolean header;
+    private final int maxListed;
+
+    /**
+     * @param threads number of threads to scan with
+     * @param column the CSV column holding the hash, from 1, or 0 if each
+     *            line is just a hash
+     * @param header whether to skip the first line
+     * @param maxListed most offending records to list
+     */
+    public HashAudit(int threads, int column, boolean header, int maxListed) {
+        if (threads <= 0) {
+            throw new IllegalArgumentException("Thread count must be positive");
+        }
+        if (column < 0 || maxListed < 0) {
+            throw new IllegalArgumentException("Column and listed records can't be negative");
+        }
+        this.threads = threads;
+        this.column = column;
+        this.header = header;
+        this.maxListed = maxListed;
+    }
+
+    public Report scan(Path path) throws IOException, InterruptedException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            long size = channel.size();
+            long[] starts = new long[threads + 1];
+            starts[threads] = size;
+            for (int i = 1; i < threads; i++) {
+                starts[i] = Math.max(starts[i - 1], lineStart(channel, size * i / threads, size));
+            }
+            if (header) {
+                starts[0] = lineStart(channel, 1, size);
+                for (int i = 1; i < threads; i++) {
+                    starts[i] = Math.max(starts[i], starts[0]);
+                }
+            }
+
+            List<Future<Report>> parts = new ArrayList<Future<Report>>();
+            for (int i = 0; i < threads; i++) {
+                parts.add(pool.submit(new Scanner(channel, starts[i], starts[i + 1])));
+            }
+            Report report = new Report(maxListed);
+            report.bytes = size;
+            for (Future<Report> part : parts) {
+                try {
+                    report.merge(part.get());
+                } catch (ExecutionException e) {
+                    throw new IOException("Scanning failed", e.getCause());
+                }
+            }
+            return report;
+        } finally {
+            pool.shutdownNow();
+            channel.close();
+        }
+    }
+
+    /**
+     * The offset of the first line starting at or after position: just
+     * past the next newline at or after position - 1.
+     */
+    private static long lineStart(FileChannel channel, long position, long size)
+            throws IOException {
+        if (position <= 0) {
+            return 0;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(8192);
+        long p = position - 1;
+        while (p < size) {
+            buffer.clear();
+            int n = channel.read(buffer, p);
+            if (n <= 0) {
+                break;
+            }
+            for (int i = 0; i < n; i++) {
+                if (buffer.get(i) == '\n') {
+                    return p + i + 1;
+                }
+            }
+            p += n;
+        }
+        return size;
+    }
+
+    /**
+     * Scans one part of the file into its own Report.
+     */
+    private class Scanner implements Callable<Report> {
+        private final FileChannel channel;
+        private final long from;
+        private final long to;
+        private final Report report = new Report(maxListed);
+
+        // What the last hash checked was, for the histograms
+        private int scheme;
+        private int cost;
+
+        Scanner(FileChannel channel, long from, long to) {
+            this.channel = channel;
+            this.from = from;
+            this.to = to;
+        }
+
+        public Report call() throws IOException {
+            long position = from;
+            boolean skipping = false;
+            while (position < to) {
+                int length = (int) Math.min(WINDOW, to - position);
+                MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+                int start = 0;
+                if (skipping) {
+                    // The rest of a line too long to check
+                    while (start < length && window.get(start) != '\n') {
+                        start++;
+                    }
+                    if (start == length) {
+                        position += length;
+                        continue;
+                    }
+                    start++;
+                    skipping = false;
+                }
+
+                int end = length;
+                if (position + length < to) {
+                    while (end > start && window.get(end - 1) != '\n') {
+                        end--;
+                    }
+                    if (end == start && start > 0) {
+                        // A line after the skipped one runs past the window;
+                        // map again from its start to see all of it
+                        position += start;
+                        continue;
+                    }
+                    if (end == start) {
+                        report.offend(position + start, LINE_TOO_LONG);
+                        position += length;
+                        skipping = true;
+                        continue;
+                    }
+                }
+                lines(window, start, end, position);
+                position += end;
+            }
+            return report;
+        }
+
+        /**
+         * Checks each line in window between start and end, end being
+         * just past a newline or the end of this part.
+         */
+        private void lines(ByteBuffer window, int start, int end, long base) {
+            int lineStart = start;
+            for (int i = start; i <= end; i++) {
+                if (i < end && window.get(i) != '\n') {
+                    continue;
+                }
+                int lineEnd = i;
+                if (lineEnd > lineStart && window.get(lineEnd - 1) == '\r') {
+                    lineEnd--;
+                }
+                int first = lineStart;
+                while (first < lineEnd && isSpace(window.get(first))) {
+                    first++;
+                }
+                if (first < lineEnd && window.get(lineStart) != '#') {
+                    line(window, lineStart, lineEnd, base + lineStart);
+                }
+                lineStart = i + 1;
+            }
+        }
+
+        private void line(ByteBuffer b, int start, int end, long offset) {
+            report.records++;
+            if (column > 0) {
+                // Find the column's field; fields are not quoted with commas inside
+                int field = 1;
+                int fieldStart = start;
+                for (int i = start; i < end && field < column; i++) {
+                    if (b.get(i) == ',') {
+                        field++;
+                        fieldStart = i + 1;
+                    }
+                }
+                if (field < column) {
+                    report.offend(offset, MISSING_COLUMN);
+                    return;
+                }
+                int fieldEnd = fieldStart;
+                while (fieldEnd < end && b.get(fieldEnd) != ',') {
+                    fieldEnd++;
+                }
+                if (fieldEnd - fieldStart >= 2 && b.get(fieldStart) == '"'
+                        && b.get(fieldEnd - 1) == '"') {
+                    fieldStart++;
+                    fieldEnd--;
+                }
+                start = fieldStart;
+                end = fieldEnd;
+            }
+            while (start < end && isSpace(b.get(start))) {
+                start++;
+            }
+            while (end > start && isSpace(b.get(end - 1))) {
+                end--;
+            }
+
+            int reason = check(b, start, end);
+            if (reason == OK) {
+                report.count(scheme, cost);
+            } else {
+                report.offend(offset, reason);
+            }
+        }
+
+        /**
+         * Checks one hash, setting scheme and cost if it is well formed.
+         *
+         * @return OK or the reason it is malformed
+         */
+        private int check(ByteBuffer b, int start, int end) {
+            scheme = -1;
+            for (int s = 0; s < SCHEMES.length; s++) {
+                if (startsWith(b, start, end, SCHEMES[s])) {
+                    scheme = s;
+                    break;
+                }
+            }
+            if (scheme < 0) {
+                return UNKNOWN_SCHEME;
+            }
+            int p = start + SCHEMES[scheme].length();
+            if (scheme < FIRST_PBKDF2) {
+                return checkBCrypt(b, p, end);
+            }
+            return checkPbkdf2(b, p, end);
+        }
+
+        /**
+         * NN$ then 53 characters of salt and digest.
+         */
+        private int checkBCrypt(ByteBuffer b, int p, int end) {
+            if (end - p < 3 || !isDigit(b.get(p)) || !isDigit(b.get(p + 1))
+                    || b.get(p + 2) != '$') {
+                return BAD_COST;
+            }
+            cost = (b.get(p) - '0') * 10 + (b.get(p + 1) - '0');
+            if (cost < 4 || cost > 31) {
+                return BAD_COST;
+            }
+            p += 3;
+            if (end - p != BCRYPT_SALT_CHARS + BCRYPT_DIGEST_CHARS) {
+                return BAD_LENGTH;
+            }
+            for (int i = p; i < end; i++) {
+                if (!isBase64(b.get(i))) {
+                    return BAD_CHARACTER;
+                }
+            }
+            return OK;
+        }
+
+        /**
+         * ITERATIONS$SALT$KEY, the key from Pbkdf2Function.MIN_KEY_LENGTH
+         * to MAX_PBKDF2_KEY_BYTES bytes, as Pbkdf2Function and
+         * CompactHash accept it.
+         */
+        private int checkPbkdf2(ByteBuffer b, int p, int end) {
+            long iterations = 0;
+            int digits = p;
+            while (p < end && isDigit(b.get(p))) {
+                iterations = iterations * 10 + (b.get(p++) - '0');
+                if (iterations > Integer.MAX_VALUE) {
+                    return BAD_ITERATIONS;
+                }
+            }
+            if (p == digits || p == end || b.get(p) != '$' || iterations == 0) {
+                return BAD_ITERATIONS;
+            }
+            cost = (int) iterations;
+
+            int salt = ++p;
+            while (p < end && b.get(p) != '$') {
+                if (!isBase64(b.get(p++))) {
+                    return BAD_CHARACTER;
+                }
+            }
+            if (p == salt || p == end) {
+                return BAD_LENGTH;
+            }
+
+            int key = ++p;
+            for (; p < end; p++) {
+                if (!isBase64(b.get(p))) {
+                    return BAD_CHARACTER;
+                }
+            }
+            // Unpadded, so n bytes take ceil(4n / 3) characters
+            int keyChars = end - key;
+            int keyBytes = keyChars * 3 / 4;
+            if (keyChars % 4 == 1 || keyBytes < Pbkdf2Function.MIN_KEY_LENGTH
+                    || keyBytes > MAX_PBKDF2_KEY_BYTES) {
+                return BAD_LENGTH;
+            }
+            return OK;
+        }
+    }
+
+    private static boolean startsWith(ByteBuffer b, int start, int end, String prefix) {
+        if (end - start < prefix.length()) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length(); i++) {
+            if (b.get(start + i) != prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isDigit(byte c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static boolean isSpace(byte c) {
+        return c == ' ' || c == '\t';
+    }
+
+    /**
+     * Whether c is in the alphabet bcrypt and PBKDF2 hashes use:
+     * letters, digits, '.' and '/'.
+     */
+    private static boolean isBase64(byte c) {
+        return c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c >= '0' && c <= '9'
+                || c == '.' || c == '/';
+    }
+
+    /**
+     * What a scan found.
+     */
+    public static class Report {
+        private final int maxListed;
+        private long bytes;
+        private long records;
+        private final long[] counts = new long[SCHEMES.length];
+        private final CostCounts[] costs = new CostCounts[SCHEMES.length];
+        private final long[] malformed = new long[REASONS.length];
+        private long[] offsets;
+        private int[] reasons;
+        private int listed;
+
+        Report(int maxListed) {
+            this.maxListed = maxListed;
+            this.offsets = new long[Math.min(maxListed, 64)];
+            this.reasons = new int[offsets.length];
+            for (int i = 0; i < costs.length; i++) {
+                costs[i] = new CostCounts();
+            }
+        }
+
+        void count(int scheme, int cost) {
+            counts[scheme]++;
+            costs[scheme].add(cost, 1);
+        }
+
+        void offend(long offset, int reason) {
+            malformed[reason]++;
+            list(offset, reason);
+        }
+
+        private void list(long offset, int reason) {
+            if (listed < maxListed) {
+                if (listed == offsets.length) {
+                    int n = Math.min(maxListed, offsets.length * 2);
+                    offsets = Arrays.copyOf(offsets, n);
+                    reasons = Arrays.copyOf(reasons, n);
+                }
+                offsets[listed] = offset;
+                reasons[listed++] = reason;
+            }
+        }
+
+        /**
+         * Adds a later part's counts. Parts are merged in file order, so
+         * offenders stay in order.
+         */
+        void merge(Report part) {
+            records += part.records;
+            for (int s = 0; s < SCHEMES.length; s++) {
+                counts[s] += part.counts[s];
+                costs[s].addAll(part.costs[s]);
+            }
+            for (int r = 0; r < REASONS.length; r++) {
+                malformed[r] += part.malformed[r];
+            }
+            for (int i = 0; i < part.listed; i++) {
+                list(part.offsets[i], part.reasons[i]);
+            }
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+
+        /**
+         * Lines holding a record, well formed or not.
+         */
+        public long getRecords() {
+            return records;
+        }
+
+        /**
+         * Well formed hashes of a scheme, by its index in SCHEMES.
+         */
+        public long getCount(int scheme) {
+            return counts[scheme];
+        }
+
+        /**
+         * Hashes of a scheme by cost: log rounds for bcrypt, iterations for
+         * PBKDF2.
+         */
+        public SortedMap<Integer, Long> getCosts(int scheme) {
+            return costs[scheme].toMap();
+        }
+
+        /**
+         * Malformed records for a reason, by its index in REASONS.
+         */
+        public long getMalformed(int reason) {
+            return malformed[reason];
+        }
+
+        public long getMalformed() {
+            long n = 0;
+            for (long m : malformed) {
+                n += m;
+            }
+            return n;
+        }
+
+        /**
+         * File offsets of the first malformed records, up to the most
+         * listed, in file order.
+         */
+        public long[] getOffenders() {
+            return Arrays.copyOf(offsets, listed);
+        }
+
+        /**
+         * Why each of getOffenders() is malformed, as indexes in REASONS.
+         */
+        public int[] getOffenderReasons() {
+            return Arrays.copyOf(reasons, listed);
+        }
+
+        public void print(PrintStream out) {
+            out.println(String.format("%d records in %d bytes", records, bytes));
+            for (int s = 0; s < SCHEMES.length; s++) {
+                if (counts[s] == 0) {
+                    continue;
+                }
+                out.println(String.format("%-18s %12d", SCHEMES[s], counts[s]));
+                String label = s < FIRST_PBKDF2 ? "cost" : "iterations";
+                for (Map.Entry<Integer, Long> e : getCosts(s).entrySet()) {
+                    out.println(String.format("  %-10s %10d %12d", label, e.getKey(), e.getValue()));
+                }
+            }
+            out.println(String.format("%-18s %12d", "malformed", getMalformed()));
+            for (int r = 0; r < REASONS.length; r++) {
+                if (malformed[r] != 0) {
+                    out.println(String.format("  %-21s %12d", REASONS[r], malformed[r]));
+                }
+            }
+            if (listed > 0) {
+                out.println("first " + listed + " malformed records, by offset:");
+                for (int i = 0; i < listed; i++) {
+                    out.println(String.format("  %12d  %s", offsets[i], REASONS[reasons[i]]));
+                }
+            }
+        }
+    }
+
+    /**
+     * Counts by cost, in an open-addressing table of ints; dumps have few
+     * distinct costs, so it rarely grows.
+     */
+    private static class CostCounts {
+        private int[] keys = new int[16];
+        private long[] values = new long[16];
+        private boolean[] used = new boolean[16];
+        private int size;
+
+        void add(int key, long n) {
+            int mask = keys.length - 1;
+            int i = (key * 0x9e3779b9) >>> 16 & mask;
+            while (used[i] && keys[i] != key) {
+                i = (i + 1) & mask;
+            }
+            if (!used[i]) {
+                if ((size + 1) * 2 > keys.length) {
+                    grow();
+                    add(key, n);
+                    return;
+                }
+                used[i] = true;
+                keys[i] = key;
+                size++;
+            }
+            values[i] += n;
+        }
+
+        void addAll(CostCounts other) {
+            for (int i = 0; i < other.keys.length; i++) {
+                if (other.used[i]) {
+                    add(other.keys[i], other.values[i]);
+                }
+            }
+        }
+
+        private void grow() {
+            int[] oldKeys = keys;
+            long[] oldValues = values;
+            boolean[] oldUsed = used;
+            keys = new int[oldKeys.length * 2];
+            values = new long[keys.length];
+            used = new boolean[keys.length];
+            size = 0;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldUsed[i]) {
+                    add(oldKeys[i], oldValues[i]);
+                }
+            }
+        }
+
+        SortedMap<Integer, Long> toMap() {
+            SortedMap<Integer, Long> map = new TreeMap<Integer, Long>();
+            for (int i = 0; i < keys.length; i++) {
+                if (used[i]) {
+                    map.put(keys[i], values[i]);
+                }
+            }
+            return map;
+        }
+    }
+
+    /**
+     * Entry point for passforge --audit; args are the arguments after it.
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int threads = Runtime.getRuntime().availableProcessors();
+        int column = 0;
+        boolean header = false;
+        int maxListed = DEFAULT_MAX_LISTED;
+        String file = null;
+
+        try {
+            for (int i = 0; i < args.length; i++) {
+                String arg = args[i];
+                if (arg.equals("-t") && i + 1 < args.length) {
+                    threads = Integer.parseInt(args[++i]);
+                } else if (arg.equals("-c") && i + 1 < args.length) {
+                    column = Integer.parseInt(args[++i]);
+                } else if (arg.equals("-H")) {
+                    header = true;
+                } else if (arg.equals("-m") && i + 1 < args.length) {
+                    maxListed = Integer.parseInt(args[++i]);
+                } else if (file == null && !arg.startsWith("-")) {
+                    file = arg;
+                } else {
+                    throw new IllegalArgumentException(arg);
+                }
+            }
+            if (file == null) {
+                throw new IllegalArgumentException();
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println(USAGE);
+            System.exit(1);
+        }
+
+        long start = System.nanoTime();
+        Report report = new HashAudit(threads, column, header, maxListed).scan(Paths.get(file));
+        report.print(System.out);
+        System.err.println(String.format("scanned in %.3f s", (System.nanoTime() - start) / 1e9));
+        System.exit(report.getMalformed() == 0 ? 0 : 2);
+    }
+}
@@ -0,0 +1,182 @@
+package com.abrody.passforge;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * The jdk.jfr side of PassforgeEvents. Only loaded once PassforgeEvents
+ * has found jdk.jfr, so nothing else may refer to this class.
+ */
+final class JfrEvents {
+    // Checked before an event is made, so nothing is allocated while
+    // no recording wants them
+    private static final EventType DERIVE = EventType.getEventType(DeriveEvent.class);
+    private static final EventType HASH = EventType.getEventType(HashEvent.class);
+    private static final EventType VERIFY = EventType.getEventType(VerifyEvent.class);
+    private static final EventType BASE64 = EventType.getEventType(Base64Event.class);
+
+    private JfrEvents() {
+    }
+
+    static Object begin(int kind) {
+        Event event;
+        switch (kind) {
+        case PassforgeEvents.DERIVE:
+            if (!DERIVE.isEnabled()) {
+                return null;
+            }
+            event = new DeriveEvent();
+            break;
+        case PassforgeEvents.HASH:
+            if (!HASH.isEnabled()) {
+                return null;
+            }
+            event = new HashEvent();
+            break;
+        case PassforgeEvents.VERIFY:
+            if (!VERIFY.isEnabled()) {
+                return null;
+            }
+            event = new VerifyEvent();
+            break;
+        default:
+            if (!BASE64.isEnabled()) {
+                return null;
+            }
+            event = new Base64Event();
+            break;
+        }
+        event.begin();
+        return event;
+    }
+
+    static void commitDerive(Object token, String algorithm, int iterations, int length) {
+        DeriveEvent event = (DeriveEvent) token;
+        event.end();
+        if (event.shouldCommit()) {
+            event.algorithm = algorithm;
+            event.iterations = iterations;
+            event.outputLength = length;
+            event.commit();
+        }
+    }
+
+    static void commitHash(Object token, int logRounds, boolean succeeded) {
+        HashEvent event = (HashEvent) token;
+        event.end();
+        if (event.shouldCommit()) {
+            event.logRounds = logRounds;
+            event.succeeded = succeeded;
+            event.commit();
+        }
+    }
+
+    static void commitVerify(Object token, int logRounds, boolean matched) {
+        VerifyEvent event = (VerifyEvent) token;
+        event.end();
+        if (event.shouldCommit()) {
+            event.logRounds = logRounds;
+            event.matched = matched;
+            event.commit();
+        }
+    }
+
+    static void commitBase64(Object token, boolean encoding, int options, long inputLength, long outputLength) {
+        Base64Event event = (Base64Event) token;
+        event.end();
+        if (event.shouldCommit()) {
+            event.encoding = encoding;
+            event.options = options;
+            event.inputLength = inputLength;
+            event.outputLength = outputLength;
+            event.commit();
+        }
+    }
+
+    @Name("com.abrody.passforge.Derive")
+    @Label("Key Derivation")
+    @Description("One PBKDF2, scrypt or Argon2 key derivation")
+    @Category("Passforge")
+    @Enabled(false)
+    @Threshold("0 ms")
+    @StackTrace(true)
+    static class DeriveEvent extends Event {
+        @Label("Algorithm")
+        String algorithm;
+
+        @Label("Iterations")
+        @Description("PBKDF2 iterations, scrypt's N, or Argon2's passes over memory")
+        int iterations;
+
+        @Label("Output Length")
+        @DataAmount(DataAmount.BYTES)
+        int outputLength;
+    }
+
+    @Name("com.abrody.passforge.Hash")
+    @Label("Password Hash")
+    @Description("One BCrypt.hashpw call")
+    @Category("Passforge")
+    @Enabled(false)
+    @Threshold("0 ms")
+    @StackTrace(true)
+    static class HashEvent extends Event {
+        @Label("Algorithm")
+        String algorithm = "bcrypt";
+
+        @Label("Log Rounds")
+        int logRounds;
+
+        @Label("Succeeded")
+        boolean succeeded;
+    }
+
+    @Name("com.abrody.passforge.Verify")
+    @Label("Password Verification")
+    @Description("One BCrypt.checkpw call")
+    @Category("Passforge")
+    @Enabled(false)
+    @Threshold("0 ms")
+    @StackTrace(true)
+    static class VerifyEvent extends Event {
+        @Label("Algorithm")
+        String algorithm = "bcrypt";
+
+        @Label("Log Rounds")
+        int logRounds;
+
+        @Label("Matched")
+        boolean matched;
+    }
+
+    @Name("com.abrody.passforge.Base64")
+    @Label("Base64 Bulk Operation")
+    @Description("One whole-array Base64 encode or decode")
+    @Category("Passforge")
+    @Enabled(false)
+    @Threshold("0 ms")
+    @StackTrace(false)
+    static class Base64Event extends Event {
+        @Label("Encoding")
+        boolean encoding;
+
+        @Label("Options")
+        int options;
+
+        @Label("Input Length")
+        @DataAmount(DataAmount.BYTES)
+        long inputLength;
+
+        @Label("Output Length")
+        @DataAmount(DataAmount.BYTES)
+        long outputLength;
+    }
+}
@@ -0,0 +1,20 @@
+package com.abrody.passforge;
+
+/**
+ * What a KeyDerivationFunction or PasswordHasher implementation is made
+ * of, so callers can ask KdfRegistry for one that suits them: pure Java
+ * where native code can't be loaded, native or SIMD where speed matters.
+ */
+public enum KdfCapability {
+    /** Plain Java, no native code; runs anywhere, including Android. */
+    PURE_JAVA,
+
+    /** Uses vector instructions, through the Vector API or native code. */
+    SIMD,
+
+    /** Calls into a native library. */
+    NATIVE,
+
+    /** Needs a large amount of memory per call, by design. */
+    MEMORY_HARD
+}
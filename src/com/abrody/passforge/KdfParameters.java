@@ -0,0 +1,18 @@
+package com.abrody.passforge;
+
+/**
+ * The cost settings for one key derivation or password hash, such as
+ * Pbkdf2Parameters or BCryptParameters. Implementations are immutable.
+ */
+public interface KdfParameters {
+    /**
+     * The algorithm these parameters are for, as KdfRegistry names it.
+     */
+    String getAlgorithm();
+
+    /**
+     * The main work factor, for metrics and logs: iterations for PBKDF2,
+     * log_rounds for bcrypt.
+     */
+    int getCost();
+}
@@ -0,0 +1,186 @@
+package com.abrody.passforge;
+
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Finds KeyDerivationFunction and PasswordHasher implementations by
+ * algorithm name and capability.
+ *
+ * There may be several implementations of one algorithm, say a pure Java
+ * one and a native one. Lookups take the fastest that has every
+ * capability asked for: NATIVE before SIMD before plain Java, and among
+ * equals the one registered last, so a plug-in can replace a built-in.
+ *
+ * The default registry holds the built-in PBKDF2, bcrypt, scrypt and
+ * Argon2id implementations plus any found through java.util.ServiceLoader, so a
+ * faster engine plugs in by shipping a jar with a
+ * META-INF/services/com.abrody.passforge.KeyDerivationFunction (or
+ * PasswordHasher) entry, without callers changing.
+ */
+public class KdfRegistry {
+    private static final KdfRegistry DEFAULT = createDefault();
+
+    private final List<KeyDerivationFunction> functions =
+            new CopyOnWriteArrayList<KeyDerivationFunction>();
+    private final List<PasswordHasher> hashers = new CopyOnWriteArrayList<PasswordHasher>();
+
+    public static KdfRegistry getDefault() {
+        return DEFAULT;
+    }
+
+    public void register(KeyDerivationFunction function) {
+        functions.add(0, function);
+    }
+
+    public void register(PasswordHasher hasher) {
+        hashers.add(0, hasher);
+    }
+
+    public boolean unregister(KeyDerivationFunction function) {
+        return functions.remove(function);
+    }
+
+    public boolean unregister(PasswordHasher hasher) {
+        return hashers.remove(hasher);
+    }
+
+    /**
+     * Every registered function, preferred first.
+     */
+    public List<KeyDerivationFunction> getFunctions() {
+        return Collections.unmodifiableList(new ArrayList<KeyDerivationFunction>(functions));
+    }
+
+    /**
+     * Every registered hasher, preferred first.
+     */
+    public List<PasswordHasher> getHashers() {
+        return Collections.unmodifiableList(new ArrayList<PasswordHasher>(hashers));
+    }
+
+    /**
+     * The preferred function for an algorithm that has all the required
+     * capabilities.
+     *
+     * @throws NoSuchAlgorithmException if there is none
+     */
+    public KeyDerivationFunction getFunction(String algorithm, KdfCapability... required)
+            throws NoSuchAlgorithmException {
+        KeyDerivationFunction best = null;
+        for (KeyDerivationFunction f : functions) {
+            if (f.getAlgorithm().equalsIgnoreCase(algorithm)
+                    && f.getCapabilities().containsAll(Arrays.asList(required))
+                    && (best == null || speed(f.getCapabilities()) > speed(best.getCapabilities()))) {
+                best = f;
+            }
+        }
+        if (best == null) {
+            throw new NoSuchAlgorithmException(describe(algorithm, required));
+        }
+        return best;
+    }
+
+    /**
+     * The preferred hasher for an algorithm that has all the required
+     * capabilities.
+     *
+     * @throws NoSuchAlgorithmException if there is none
+     */
+    public PasswordHasher getHasher(String algorithm, KdfCapability... required)
+            throws NoSuchAlgorithmException {
+        PasswordHasher best = null;
+        for (PasswordHasher h : hashers) {
+            if (h.getAlgorithm().equalsIgnoreCase(algorithm)
+                    && h.getCapabilities().containsAll(Arrays.asList(required))
+                    && (best == null || speed(h.getCapabilities()) > speed(best.getCapabilities()))) {
+                best = h;
+            }
+        }
+        if (best == null) {
+            throw new NoSuchAlgorithmException(describe(algorithm, required));
+        }
+        return best;
+    }
+
+    /**
+     * The preferred hasher that recognizes a stored hash, to verify it.
+     *
+     * @throws NoSuchAlgorithmException if no hasher recognizes it
+     */
+    public PasswordHasher getHasherFor(String hash) throws NoSuchAlgorithmException {
+        PasswordHasher best = null;
+        for (PasswordHasher h : hashers) {
+            if (h.recognizes(hash)
+                    && (best == null || speed(h.getCapabilities()) > speed(best.getCapabilities()))) {
+                best = h;
+            }
+        }
+        if (best == null) {
+            throw new NoSuchAlgorithmException("No hasher recognizes this hash");
+        }
+        return best;
+    }
+
+    private static int speed(Set<KdfCapability> capabilities) {
+        if (capabilities.contains(KdfCapability.NATIVE)) {
+            return 2;
+        }
+        if (capabilities.contains(KdfCapability.SIMD)) {
+            return 1;
+        }
+        return 0;
+    }
+
+    private static String describe(String algorithm, KdfCapability[] required) {
+        return required.length == 0 ? "No " + algorithm + " implementation"
+                : "No " + algorithm + " implementation with " + Arrays.asList(required);
+    }
+
+    private static KdfRegistry createDefault() {
+        KdfRegistry registry = new KdfRegistry();
+        Pbkdf2Function pbkdf2 = new Pbkdf2Function();
+        registry.register((KeyDerivationFunction) pbkdf2);
+        registry.register((PasswordHasher) pbkdf2);
+        registry.register(new BCryptHasher());
+        registry.register(new Scrypt());
+        Argon2 argon2 = new Argon2();
+        registry.register((KeyDerivationFunction) argon2);
+        registry.register((PasswordHasher) argon2);
+
+        Iterator<KeyDerivationFunction> f =
+                ServiceLoader.load(KeyDerivationFunction.class).iterator();
+        while (hasNext(f)) {
+            try {
+                registry.register(f.next());
+            } catch (ServiceConfigurationError e) {
+                // A broken plug-in leaves the built-ins usable
+            }
+        }
+        Iterator<PasswordHasher> h = ServiceLoader.load(PasswordHasher.class).iterator();
+        while (hasNext(h)) {
+            try {
+                registry.register(h.next());
+            } catch (ServiceConfigurationError e) {
+                // A broken plug-in leaves the built-ins usable
+            }
+        }
+        return registry;
+    }
+
+    private static boolean hasNext(Iterator<?> services) {
+        try {
+            return services.hasNext();
+        } catch (ServiceConfigurationError e) {
+            return false;
+        }
+    }
+}
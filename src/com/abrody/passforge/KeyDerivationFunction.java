@@ -0,0 +1,29 @@
+package com.abrody.passforge;
+
+import java.security.GeneralSecurityException;
+import java.util.Set;
+
+/**
+ * Turns a password and salt into key bytes. Implementations register
+ * with KdfRegistry, either directly or as a java.util.ServiceLoader
+ * service, and must be safe to call from any number of threads.
+ */
+public interface KeyDerivationFunction {
+    /**
+     * The algorithm this implements, such as PBKDF2.
+     */
+    String getAlgorithm();
+
+    Set<KdfCapability> getCapabilities();
+
+    /**
+     * @param password the password bytes; not kept after the call
+     * @param salt the salt
+     * @param parameters cost settings for getAlgorithm()
+     * @param keyLengthBytes how many key bytes to produce
+     * @throws java.security.InvalidAlgorithmParameterException if the
+     *             parameters are for another algorithm or out of range
+     */
+    byte[] deriveKey(byte[] password, byte[] salt, KdfParameters parameters,
+            int keyLengthBytes) throws GeneralSecurityException;
+}
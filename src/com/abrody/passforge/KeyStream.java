@@ -0,0 +1,231 @@
+package com.abrody.passforge;
+
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * PBKDF2 output of unbounded length, computed a block at a time as it is
+ * read. For consumers that only learn how much key they need as they go,
+ * such as PasswordPolicy, or that split one derivation into several keys.
+ *
+ * Each block is the PBKDF2 block of the same index, so the first n bytes
+ * are exactly what PBKDF2KeyGenerator gives for a key of n bytes. Blocks
+ * are computed when first touched, by reading or by block(), and cached,
+ * so none is ever computed twice; reading past what is cached only costs
+ * the new blocks. The first blocks are cached in an array; any past
+ * DENSE_BLOCKS go in a map, so a read far into the stream costs only the
+ * blocks it touches. Reads move a position forward like an InputStream;
+ * block() and getBytes() read at any offset without moving it.
+ *
+ * A stream may be shared between threads; its methods are synchronized.
+ * clear() wipes the cached key when it is no longer needed.
+ */
+public class KeyStream implements PasswordPolicy.ByteSource {
+    /** PBKDF2 counts blocks in 32 bits, from 1. */
+    public static final long MAX_BLOCKS = 0xffffffffL;
+
+    // Blocks cached in the array rather than the map
+    private static final int DENSE_BLOCKS = 1024;
+
+    private final Mac keyedHmac;
+    private final byte[] salt;
+    private final int iterations;
+    private final int blockLength;
+
+    private byte[][] blocks = new byte[4][];
+    private Map<Long, byte[]> sparse;
+    private int computed;
+    private long position;
+
+    /**
+     * @param keyedHmac an HMAC initialised with the secret, for this
+     *            stream's use only
+     */
+    KeyStream(Mac keyedHmac, byte[] salt, int iterations) {
+        if (salt.length == 0) {
+            throw new IllegalArgumentException("Salt is empty");
+        }
+        if (iterations <= 0) {
+            throw new IllegalArgumentException("Iterations must be positive");
+        }
+        this.keyedHmac = keyedHmac;
+        this.salt = salt.clone();
+        this.iterations = iterations;
+        this.blockLength = keyedHmac.getMacLength();
+    }
+
+    public KeyStream(String secret, byte[] salt, int iterations, String hmacAlgorithm)
+            throws GeneralSecurityException {
+        this(keyed(secret, hmacAlgorithm), salt, iterations);
+    }
+
+    private static Mac keyed(String secret, String hmacAlgorithm) throws GeneralSecurityException {
+        Mac mac = Mac.getInstance(hmacAlgorithm);
+        mac.init(new SecretKeySpec(secret.getBytes(), mac.getAlgorithm()));
+        return mac;
+    }
+
+    /**
+     * The next byte.
+     */
+    public synchronized byte nextByte() throws GeneralSecurityException {
+        byte[] block = blockAt(position);
+        return block[(int) (position++ % blockLength)];
+    }
+
+    /**
+     * Reads len bytes into b at off and moves past them.
+     */
+    public synchronized void read(byte[] b, int off, int len) throws GeneralSecurityException {
+        copy(position, b, off, len);
+        position += len;
+    }
+
+    /**
+     * The next n bytes, as a new array, such as one key of a split.
+     */
+    public synchronized byte[] read(int n) throws GeneralSecurityException {
+        byte[] b = new byte[n];
+        read(b, 0, n);
+        return b;
+    }
+
+    /**
+     * n bytes from offset, without moving the position.
+     */
+    public synchronized byte[] getBytes(long offset, int n) throws GeneralSecurityException {
+        byte[] b = new byte[n];
+        copy(offset, b, 0, n);
+        return b;
+    }
+
+    /**
+     * A copy of PBKDF2 block index, counting from 1.
+     */
+    public synchronized byte[] block(int index) throws GeneralSecurityException {
+        if (index < 1) {
+            throw new IllegalArgumentException("Blocks count from 1");
+        }
+        return compute(index).clone();
+    }
+
+    /**
+     * How far reading has got, in bytes.
+     */
+    public synchronized long getPosition() {
+        return position;
+    }
+
+    /**
+     * Moves the read position; blocks are only computed when read.
+     */
+    public synchronized void seek(long newPosition) {
+        if (newPosition < 0 || newPosition > MAX_BLOCKS * blockLength) {
+            throw new IllegalArgumentException("Position out of range: " + newPosition);
+        }
+        position = newPosition;
+    }
+
+    /**
+     * Bytes in a block: the HMAC's output length.
+     */
+    public int getBlockLength() {
+        return blockLength;
+    }
+
+    /**
+     * How many blocks have been computed so far.
+     */
+    public synchronized int getBlocksComputed() {
+        return computed;
+    }
+
+    public int getIterations() {
+        return iterations;
+    }
+
+    /**
+     * The first n bytes, the same as a PBKDF2 key of n bytes.
+     */
+    public byte[] toKey(int n) throws GeneralSecurityException {
+        return getBytes(0, n);
+    }
+
+    /**
+     * Wipes the cached blocks. Later reads compute them again.
+     */
+    public synchronized void clear() {
+        for (int i = 0; i < blocks.length; i++) {
+            if (blocks[i] != null) {
+                Arrays.fill(blocks[i], (byte) 0);
+                blocks[i] = null;
+            }
+        }
+        if (sparse != null) {
+            for (byte[] block : sparse.values()) {
+                Arrays.fill(block, (byte) 0);
+            }
+            sparse = null;
+        }
+        computed = 0;
+    }
+
+    private void copy(long offset, byte[] b, int off, int len) throws GeneralSecurityException {
+        if (offset < 0 || len < 0 || off < 0 || off + len > b.length) {
+            throw new IndexOutOfBoundsException();
+        }
+        while (len > 0) {
+            byte[] block = blockAt(offset);
+            int inBlock = (int) (offset % blockLength);
+            int n = Math.min(len, blockLength - inBlock);
+            System.arraycopy(block, inBlock, b, off, n);
+            offset += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    private byte[] blockAt(long offset) throws GeneralSecurityException {
+        long index = offset / blockLength + 1;
+        if (index > MAX_BLOCKS) {
+            throw new GeneralSecurityException("Past the end of what PBKDF2 can derive");
+        }
+        return compute(index);
+    }
+
+    /**
+     * Block index from the cache, computing it first if need be.
+     */
+    private byte[] compute(long index) throws GeneralSecurityException {
+        byte[] block;
+        if (index <= DENSE_BLOCKS) {
+            if (index > blocks.length) {
+                blocks = Arrays.copyOf(blocks, Math.min(DENSE_BLOCKS,
+                        Math.max((int) index, blocks.length * 2)));
+            }
+            block = blocks[(int) index - 1];
+        } else {
+            block = sparse == null ? null : sparse.get(index);
+        }
+        if (block == null) {
+            block = new byte[blockLength];
+            // PBKDF2 writes the index as 32 bits, so past 2^31 - 1 the cast is still right
+            PBKDF2KeyGenerator.deriveBlock(keyedHmac, salt, iterations, (int) index, block);
+            if (index <= DENSE_BLOCKS) {
+                blocks[(int) index - 1] = block;
+            } else {
+                if (sparse == null) {
+                    sparse = new HashMap<Long, byte[]>();
+                }
+                sparse.put(index, block);
+            }
+            computed++;
+        }
+        return block;
+    }
+}
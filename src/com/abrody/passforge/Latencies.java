@@ -0,0 +1,50 @@
+package com.abrody.passforge;
+
+/**
+ * Where the library records how long its operations take.
+ *
+ * Every PBKDF2, scrypt and Argon2 derivation, bcrypt hash and bcrypt
+ * check lands in one of these histograms, timed with the clock set here. PASSFORGE covers each
+ * whole PassforgeEngine.derive, which Passforge.generatePassword uses,
+ * Base64 included, timed with the engine's own clock.
+ */
+public final class Latencies {
+    public static final LatencyHistogram PBKDF2 = new LatencyHistogram("pbkdf2");
+    public static final LatencyHistogram SCRYPT = new LatencyHistogram("scrypt");
+    public static final LatencyHistogram ARGON2 = new LatencyHistogram("argon2id");
+    public static final LatencyHistogram BCRYPT_HASH = new LatencyHistogram("bcrypt.hashpw");
+    public static final LatencyHistogram BCRYPT_CHECK = new LatencyHistogram("bcrypt.checkpw");
+    public static final LatencyHistogram PASSFORGE = new LatencyHistogram("passforge.derive");
+
+    private static volatile NanoClock clock = NanoClock.SYSTEM;
+
+    private Latencies() {
+    }
+
+    public static NanoClock getClock() {
+        return clock;
+    }
+
+    /**
+     * Changes the clock used to time library operations, such as to an
+     * Android uptime clock.
+     */
+    public static void setClock(NanoClock newClock) {
+        if (newClock == null) {
+            throw new NullPointerException("clock");
+        }
+        clock = newClock;
+    }
+
+    public static LatencyHistogram[] all() {
+        return new LatencyHistogram[] {
+            PBKDF2, SCRYPT, ARGON2, BCRYPT_HASH, BCRYPT_CHECK, PASSFORGE
+        };
+    }
+
+    public static void resetAll() {
+        for (LatencyHistogram histogram : all()) {
+            histogram.reset();
+        }
+    }
+}
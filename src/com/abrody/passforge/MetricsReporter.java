@@ -0,0 +1,10 @@
+package com.abrody.passforge;
+
+/**
+ * Receives PassforgeMetrics snapshots, to forward them to a monitoring
+ * system. Register with PassforgeMetrics.addReporter; report() is called
+ * whenever PassforgeMetrics.report() runs, on that thread.
+ */
+public interface MetricsReporter {
+    void report(PassforgeMetrics.Snapshot snapshot);
+}
@@ -0,0 +1,26 @@
+package com.abrody.passforge;
+
+/**
+ * A monotonic clock for timing derivations, in nanoseconds.
+ *
+ * Only differences between two readings mean anything. SYSTEM uses
+ * System.nanoTime(); on Android, android.os.SystemClock.elapsedRealtimeNanos()
+ * can be plugged in instead:
+ *
+ * <pre>
+ * NanoClock androidClock = new NanoClock() {
+ *     public long nanoTime() {
+ *         return android.os.SystemClock.elapsedRealtimeNanos();
+ *     }
+ * };
+ * </pre>
+ */
+public interface NanoClock {
+    NanoClock SYSTEM = new NanoClock() {
+        public long nanoTime() {
+            return System.nanoTime();
+        }
+    };
+
+    long nanoTime();
+}
@@ -55,54 +55,116 @@ public class PBKDF2KeyGenerator {
 		this.hmac = Mac.getInstance(hmacAlgorith);
 	}
 
+	public PBKDF2KeyGenerator(int keyLengthBytes, Pbkdf2Parameters parameters) throws GeneralSecurityException {
+		this(keyLengthBytes, parameters.getIterations(), parameters.getHmacAlgorithm());
+	}
+
 	public byte[] generateKey(String secret, byte[] salt) throws GeneralSecurityException {
 		SecretKey key = new SecretKeySpec(secret.getBytes(), hmac.getAlgorithm());
+		hmac.init(key);
+		return derive(hmac, salt, iterations, keyLengthBytes);
+	}
+
+	/**
+	 * This generator's PBKDF2 output for secret and salt as a KeyStream,
+	 * for when keyLengthBytes isn't known up front. The stream has its
+	 * own HMAC, so this generator stays free for other calls.
+	 */
+	public KeyStream keyStream(String secret, byte[] salt) throws GeneralSecurityException {
+		return new KeyStream(secret, salt, iterations, hmac.getAlgorithm());
+	}
+
+	/**
+	 * PBKDF2 with an HMAC that has already been initialised with the
+	 * secret. doFinal() leaves the Mac reset but still keyed, so the key
+	 * schedule is only set up once rather than once per iteration. The
+	 * Mac is used without synchronisation; give each thread its own.
+	 */
+	public static byte[] derive(Mac keyedHmac, byte[] salt, int iterations, int keyLengthBytes) throws GeneralSecurityException {
+		Timing timing = Timing.start(PassforgeEvents.DERIVE);
+		boolean succeeded = false;
+		try {
+			byte[] result = pbkdf2(keyedHmac, salt, iterations, keyLengthBytes);
+			succeeded = true;
+			return result;
+		} finally {
+			timing.derive(Latencies.PBKDF2, keyedHmac.getAlgorithm(), iterations,
+			    iterations, keyLengthBytes, succeeded);
+		}
+	}
+
+	static byte[] pbkdf2(Mac keyedHmac, byte[] salt, int iterations, int keyLengthBytes) throws GeneralSecurityException {
+		int macLength = keyedHmac.getMacLength();
 		byte[] result = new byte[keyLengthBytes];
 		byte[] initialHashInput = new byte[salt.length + 4];
-		byte[] hash1 = new byte[hmac.getMacLength()];
-		byte[] hash2 = new byte[hmac.getMacLength()];
-		byte[] intermediateResult = new byte[hmac.getMacLength()];
+		byte[] hash = new byte[macLength];
+		byte[] intermediateResult = new byte[macLength];
 
 		System.arraycopy(salt, 0, initialHashInput, 0, salt.length);
 
 		for (int count = 1, bytesRemaining = keyLengthBytes; bytesRemaining > 0; count++) {
 
-			initialHashInput[salt.length + 0] = (byte)(count >>> 24);
-			initialHashInput[salt.length + 1] = (byte)(count >>> 16);
-			initialHashInput[salt.length + 2] = (byte)(count >>> 8);
-			initialHashInput[salt.length + 3] = (byte)(count);
-
-			hmac.init(key);
-			hmac.update(initialHashInput);
-			hmac.doFinal(hash1, 0);
-			System.arraycopy(hash1, 0, intermediateResult, 0, hash1.length);
-
-			for (int iter = 1; iter < this.iterations; iter++) {
-				hmac.init(key);
-				hmac.update(hash1);
-				hmac.doFinal(hash2, 0);
-				System.arraycopy(hash2, 0, hash1, 0, hash2.length);
-				for (int n = 0; n < hash1.length; n++) {
-					intermediateResult[n] ^= hash1[n];
-				}
-			}
+			block(keyedHmac, initialHashInput, salt.length, iterations, count, hash, intermediateResult);
 
-			int len = intermediateResult.length < bytesRemaining ? intermediateResult.length : bytesRemaining;
+			int len = macLength < bytesRemaining ? macLength : bytesRemaining;
 			int offset = keyLengthBytes - bytesRemaining;
 			System.arraycopy(intermediateResult, 0, result, offset, len);
-			bytesRemaining -= intermediateResult.length;
+			bytesRemaining -= macLength;
 
 		}
 
 		// futile(?) attempt to clean up memory
-		Arrays.fill(hash1, (byte)0);
-		Arrays.fill(hash2, (byte)0);
+		Arrays.fill(hash, (byte)0);
 		Arrays.fill(intermediateResult, (byte)0);
 		Arrays.fill(initialHashInput, (byte)0);
 
 		return result;
 	}
 
+	/**
+	 * Computes block number blockIndex (counting from 1) of the PBKDF2
+	 * output into block, which must be getMacLength() bytes long. Blocks
+	 * are independent, so a caller that finds it needs more key can
+	 * compute just the next block rather than derive everything again.
+	 * Untimed; callers record their own metrics.
+	 */
+	static void deriveBlock(Mac keyedHmac, byte[] salt, int iterations, int blockIndex, byte[] block) throws GeneralSecurityException {
+		byte[] initialHashInput = new byte[salt.length + 4];
+		byte[] hash = new byte[keyedHmac.getMacLength()];
+
+		System.arraycopy(salt, 0, initialHashInput, 0, salt.length);
+		block(keyedHmac, initialHashInput, salt.length, iterations, blockIndex, hash, block);
+
+		Arrays.fill(hash, (byte)0);
+		Arrays.fill(initialHashInput, (byte)0);
+	}
+
+	/**
+	 * F(P, S, c, count) from the spec, into intermediateResult. The salt
+	 * is already at the start of initialHashInput; hash is scratch.
+	 */
+	private static void block(Mac keyedHmac, byte[] initialHashInput, int saltLength, int iterations, int count, byte[] hash, byte[] intermediateResult) throws GeneralSecurityException {
+		int macLength = hash.length;
+
+		initialHashInput[saltLength + 0] = (byte)(count >>> 24);
+		initialHashInput[saltLength + 1] = (byte)(count >>> 16);
+		initialHashInput[saltLength + 2] = (byte)(count >>> 8);
+		initialHashInput[saltLength + 3] = (byte)(count);
+
+		keyedHmac.update(initialHashInput);
+		keyedHmac.doFinal(hash, 0);
+		System.arraycopy(hash, 0, intermediateResult, 0, macLength);
+
+		for (int iter = 1; iter < iterations; iter++) {
+			// update() has consumed hash before doFinal() overwrites it
+			keyedHmac.update(hash);
+			keyedHmac.doFinal(hash, 0);
+			for (int n = 0; n < macLength; n++) {
+				intermediateResult[n] ^= hash[n];
+			}
+		}
+	}
+
 	public int getKeyLengthBytes() {
 		return keyLengthBytes;
 	}
@@ -115,4 +177,12 @@ public class PBKDF2KeyGenerator {
 		return hmac;
 	}
 
+	/**
+	 * This generator's settings, for use with KeyDerivationFunction
+	 * implementations from KdfRegistry.
+	 */
+	public Pbkdf2Parameters getParameters() {
+		return new Pbkdf2Parameters(hmac.getAlgorithm(), iterations);
+	}
+
 }
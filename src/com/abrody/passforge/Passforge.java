@@ -20,7 +20,11 @@ class PassforgeException extends GeneralSecurityException {
  * call to System.currentTimeMillis();
  *
  * If only Java had functions as first-class objects...
+ *
+ * @deprecated boxes a Long per reading and follows wall-clock jumps;
+ *             use a NanoClock
  */
+@Deprecated
 class StandardSystemClock implements Callable<Long> {
     public Long call() {
         return System.currentTimeMillis();
@@ -37,15 +41,18 @@ class AndroidSystemClock implements Callable<Long> {
 */
 
 public class Passforge {
-    private long startTime;
-    private long endTime;
-    private PBKDF2KeyGenerator generator;
-    private String password;
+    private long startNanos;
+    private long endNanos;
+    private boolean started;
+    private boolean finished;
+    private PassforgeEngine engine;
     private byte[] salt;
     private int length;
     private String generatedPassword;
+    private KdfParameters parameters;
     public int iterations;
-    Callable<Long> getMillisFunc;
+    NanoClock clock;
+    private Callable<Long> getMillisFunc;
 
     public class PassforgeException extends Exception {
         private static final long serialVersionUID = 1L;
@@ -56,16 +63,32 @@ public class Passforge {
 
     public Passforge(String password, byte[] salt, int iterations, int length)
             throws GeneralSecurityException {
-        this(password, salt, iterations, length, new StandardSystemClock());
+        this(password, salt, iterations, length, NanoClock.SYSTEM);
+    }
+
+    /**
+     * @deprecated use the NanoClock constructor
+     */
+    @Deprecated
+    public Passforge(String password, byte[] salt, int iterations, int length,
+            final Callable<Long> getMillis) throws GeneralSecurityException {
+        this(password, salt, iterations, length, new NanoClock() {
+            public long nanoTime() {
+                try {
+                    return getMillis.call() * 1000000L;
+                } catch (Exception e) {
+                    // Exception is discarded
+                    return -1;
+                }
+            }
+        });
+        this.getMillisFunc = getMillis;
     }
 
     public Passforge(String password, byte[] salt, int iterations, int length,
-            Callable<Long> getMillis) throws GeneralSecurityException {
+            NanoClock clock) throws GeneralSecurityException {
 
         // Argument validation
-        if (password.length() == 0) {
-            throw new IllegalArgumentException("Password is empty");
-        }
         if (salt.length == 0) {
             throw new IllegalArgumentException("Salt is empty");
         }
@@ -76,38 +99,85 @@ public class Passforge {
             length = 1;
         }
 
-        int byteLength = (int) Math.ceil((float) length * 3 / 4);
-        this.generator = new PBKDF2KeyGenerator(byteLength, iterations, "HMACSHA1");
-
-        this.password = password;
+        this.engine = new PassforgeEngine(password, PassforgeEngine.DEFAULT_HMAC, clock);
         this.salt = salt;
         this.iterations = iterations;
         this.length = length;
-        this.getMillisFunc = getMillis;
+        this.clock = clock;
+    }
 
-        startTime = 0;
-        endTime = 0;
+    /**
+     * Derives with any algorithm in the KdfRegistry rather than PBKDF2.
+     */
+    public Passforge(String password, byte[] salt, KdfParameters parameters, int length)
+            throws GeneralSecurityException {
+        this(password, salt, parameters.getCost(), length, NanoClock.SYSTEM);
+        this.parameters = parameters;
     }
 
     public String generatePassword() throws GeneralSecurityException {
-        byte[] derivedKey = deriveKey();
-        generatedPassword = Base64.encodeBytes(derivedKey).substring(0, length);
+        start();
+        generatedPassword = engine.derive(salt, getParameters(), length).getGeneratedPassword();
+        finish();
         return generatedPassword;
     }
 
+    /**
+     * Generates a password that follows policy instead of a Base64 prefix
+     * of the key; the policy's length replaces the one given to the
+     * constructor. Uses PBKDF2 with the current iterations.
+     */
+    public String generatePassword(PasswordPolicy policy) throws GeneralSecurityException {
+        start();
+        generatedPassword = engine.derive(salt, iterations, policy).getGeneratedPassword();
+        finish();
+        return generatedPassword;
+    }
+
+    /**
+     * The PBKDF2 output for this password and salt, read as far as
+     * needed; for splitting one derivation into several keys.
+     */
+    public KeyStream keyStream() throws GeneralSecurityException {
+        return engine.keyStream(salt, iterations);
+    }
+
     public byte[] deriveKey() throws GeneralSecurityException {
         byte[] derivedKey;
 
-        startTime = getMillis();
+        start();
 
-        derivedKey = generator.generateKey(password, salt);
+        derivedKey = engine.deriveKey(salt, getParameters(),
+                PassforgeEngine.keyLengthBytes(length));
 
-        endTime = getMillis();
+        finish();
 
         return derivedKey;
     }
 
+    private void start() {
+        finished = false;
+        startNanos = clock.nanoTime();
+        started = true;
+    }
+
+    private void finish() {
+        endNanos = clock.nanoTime();
+        finished = true;
+    }
+
+    /**
+     * The time from the Callable given to the constructor, or else the
+     * wall clock, in milliseconds.
+     *
+     * @deprecated follows wall-clock jumps; use getNanos() or
+     *             getElapsedNanos() for timing
+     */
+    @Deprecated
     public long getMillis() {
+        if (getMillisFunc == null) {
+            return System.currentTimeMillis();
+        }
         try {
             return getMillisFunc.call();
         } catch (Exception e) {
@@ -116,27 +186,82 @@ public class Passforge {
         }
     }
 
+    /**
+     * The current reading of this Passforge's NanoClock.
+     */
+    public long getNanos() {
+        return clock.nanoTime();
+    }
+
+    public long getElapsedNanos() {
+        if (!finished) {
+            return -1;
+        }
+        return endNanos - startNanos;
+    }
+
     public float getElapsedSeconds() {
-        if (startTime == 0 || endTime == 0) {
+        if (!finished) {
             return Float.NaN;
         }
-        return (float) (endTime - startTime) / 1000;
+        return (endNanos - startNanos) / 1e9f;
     }
 
     public float getCurrentElapsedSeconds() {
-        if (startTime == 0) {
+        if (!started) {
             return Float.NaN;
         }
-        return (getMillis() - startTime) / 1000;
+        return (clock.nanoTime() - startNanos) / 1e9f;
     }
 
     public String getGeneratedPassword() {
         return generatedPassword;
     }
 
-    public static void main(String[] args) throws GeneralSecurityException {
+    /**
+     * The parameters given to the constructor, or PBKDF2 with the
+     * current iterations.
+     */
+    public KdfParameters getParameters() {
+        if (parameters != null) {
+            return parameters;
+        }
+        return new Pbkdf2Parameters(engine.getHmacAlgorithm(), iterations);
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && args[0].equals("--batch")) {
+            PassforgeBatch.main(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        if (args.length > 0 && args[0].equals("--bulk")) {
+            PassforgeBulk.main(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        if (args.length > 0 && args[0].equals("--audit")) {
+            HashAudit.main(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        if (args.length > 0 && args[0].equals("--migrate")) {
+            RehashMigration.main(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        if (args.length > 0 && args[0].equals("--serve")) {
+            PassforgeServer.main(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        if (args.length > 0 && args[0].equals("--connect")) {
+            PassforgeClient.main(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
         if (args.length < 4) {
             System.out.println("usage: passforge PASSWORD SALT ITERATIONS LENGTH");
+            System.out.println("       " + PassforgeBatch.USAGE.substring("usage: ".length()));
+            System.out.println("       " + PassforgeBulk.USAGE.substring("usage: ".length()));
+            System.out.println("       " + HashAudit.USAGE.substring("usage: ".length()));
+            System.out.println(RehashMigration.USAGE.replace("usage: ", "       "));
+            System.out.println("       " + PassforgeServer.USAGE.substring("usage: ".length()));
+            System.out.println(PassforgeClient.USAGE.replace("usage: ", "       "));
             System.exit(1);
         }
         String pass = args[0];
@@ -0,0 +1,248 @@
+package com.abrody.passforge;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.security.GeneralSecurityException;
+import java.util.ArrayDeque;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Batch mode for the command line: derives many passwords in one JVM.
+ *
+ * Each input line is PASSWORD SALT ITERATIONS LENGTH, or, when a master
+ * password is given with -p, SALT [ITERATIONS LENGTH] with defaults from
+ * -i and -l. Blank lines and lines starting with # are skipped.
+ *
+ * Lines are derived in parallel, but results are written one per line in
+ * input order. A line that fails prints an empty line on stdout and the
+ * reason on stderr. Only a fixed window of lines is in flight at once, so
+ * memory stays flat however long the input is.
+ */
+public class PassforgeBatch {
+    public static final String USAGE =
+            "usage: passforge --batch [-t THREADS] [-p PASSWORD] [-i ITERATIONS] [-l LENGTH] [FILE]";
+
+    private static final int MAX_ENGINES = 16;
+    private static final int WINDOW_PER_THREAD = 4;
+
+    private final int threads;
+    private final String masterPassword;
+    private final int defaultIterations;
+    private final int defaultLength;
+
+    // Engines by master password, so repeated passwords are only keyed once.
+    // Only touched from the reading thread.
+    private final Map<String, PassforgeEngine> engines =
+            new LinkedHashMap<String, PassforgeEngine>(MAX_ENGINES, 0.75f, true) {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, PassforgeEngine> eldest) {
+                    return size() > MAX_ENGINES;
+                }
+            };
+
+    private int derived;
+    private int failed;
+
+    /**
+     * @param threads number of derivations to run at once
+     * @param masterPassword the password for every line, or null if each
+     *            line carries its own
+     * @param defaultIterations iterations for lines that don't give them,
+     *            or 0 for none
+     * @param defaultLength length for lines that don't give it, or 0 for none
+     */
+    public PassforgeBatch(int threads, String masterPassword,
+            int defaultIterations, int defaultLength) {
+        if (threads <= 0) {
+            throw new IllegalArgumentException("Thread count must be positive");
+        }
+        this.threads = threads;
+        this.masterPassword = masterPassword;
+        this.defaultIterations = defaultIterations;
+        this.defaultLength = defaultLength;
+    }
+
+    /**
+     * Derives every line of input, writing results to out and problems
+     * and the closing summary to err.
+     *
+     * @return the number of lines that failed
+     */
+    public int run(Reader input, PrintStream out, PrintStream err)
+            throws IOException, InterruptedException {
+        BufferedReader reader = new BufferedReader(input);
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        ArrayDeque<Pending> window = new ArrayDeque<Pending>();
+        int windowSize = threads * WINDOW_PER_THREAD;
+        long start = System.nanoTime();
+
+        try {
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                line = line.trim();
+                if (line.length() == 0 || line.startsWith("#")) {
+                    continue;
+                }
+
+                if (window.size() >= windowSize) {
+                    write(window.removeFirst(), out, err);
+                }
+                window.addLast(submit(pool, line, lineNumber));
+            }
+
+            while (!window.isEmpty()) {
+                write(window.removeFirst(), out, err);
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        out.flush();
+
+        double seconds = (System.nanoTime() - start) / 1e9;
+        err.println(String.format("%d derived, %d failed in %.3f s (%.1f/s)",
+                derived, failed, seconds, seconds > 0 ? derived / seconds : 0.0));
+        return failed;
+    }
+
+    private Pending submit(ExecutorService pool, String line, int lineNumber) {
+        final String[] fields = line.split("\\s+");
+        try {
+            final PassforgeEngine engine;
+            final byte[] salt;
+            final int iterations;
+            final int length;
+            int f;
+
+            if (masterPassword != null) {
+                engine = engine(masterPassword);
+                f = 0;
+            } else {
+                engine = engine(fields[0]);
+                f = 1;
+            }
+            if (fields.length == f + 1) {
+                if (defaultIterations <= 0 || defaultLength <= 0) {
+                    throw new IllegalArgumentException("missing ITERATIONS and LENGTH");
+                }
+                iterations = defaultIterations;
+                length = defaultLength;
+            } else if (fields.length == f + 3) {
+                iterations = Integer.parseInt(fields[f + 1]);
+                length = Integer.parseInt(fields[f + 2]);
+            } else {
+                throw new IllegalArgumentException("expected " + (f == 0
+                        ? "SALT [ITERATIONS LENGTH]" : "PASSWORD SALT ITERATIONS LENGTH"));
+            }
+            salt = fields[f].getBytes();
+
+            final long submitted = System.nanoTime();
+            Future<PassforgeResult> result = pool.submit(new Callable<PassforgeResult>() {
+                public PassforgeResult call() throws GeneralSecurityException {
+                    PassforgeMetrics.queueWait(System.nanoTime() - submitted);
+                    return engine.derive(salt, iterations, length);
+                }
+            });
+            return new Pending(lineNumber, result, null);
+        } catch (GeneralSecurityException e) {
+            return new Pending(lineNumber, null, e);
+        } catch (RuntimeException e) {
+            return new Pending(lineNumber, null, e);
+        }
+    }
+
+    private PassforgeEngine engine(String password) throws GeneralSecurityException {
+        PassforgeEngine engine = engines.get(password);
+        if (engine == null) {
+            engine = new PassforgeEngine(password);
+            engines.put(password, engine);
+        }
+        return engine;
+    }
+
+    private void write(Pending pending, PrintStream out, PrintStream err)
+            throws InterruptedException {
+        Throwable error = pending.error;
+        if (error == null) {
+            try {
+                out.println(pending.result.get().getGeneratedPassword());
+                derived++;
+                return;
+            } catch (ExecutionException e) {
+                error = e.getCause();
+            }
+        }
+        out.println();
+        err.println("line " + pending.lineNumber + ": " + error.getMessage());
+        failed++;
+    }
+
+    private static class Pending {
+        final int lineNumber;
+        final Future<PassforgeResult> result;
+        final Throwable error;
+
+        Pending(int lineNumber, Future<PassforgeResult> result, Throwable error) {
+            this.lineNumber = lineNumber;
+            this.result = result;
+            this.error = error;
+        }
+    }
+
+    /**
+     * Entry point for passforge --batch; args are the arguments after it.
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int threads = Runtime.getRuntime().availableProcessors();
+        String password = null;
+        int iterations = 0;
+        int length = 0;
+        String file = null;
+
+        try {
+            for (int i = 0; i < args.length; i++) {
+                String arg = args[i];
+                if (arg.equals("-t") && i + 1 < args.length) {
+                    threads = Integer.parseInt(args[++i]);
+                } else if (arg.equals("-p") && i + 1 < args.length) {
+                    password = args[++i];
+                } else if (arg.equals("-i") && i + 1 < args.length) {
+                    iterations = Integer.parseInt(args[++i]);
+                } else if (arg.equals("-l") && i + 1 < args.length) {
+                    length = Integer.parseInt(args[++i]);
+                } else if (file == null && !arg.startsWith("-")) {
+                    file = arg;
+                } else {
+                    throw new IllegalArgumentException(arg);
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println(USAGE);
+            System.exit(1);
+        }
+
+        Reader input = new InputStreamReader(
+                file == null || file.equals("-") ? System.in : new FileInputStream(file));
+        int failed;
+        try {
+            failed = new PassforgeBatch(threads, password, iterations, length)
+                    .run(input, System.out, System.err);
+        } finally {
+            input.close();
+        }
+        System.exit(failed == 0 ? 0 : 2);
+    }
+}
@@ -0,0 +1,326 @@
+package com.abrody.passforge;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Bulk mode for the command line: derives a key for every id in a long
+ * list, such as the sites or devices to provision, into a
+ * DerivationFile that consumers map and read in place.
+ *
+ * Each input line is ID [ITERATIONS], the id being the salt and the
+ * master password coming from -p. Blank lines and lines starting with #
+ * are skipped; lines that can't be read are reported and left out.
+ *
+ * The ids are read first, so that the file can be sized and every record
+ * given its place. Records are then derived in chunks on a pool of
+ * threads, each chunk mapped and written by one thread, so writers never
+ * share a region or a lock. A record whose derivation fails is written
+ * with STATUS_FAILED. The index goes in last, and the header is only
+ * marked complete once everything else is on disk, so an interrupted run
+ * leaves a file that DerivationFile refuses to open.
+ */
+public class PassforgeBulk {
+    public static final String USAGE =
+            "usage: passforge --bulk OUTPUT [-t THREADS] -p PASSWORD [-i ITERATIONS] [-k KEY_BYTES] [FILE]";
+
+    public static final int DEFAULT_KEY_BYTES = 32;
+
+    private static final int CHUNK_RECORDS = 1024;
+
+    private final int threads;
+    private final PassforgeEngine engine;
+    private final int defaultIterations;
+    private final int keyLength;
+    private final int recordSize;
+
+    // Lines left out, and those plus records that failed
+    private int unreadable;
+    private int failed;
+
+    /**
+     * @param threads number of derivations to run at once
+     * @param engine the engine keyed with the master password
+     * @param defaultIterations iterations for lines that don't give them,
+     *            or 0 for none
+     * @param keyLength bytes of key per record
+     */
+    public PassforgeBulk(int threads, PassforgeEngine engine,
+            int defaultIterations, int keyLength) {
+        if (threads <= 0) {
+            throw new IllegalArgumentException("Thread count must be positive");
+        }
+        if (keyLength <= 0) {
+            throw new IllegalArgumentException("Key length must be positive");
+        }
+        this.threads = threads;
+        this.engine = engine;
+        this.defaultIterations = defaultIterations;
+        this.keyLength = keyLength;
+        this.recordSize = DerivationFile.recordSize(keyLength, DerivationFile.DEFAULT_ID_BYTES);
+    }
+
+    /**
+     * Derives every line of input into output, writing problems and the
+     * closing summary to err.
+     *
+     * @return the number of lines that failed
+     */
+    public int run(Reader input, Path output, PrintStream err)
+            throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        List<byte[]> ids = new ArrayList<byte[]>();
+        List<Integer> iterations = new ArrayList<Integer>();
+        read(input, ids, iterations, err);
+
+        long count = ids.size();
+        long recordsOffset = DerivationFile.HEADER_BYTES;
+        long indexOffset = recordsOffset + count * recordSize;
+
+        FileChannel channel = FileChannel.open(output, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            channel.truncate(0);
+            MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_WRITE,
+                    0, DerivationFile.HEADER_BYTES);
+            writeHeader(header, count, recordsOffset, indexOffset);
+
+            List<Future<Integer>> chunks = new ArrayList<Future<Integer>>();
+            for (int from = 0; from < count; from += CHUNK_RECORDS) {
+                chunks.add(pool.submit(new Chunk(channel, recordsOffset, ids, iterations,
+                        from, (int) Math.min(count, from + CHUNK_RECORDS), err)));
+            }
+            for (Future<Integer> chunk : chunks) {
+                try {
+                    failed += chunk.get();
+                } catch (ExecutionException e) {
+                    throw new IOException("Writing records failed", e.getCause());
+                }
+            }
+
+            writeIndex(channel, indexOffset, ids);
+
+            header.putInt(8, DerivationFile.FLAG_COMPLETE);
+            header.force();
+        } finally {
+            pool.shutdownNow();
+            channel.close();
+        }
+
+        double seconds = (System.nanoTime() - start) / 1e9;
+        err.println(String.format("%d derived, %d failed in %.3f s (%.1f/s)",
+                count - (failed - unreadable), failed, seconds,
+                seconds > 0 ? count / seconds : 0.0));
+        return failed;
+    }
+
+    private void read(Reader input, List<byte[]> ids, List<Integer> iterations, PrintStream err)
+            throws IOException {
+        BufferedReader reader = new BufferedReader(input);
+        String line;
+        int lineNumber = 0;
+        while ((line = reader.readLine()) != null) {
+            lineNumber++;
+            line = line.trim();
+            if (line.length() == 0 || line.startsWith("#")) {
+                continue;
+            }
+            String[] fields = line.split("\\s+");
+            try {
+                int n;
+                if (fields.length == 1) {
+                    if (defaultIterations <= 0) {
+                        throw new IllegalArgumentException("missing ITERATIONS");
+                    }
+                    n = defaultIterations;
+                } else if (fields.length == 2) {
+                    n = Integer.parseInt(fields[1]);
+                } else {
+                    throw new IllegalArgumentException("expected ID [ITERATIONS]");
+                }
+                byte[] id = fields[0].getBytes();
+                if (id.length > DerivationFile.DEFAULT_ID_BYTES) {
+                    throw new IllegalArgumentException("id longer than "
+                            + DerivationFile.DEFAULT_ID_BYTES + " bytes");
+                }
+                ids.add(id);
+                iterations.add(Math.max(1, n));
+            } catch (IllegalArgumentException e) {
+                err.println("line " + lineNumber + ": " + e.getMessage());
+                unreadable++;
+                failed++;
+            }
+        }
+    }
+
+    private void writeHeader(MappedByteBuffer header, long count,
+            long recordsOffset, long indexOffset) {
+        header.put(DerivationFile.MAGIC);
+        header.putInt(DerivationFile.VERSION);
+        header.putInt(0);
+        header.putInt(recordSize);
+        header.putInt(keyLength);
+        header.putInt(DerivationFile.DEFAULT_ID_BYTES);
+        header.putLong(count);
+        header.putLong(recordsOffset);
+        header.putLong(indexOffset);
+        byte[] name = engine.getHmacAlgorithm().getBytes();
+        header.put(name, 0, Math.min(name.length, DerivationFile.HMAC_NAME_BYTES));
+        header.force();
+    }
+
+    /**
+     * Writes the index: each id's hash and record number, sorted.
+     */
+    private void writeIndex(FileChannel channel, long indexOffset, List<byte[]> ids)
+            throws IOException {
+        long[] entries = new long[ids.size()];
+        for (int i = 0; i < entries.length; i++) {
+            byte[] id = ids.get(i);
+            entries[i] = ((long) DerivationFile.hash(id, 0, id.length) << 32) | i;
+        }
+        Arrays.sort(entries);
+
+        int perMapping = (int) (DerivationFile.MAX_MAPPING / 8);
+        for (int from = 0; from < entries.length; from += perMapping) {
+            int n = Math.min(perMapping, entries.length - from);
+            MappedByteBuffer index = channel.map(FileChannel.MapMode.READ_WRITE,
+                    indexOffset + (long) from * 8, (long) n * 8);
+            for (int i = 0; i < n; i++) {
+                index.putLong(entries[from + i]);
+            }
+            index.force();
+        }
+    }
+
+    /**
+     * Derives and writes records from up to to, through a mapping of
+     * just their region.
+     */
+    private class Chunk implements Callable<Integer> {
+        private final FileChannel channel;
+        private final long recordsOffset;
+        private final List<byte[]> ids;
+        private final List<Integer> iterations;
+        private final int from;
+        private final int to;
+        private final PrintStream err;
+
+        Chunk(FileChannel channel, long recordsOffset, List<byte[]> ids,
+                List<Integer> iterations, int from, int to, PrintStream err) {
+            this.channel = channel;
+            this.recordsOffset = recordsOffset;
+            this.ids = ids;
+            this.iterations = iterations;
+            this.from = from;
+            this.to = to;
+            this.err = err;
+        }
+
+        public Integer call() throws IOException {
+            MappedByteBuffer region = channel.map(FileChannel.MapMode.READ_WRITE,
+                    recordsOffset + (long) from * recordSize, (long) (to - from) * recordSize);
+            int chunkFailed = 0;
+            for (int i = from; i < to; i++) {
+                byte[] id = ids.get(i);
+                int n = iterations.get(i);
+                byte[] key = null;
+                try {
+                    key = engine.deriveKey(id, n, keyLength);
+                } catch (GeneralSecurityException e) {
+                    err.println("record " + i + ": " + e.getMessage());
+                    chunkFailed++;
+                } catch (RuntimeException e) {
+                    err.println("record " + i + ": " + e.getMessage());
+                    chunkFailed++;
+                }
+
+                region.position((i - from) * recordSize);
+                region.put(key != null ? DerivationFile.STATUS_OK : DerivationFile.STATUS_FAILED);
+                region.put((byte) id.length);
+                region.putShort((short) 0);
+                region.putInt(n);
+                region.put(id);
+                region.position((i - from) * recordSize
+                        + DerivationFile.RECORD_ID_OFFSET + DerivationFile.DEFAULT_ID_BYTES);
+                if (key != null) {
+                    region.put(key);
+                    Arrays.fill(key, (byte) 0);
+                }
+            }
+            region.force();
+            return chunkFailed;
+        }
+    }
+
+    /**
+     * Entry point for passforge --bulk; args are the arguments after it.
+     */
+    public static void main(String[] args)
+            throws IOException, InterruptedException, GeneralSecurityException {
+        int threads = Runtime.getRuntime().availableProcessors();
+        String password = null;
+        int iterations = 0;
+        int keyLength = DEFAULT_KEY_BYTES;
+        String output = null;
+        String file = null;
+
+        try {
+            for (int i = 0; i < args.length; i++) {
+                String arg = args[i];
+                if (arg.equals("-t") && i + 1 < args.length) {
+                    threads = Integer.parseInt(args[++i]);
+                } else if (arg.equals("-p") && i + 1 < args.length) {
+                    password = args[++i];
+                } else if (arg.equals("-i") && i + 1 < args.length) {
+                    iterations = Integer.parseInt(args[++i]);
+                } else if (arg.equals("-k") && i + 1 < args.length) {
+                    keyLength = Integer.parseInt(args[++i]);
+                } else if (output == null && !arg.startsWith("-")) {
+                    output = arg;
+                } else if (file == null && !arg.startsWith("-")) {
+                    file = arg;
+                } else {
+                    throw new IllegalArgumentException(arg);
+                }
+            }
+            if (output == null || password == null) {
+                throw new IllegalArgumentException();
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println(USAGE);
+            System.exit(1);
+        }
+
+        Reader input = new InputStreamReader(
+                file == null || file.equals("-") ? System.in : new FileInputStream(file));
+        int failed;
+        try {
+            failed = new PassforgeBulk(threads, new PassforgeEngine(password), iterations, keyLength)
+                    .run(input, Paths.get(output), System.err);
+        } finally {
+            input.close();
+        }
+        System.exit(failed == 0 ? 0 : 2);
+    }
+}
@@ -0,0 +1,123 @@
+package com.abrody.passforge;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+
+/**
+ * Talks to a PassforgeServer over its Unix domain socket. One client is
+ * one connection; calls on it are answered in order, so share a client
+ * between threads only with outside locking.
+ */
+public class PassforgeClient {
+    public static final String USAGE =
+            "usage: passforge --connect SOCKET PASSWORD SALT ITERATIONS LENGTH\n"
+            + "       passforge --connect SOCKET --hash PASSWORD LOG_ROUNDS\n"
+            + "       passforge --connect SOCKET --verify PASSWORD HASH";
+
+    private final SocketChannel channel;
+    private ByteArrayOutputStream buffer;
+
+    public PassforgeClient(Path socketPath) throws IOException {
+        this.channel = SocketChannel.open(StandardProtocolFamily.UNIX);
+        try {
+            this.channel.connect(UnixDomainSocketAddress.of(socketPath));
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    public String derive(String password, byte[] salt, int iterations, int length)
+            throws IOException, GeneralSecurityException {
+        DataOutputStream out = request(PassforgeServer.OP_DERIVE, password);
+        PassforgeServer.writeBytes(out, salt);
+        out.writeInt(iterations);
+        out.writeInt(length);
+        return call(out).readUTF();
+    }
+
+    public String hash(String password, int logRounds)
+            throws IOException, GeneralSecurityException {
+        DataOutputStream out = request(PassforgeServer.OP_HASH, password);
+        out.writeInt(logRounds);
+        return call(out).readUTF();
+    }
+
+    public boolean verify(String password, String hash)
+            throws IOException, GeneralSecurityException {
+        DataOutputStream out = request(PassforgeServer.OP_VERIFY, password);
+        out.writeUTF(hash);
+        return call(out).readBoolean();
+    }
+
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private DataOutputStream request(byte op, String password) throws IOException {
+        buffer = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(buffer);
+        out.writeByte(op);
+        out.writeUTF(password);
+        return out;
+    }
+
+    /**
+     * Sends the request and returns the reply positioned after its status,
+     * or throws with the server's message if the request failed.
+     */
+    private DataInputStream call(DataOutputStream out)
+            throws IOException, GeneralSecurityException {
+        out.flush();
+        PassforgeServer.writeFrame(channel, buffer.toByteArray());
+        DataInputStream in = new DataInputStream(
+                new ByteArrayInputStream(PassforgeServer.readFrame(channel)));
+        if (in.readByte() != PassforgeServer.STATUS_OK) {
+            throw new GeneralSecurityException(in.readUTF());
+        }
+        return in;
+    }
+
+    /**
+     * Entry point for passforge --connect; args are the arguments after it.
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println(USAGE);
+            System.exit(1);
+        }
+
+        PassforgeClient client = new PassforgeClient(Paths.get(args[0]));
+        int status = 0;
+        try {
+            if (args[1].equals("--hash") && args.length == 4) {
+                System.out.println(client.hash(args[2], Integer.parseInt(args[3])));
+            } else if (args[1].equals("--verify") && args.length == 4) {
+                boolean matches = client.verify(args[2], args[3]);
+                System.out.println(matches);
+                status = matches ? 0 : 3;
+            } else if (args.length == 5) {
+                System.out.println(client.derive(args[1], args[2].getBytes(),
+                        Integer.parseInt(args[3]), Integer.parseInt(args[4])));
+            } else {
+                System.err.println(USAGE);
+                status = 1;
+            }
+        } catch (GeneralSecurityException e) {
+            System.err.println(e.getMessage());
+            status = 2;
+        } finally {
+            client.close();
+        }
+        System.exit(status);
+    }
+}
@@ -0,0 +1,199 @@
+package com.abrody.passforge;
+
+import java.security.GeneralSecurityException;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Derives site passwords from one master password.
+ *
+ * Where a Passforge does a single derivation, an engine is set up once
+ * for a master password and then used for any number of salts, from any
+ * number of threads. The HMAC is looked up and keyed once; each call
+ * works on its own copy of it, and everything a call produces comes
+ * back in a PassforgeResult rather than being left in the engine.
+ *
+ * Derivations go through the KdfRegistry, so a faster PBKDF2 registered
+ * there is picked up, and other algorithms can be used by passing their
+ * KdfParameters. With the built-in PBKDF2 the keyed HMAC is reused.
+ */
+public class PassforgeEngine {
+    public static final String DEFAULT_HMAC = "HMACSHA1";
+
+    private final Mac prototype;
+    private final SecretKey key;
+    private final byte[] password;
+    private final NanoClock clock;
+    private final KdfRegistry registry;
+
+    public PassforgeEngine(String password) throws GeneralSecurityException {
+        this(password, DEFAULT_HMAC, NanoClock.SYSTEM);
+    }
+
+    public PassforgeEngine(String password, String hmacAlgorithm,
+            NanoClock clock) throws GeneralSecurityException {
+        this(password, hmacAlgorithm, clock, KdfRegistry.getDefault());
+    }
+
+    public PassforgeEngine(String password, String hmacAlgorithm,
+            NanoClock clock, KdfRegistry registry) throws GeneralSecurityException {
+        if (password.length() == 0) {
+            throw new IllegalArgumentException("Password is empty");
+        }
+
+        this.password = password.getBytes();
+        this.prototype = Mac.getInstance(hmacAlgorithm);
+        this.key = new SecretKeySpec(this.password, prototype.getAlgorithm());
+        this.prototype.init(key);
+        this.clock = clock;
+        this.registry = registry;
+    }
+
+    /**
+     * Derives the password for one salt.
+     *
+     * iterations and length are clamped to at least 1, as with Passforge.
+     */
+    public PassforgeResult derive(byte[] salt, int iterations, int length)
+            throws GeneralSecurityException {
+        if (iterations <= 0) {
+            iterations = 1;
+        }
+        return derive(salt, new Pbkdf2Parameters(getHmacAlgorithm(), iterations), length);
+    }
+
+    /**
+     * Derives the password for one salt with any registered algorithm.
+     *
+     * length is clamped to at least 1, as with Passforge.
+     */
+    public PassforgeResult derive(byte[] salt, KdfParameters parameters, int length)
+            throws GeneralSecurityException {
+        if (length <= 0) {
+            length = 1;
+        }
+
+        long startNanos = clock.nanoTime();
+        byte[] derivedKey = deriveKey(salt, parameters, keyLengthBytes(length));
+        PassforgeMetrics.base64Encoded(derivedKey.length);
+        String generatedPassword = Base64.encodeBytes(derivedKey).substring(0, length);
+        long endNanos = clock.nanoTime();
+
+        Latencies.PASSFORGE.record(endNanos - startNanos);
+        return new PassforgeResult(generatedPassword, derivedKey, parameters.getCost(),
+                startNanos, endNanos);
+    }
+
+    /**
+     * Derives a password for one salt that follows a policy, from PBKDF2
+     * with this engine's HMAC. The key is computed one PBKDF2 block at a
+     * time, as the policy asks for bytes, so a password the policy turns
+     * down costs the bytes it used rather than a new derivation.
+     *
+     * iterations is clamped to at least 1. The result's derived key is
+     * every block computed.
+     */
+    public PassforgeResult derive(byte[] salt, int iterations, PasswordPolicy policy)
+            throws GeneralSecurityException {
+        if (salt.length == 0) {
+            throw new IllegalArgumentException("Salt is empty");
+        }
+        if (iterations <= 0) {
+            iterations = 1;
+        }
+
+        long startNanos = clock.nanoTime();
+        Timing timing = Timing.start(PassforgeEvents.DERIVE);
+        KeyStream stream = keyStream(salt, iterations);
+        boolean succeeded = false;
+        String generatedPassword;
+        byte[] derivedKey;
+        try {
+            generatedPassword = policy.apply(stream);
+            succeeded = true;
+            derivedKey = stream.toKey(stream.getBlocksComputed() * stream.getBlockLength());
+        } finally {
+            timing.derive(null, getHmacAlgorithm(), iterations, iterations,
+                    stream.getBlocksComputed() * stream.getBlockLength(), succeeded);
+            // Wipe the cached blocks even if the policy gave up
+            stream.clear();
+        }
+        long endNanos = clock.nanoTime();
+
+        Latencies.PASSFORGE.record(endNanos - startNanos);
+        return new PassforgeResult(generatedPassword, derivedKey, iterations,
+                startNanos, endNanos);
+    }
+
+    /**
+     * PBKDF2 output for one salt with this engine's HMAC, computed as it
+     * is read.
+     */
+    public KeyStream keyStream(byte[] salt, int iterations) throws GeneralSecurityException {
+        return new KeyStream(newMac(), salt, iterations);
+    }
+
+    /**
+     * Derives the raw PBKDF2 key for one salt.
+     */
+    public byte[] deriveKey(byte[] salt, int iterations, int keyLengthBytes)
+            throws GeneralSecurityException {
+        // One iteration and none give the same key; the parameters insist on one
+        return deriveKey(salt, new Pbkdf2Parameters(getHmacAlgorithm(), Math.max(1, iterations)),
+                keyLengthBytes);
+    }
+
+    /**
+     * Derives the raw key for one salt with the preferred registered
+     * implementation of the parameters' algorithm.
+     */
+    public byte[] deriveKey(byte[] salt, KdfParameters parameters, int keyLengthBytes)
+            throws GeneralSecurityException {
+        if (salt.length == 0) {
+            throw new IllegalArgumentException("Salt is empty");
+        }
+        KeyDerivationFunction function = registry.getFunction(parameters.getAlgorithm());
+        if (function instanceof Pbkdf2Function && parameters instanceof Pbkdf2Parameters) {
+            Pbkdf2Parameters p = (Pbkdf2Parameters) parameters;
+            if (p.getHmacAlgorithm().equalsIgnoreCase(getHmacAlgorithm())) {
+                return PBKDF2KeyGenerator.derive(newMac(), salt, p.getIterations(), keyLengthBytes);
+            }
+        }
+        return function.deriveKey(password.clone(), salt, parameters, keyLengthBytes);
+    }
+
+    /**
+     * Number of key bytes needed for a password of length characters.
+     */
+    public static int keyLengthBytes(int length) {
+        return (length * 3 + 3) / 4;
+    }
+
+    public String getHmacAlgorithm() {
+        return prototype.getAlgorithm();
+    }
+
+    public NanoClock getClock() {
+        return clock;
+    }
+
+    public KdfRegistry getRegistry() {
+        return registry;
+    }
+
+    /**
+     * A keyed Mac for one call. Cloning skips the provider lookup and key
+     * setup, and is safe from any thread because the prototype is never
+     * used itself. Providers that can't clone get a fresh instance.
+     */
+    private Mac newMac() throws GeneralSecurityException {
+        try {
+            return (Mac) prototype.clone();
+        } catch (CloneNotSupportedException e) {
+            Mac mac = Mac.getInstance(prototype.getAlgorithm(), prototype.getProvider());
+            mac.init(key);
+            return mac;
+        }
+    }
+}
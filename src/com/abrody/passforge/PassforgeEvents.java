@@ -0,0 +1,74 @@
+package com.abrody.passforge;
+
+/**
+ * Java Flight Recorder events for derivations, hashes, verifications and
+ * bulk Base64 work, carrying the algorithm and cost next to JFR's own
+ * duration and thread. They are registered but disabled, so they cost
+ * next to nothing until a recording turns them on, for example with
+ * <pre>
+ *   jcmd PID JFR.start settings=profile \
+ *       +com.abrody.passforge.Derive#enabled=true \
+ *       +com.abrody.passforge.Derive#threshold=10ms
+ * </pre>
+ * (or the same settings in a .jfc file). On VMs without jdk.jfr, such
+ * as Android, every method here does nothing.
+ *
+ * Calls come in pairs: begin returns a token, null when nothing is
+ * recording, which the matching commit method takes once the work is
+ * done.
+ */
+public final class PassforgeEvents {
+    static final int DERIVE = 0;
+    static final int HASH = 1;
+    static final int VERIFY = 2;
+    static final int BASE64 = 3;
+
+    private static final boolean AVAILABLE = jfrAvailable();
+
+    private PassforgeEvents() {
+    }
+
+    public static boolean isAvailable() {
+        return AVAILABLE;
+    }
+
+    static Object begin(int kind) {
+        if (!AVAILABLE) {
+            return null;
+        }
+        return JfrEvents.begin(kind);
+    }
+
+    static void commitDerive(Object event, String algorithm, int iterations, int length) {
+        if (event != null) {
+            JfrEvents.commitDerive(event, algorithm, iterations, length);
+        }
+    }
+
+    static void commitHash(Object event, int logRounds, boolean succeeded) {
+        if (event != null) {
+            JfrEvents.commitHash(event, logRounds, succeeded);
+        }
+    }
+
+    static void commitVerify(Object event, int logRounds, boolean matched) {
+        if (event != null) {
+            JfrEvents.commitVerify(event, logRounds, matched);
+        }
+    }
+
+    static void commitBase64(Object event, boolean encoding, int options, long inputLength, long outputLength) {
+        if (event != null) {
+            JfrEvents.commitBase64(event, encoding, options, inputLength, outputLength);
+        }
+    }
+
+    private static boolean jfrAvailable() {
+        try {
+            Class.forName("jdk.jfr.Event");
+            return true;
+        } catch (Throwable t) {
+            return false;
+        }
+    }
+}
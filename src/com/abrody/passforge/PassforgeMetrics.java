@@ -0,0 +1,440 @@
+package com.abrody.passforge;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters for what the library does: derivations, hashes and
+ * verifications by algorithm and cost, Base64 traffic, and time spent
+ * waiting in the batch and server queues.
+ *
+ * Off by default. While off, each instrumented call costs one volatile
+ * read. While on, counts go into LongAdders, which stay cheap when many
+ * threads update them at once. Read them with snapshot(), push them to
+ * MetricsReporters with report(), or watch them over JMX once
+ * registerMBean() has been called.
+ */
+public final class PassforgeMetrics {
+    public static final String DERIVE = "derive";
+    public static final String HASH = "hash";
+    public static final String VERIFY = "verify";
+
+    private static volatile boolean enabled;
+
+    // Counters by algorithm, then by operation and cost
+    private static final ConcurrentMap<String, Algorithm> algorithms =
+            new ConcurrentHashMap<String, Algorithm>();
+    private static final LongAdder base64Encoded = new LongAdder();
+    private static final LongAdder base64Decoded = new LongAdder();
+    private static final LongAdder queueWaits = new LongAdder();
+    private static final LongAdder queueWaitNanos = new LongAdder();
+    private static final List<MetricsReporter> reporters =
+            new CopyOnWriteArrayList<MetricsReporter>();
+
+    private PassforgeMetrics() {
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    public static void setEnabled(boolean on) {
+        enabled = on;
+    }
+
+    /**
+     * Counts one derivation, hash or verification.
+     *
+     * @param operation DERIVE, HASH or VERIFY
+     * @param algorithm such as HMACSHA1 or bcrypt
+     * @param cost iterations, or log_rounds for bcrypt
+     * @param nanos how long it took
+     * @param succeeded false if it threw
+     */
+    public static void record(String operation, String algorithm, int cost,
+            long nanos, boolean succeeded) {
+        if (!enabled) {
+            return;
+        }
+        Algorithm table = algorithms.get(algorithm);
+        if (table == null) {
+            Algorithm fresh = new Algorithm();
+            table = algorithms.putIfAbsent(algorithm, fresh);
+            if (table == null) {
+                table = fresh;
+            }
+        }
+        Operation counters = table.find(operation, cost);
+        if (counters == null) {
+            counters = table.add(operation, algorithm, cost);
+        }
+        if (succeeded) {
+            counters.successes.increment();
+        } else {
+            counters.failures.increment();
+        }
+        counters.nanos.add(nanos);
+    }
+
+    /**
+     * Counts bytes given to Base64 for encoding. Called where the library
+     * uses Base64, not from Base64 itself.
+     */
+    public static void base64Encoded(long bytes) {
+        if (enabled) {
+            base64Encoded.add(bytes);
+        }
+    }
+
+    /**
+     * Counts characters given to Base64 for decoding.
+     */
+    public static void base64Decoded(long bytes) {
+        if (enabled) {
+            base64Decoded.add(bytes);
+        }
+    }
+
+    /**
+     * Counts the time a task sat in a queue before a thread picked it up.
+     */
+    public static void queueWait(long nanos) {
+        if (enabled) {
+            queueWaits.increment();
+            queueWaitNanos.add(nanos);
+        }
+    }
+
+    public static void addReporter(MetricsReporter reporter) {
+        reporters.add(reporter);
+    }
+
+    public static void removeReporter(MetricsReporter reporter) {
+        reporters.remove(reporter);
+    }
+
+    /**
+     * Hands a snapshot to every registered reporter. Reporters that throw
+     * don't stop the others.
+     */
+    public static void report() {
+        Snapshot snapshot = snapshot();
+        for (MetricsReporter reporter : reporters) {
+            try {
+                reporter.report(snapshot);
+            } catch (RuntimeException e) {
+                // A broken reporter is its own problem
+            }
+        }
+    }
+
+    /**
+     * Zeroes everything. Updates racing with a reset may be lost.
+     */
+    public static void reset() {
+        algorithms.clear();
+        base64Encoded.reset();
+        base64Decoded.reset();
+        queueWaits.reset();
+        queueWaitNanos.reset();
+    }
+
+    public static Snapshot snapshot() {
+        List<OperationSnapshot> ops = new ArrayList<OperationSnapshot>();
+        for (Algorithm table : algorithms.values()) {
+            for (Operation op : table.operations) {
+                ops.add(new OperationSnapshot(op.operation, op.algorithm, op.cost,
+                        op.successes.sum(), op.failures.sum(), op.nanos.sum()));
+            }
+        }
+        return new Snapshot(Collections.unmodifiableList(ops),
+                base64Encoded.sum(), base64Decoded.sum(),
+                queueWaits.sum(), queueWaitNanos.sum());
+    }
+
+    /**
+     * Makes the counters visible over JMX as
+     * com.abrody.passforge:type=PassforgeMetrics. Not available on Android.
+     */
+    public static void registerMBean() throws javax.management.JMException {
+        javax.management.MBeanServer server =
+                java.lang.management.ManagementFactory.getPlatformMBeanServer();
+        javax.management.ObjectName name = new javax.management.ObjectName(MBean.OBJECT_NAME);
+        if (!server.isRegistered(name)) {
+            server.registerMBean(new MBean(), name);
+        }
+    }
+
+    /**
+     * The counters for one algorithm. There are only ever a handful, one
+     * per operation and cost in use, so they are kept in an array that is
+     * scanned without locking and copied when one is added; record()
+     * then finds its counters without allocating.
+     */
+    private static class Algorithm {
+        volatile Operation[] operations = new Operation[0];
+
+        Operation find(String operation, int cost) {
+            for (Operation op : operations) {
+                if (op.cost == cost && op.operation.equals(operation)) {
+                    return op;
+                }
+            }
+            return null;
+        }
+
+        synchronized Operation add(String operation, String algorithm, int cost) {
+            Operation op = find(operation, cost);
+            if (op == null) {
+                op = new Operation(operation, algorithm, cost);
+                Operation[] grown = Arrays.copyOf(operations, operations.length + 1);
+                grown[grown.length - 1] = op;
+                operations = grown;
+            }
+            return op;
+        }
+    }
+
+    private static class Operation {
+        final String operation;
+        final String algorithm;
+        final int cost;
+        final LongAdder successes = new LongAdder();
+        final LongAdder failures = new LongAdder();
+        final LongAdder nanos = new LongAdder();
+
+        Operation(String operation, String algorithm, int cost) {
+            this.operation = operation;
+            this.algorithm = algorithm;
+            this.cost = cost;
+        }
+    }
+
+    /**
+     * Counts for one operation, algorithm and cost at one moment.
+     */
+    public static final class OperationSnapshot {
+        private final String operation;
+        private final String algorithm;
+        private final int cost;
+        private final long successes;
+        private final long failures;
+        private final long nanos;
+
+        OperationSnapshot(String operation, String algorithm, int cost,
+                long successes, long failures, long nanos) {
+            this.operation = operation;
+            this.algorithm = algorithm;
+            this.cost = cost;
+            this.successes = successes;
+            this.failures = failures;
+            this.nanos = nanos;
+        }
+
+        public String getOperation() {
+            return operation;
+        }
+
+        public String getAlgorithm() {
+            return algorithm;
+        }
+
+        public int getCost() {
+            return cost;
+        }
+
+        public long getSuccesses() {
+            return successes;
+        }
+
+        public long getFailures() {
+            return failures;
+        }
+
+        public long getTotalNanos() {
+            return nanos;
+        }
+
+        /**
+         * PBKDF2 iterations (or bcrypt rounds, 2^cost each) completed per
+         * second of time spent in this operation.
+         */
+        public double getIterationsPerSecond() {
+            if (nanos == 0) {
+                return 0.0;
+            }
+            double perCall = algorithm.equals("bcrypt") ? Math.pow(2, cost) : cost;
+            return perCall * successes / (nanos / 1e9);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s %s cost=%d ok=%d failed=%d %.0f it/s",
+                    operation, algorithm, cost, successes, failures,
+                    getIterationsPerSecond());
+        }
+    }
+
+    /**
+     * Everything PassforgeMetrics has counted, at one moment.
+     */
+    public static final class Snapshot {
+        private final List<OperationSnapshot> operations;
+        private final long base64Encoded;
+        private final long base64Decoded;
+        private final long queueWaits;
+        private final long queueWaitNanos;
+
+        Snapshot(List<OperationSnapshot> operations, long base64Encoded,
+                long base64Decoded, long queueWaits, long queueWaitNanos) {
+            this.operations = operations;
+            this.base64Encoded = base64Encoded;
+            this.base64Decoded = base64Decoded;
+            this.queueWaits = queueWaits;
+            this.queueWaitNanos = queueWaitNanos;
+        }
+
+        public List<OperationSnapshot> getOperations() {
+            return operations;
+        }
+
+        /**
+         * Successful plus failed calls of one operation, over all
+         * algorithms and costs.
+         */
+        public long getCount(String operation) {
+            long n = 0;
+            for (OperationSnapshot op : operations) {
+                if (op.getOperation().equals(operation)) {
+                    n += op.getSuccesses() + op.getFailures();
+                }
+            }
+            return n;
+        }
+
+        public long getFailures(String operation) {
+            long n = 0;
+            for (OperationSnapshot op : operations) {
+                if (op.getOperation().equals(operation)) {
+                    n += op.getFailures();
+                }
+            }
+            return n;
+        }
+
+        public long getBase64BytesEncoded() {
+            return base64Encoded;
+        }
+
+        public long getBase64BytesDecoded() {
+            return base64Decoded;
+        }
+
+        public long getQueueWaits() {
+            return queueWaits;
+        }
+
+        public double getMeanQueueWaitNanos() {
+            return queueWaits == 0 ? 0.0 : (double) queueWaitNanos / queueWaits;
+        }
+    }
+
+    /**
+     * JMX view of PassforgeMetrics.
+     */
+    public interface PassforgeMetricsMXBean {
+        boolean isEnabled();
+
+        void setEnabled(boolean enabled);
+
+        long getDerivations();
+
+        long getDerivationFailures();
+
+        long getHashes();
+
+        long getHashFailures();
+
+        long getVerifications();
+
+        long getVerificationFailures();
+
+        long getBase64BytesEncoded();
+
+        long getBase64BytesDecoded();
+
+        double getMeanQueueWaitNanos();
+
+        /** One line per operation, algorithm and cost. */
+        String[] getOperations();
+
+        void reset();
+    }
+
+    static class MBean implements PassforgeMetricsMXBean {
+        static final String OBJECT_NAME = "com.abrody.passforge:type=PassforgeMetrics";
+
+        public boolean isEnabled() {
+            return PassforgeMetrics.isEnabled();
+        }
+
+        public void setEnabled(boolean on) {
+            PassforgeMetrics.setEnabled(on);
+        }
+
+        public long getDerivations() {
+            return snapshot().getCount(DERIVE);
+        }
+
+        public long getDerivationFailures() {
+            return snapshot().getFailures(DERIVE);
+        }
+
+        public long getHashes() {
+            return snapshot().getCount(HASH);
+        }
+
+        public long getHashFailures() {
+            return snapshot().getFailures(HASH);
+        }
+
+        public long getVerifications() {
+            return snapshot().getCount(VERIFY);
+        }
+
+        public long getVerificationFailures() {
+            return snapshot().getFailures(VERIFY);
+        }
+
+        public long getBase64BytesEncoded() {
+            return base64Encoded.sum();
+        }
+
+        public long getBase64BytesDecoded() {
+            return base64Decoded.sum();
+        }
+
+        public double getMeanQueueWaitNanos() {
+            return snapshot().getMeanQueueWaitNanos();
+        }
+
+        public String[] getOperations() {
+            List<OperationSnapshot> ops = snapshot().getOperations();
+            String[] lines = new String[ops.size()];
+            for (int i = 0; i < lines.length; i++) {
+                lines[i] = ops.get(i).toString();
+            }
+            return lines;
+        }
+
+        public void reset() {
+            PassforgeMetrics.reset();
+        }
+    }
+}
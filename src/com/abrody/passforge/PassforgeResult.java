@@ -0,0 +1,56 @@
+package com.abrody.passforge;
+
+/**
+ * The outcome of one PassforgeEngine derivation. Immutable, so it can be
+ * handed between threads freely.
+ */
+public final class PassforgeResult {
+    private final String generatedPassword;
+    private final byte[] derivedKey;
+    private final int iterations;
+    private final long startNanos;
+    private final long endNanos;
+
+    PassforgeResult(String generatedPassword, byte[] derivedKey, int iterations,
+            long startNanos, long endNanos) {
+        this.generatedPassword = generatedPassword;
+        this.derivedKey = derivedKey;
+        this.iterations = iterations;
+        this.startNanos = startNanos;
+        this.endNanos = endNanos;
+    }
+
+    public String getGeneratedPassword() {
+        return generatedPassword;
+    }
+
+    /**
+     * A copy of the raw derived key.
+     */
+    public byte[] getDerivedKey() {
+        return derivedKey.clone();
+    }
+
+    public int getIterations() {
+        return iterations;
+    }
+
+    /**
+     * When the derivation started, on the engine's NanoClock.
+     */
+    public long getStartNanos() {
+        return startNanos;
+    }
+
+    public long getEndNanos() {
+        return endNanos;
+    }
+
+    public long getElapsedNanos() {
+        return endNanos - startNanos;
+    }
+
+    public float getElapsedSeconds() {
+        return (endNanos - startNanos) / 1e9f;
+    }
+}
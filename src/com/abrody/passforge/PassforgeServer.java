@@ -0,0 +1,373 @@
+package com.abrody.passforge;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.GeneralSecurityException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * A long-running derivation daemon on a Unix domain socket, so scripts
+ * get answers from a warmed-up JVM instead of paying for startup and a
+ * cold PBKDF2 loop on every call. PassforgeClient is the other end.
+ *
+ * Every message in either direction is a frame: a 4-byte big-endian
+ * length followed by that many bytes. Strings inside a frame are
+ * DataOutput.writeUTF strings and byte strings are a 2-byte length
+ * followed by the bytes.
+ *
+ * Requests start with an op byte:
+ * <pre>
+ *   OP_DERIVE  password, salt (bytes), iterations (int), length (int)
+ *   OP_HASH    password, log_rounds (int)
+ *   OP_VERIFY  password, hash
+ * </pre>
+ * Replies start with STATUS_OK or STATUS_ERROR. An OK derive or hash
+ * reply carries the result string, an OK verify reply a boolean; an
+ * error reply carries a message. A connection may carry any number of
+ * requests, answered in order.
+ */
+public class PassforgeServer {
+    public static final String USAGE = "usage: passforge --serve SOCKET";
+
+    public static final byte OP_DERIVE = 1;
+    public static final byte OP_HASH = 2;
+    public static final byte OP_VERIFY = 3;
+
+    public static final byte STATUS_OK = 0;
+    public static final byte STATUS_ERROR = 1;
+
+    /** Frames longer than this are refused rather than buffered. */
+    public static final int MAX_FRAME = 64 * 1024;
+
+    private static final int MAX_ENGINES = 64;
+    private static final int WARMUP_ROUNDS = 200;
+
+    private final Path socketPath;
+    private final Map<String, PassforgeEngine> engines =
+            new LinkedHashMap<String, PassforgeEngine>(MAX_ENGINES, 0.75f, true) {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, PassforgeEngine> eldest) {
+                    return size() > MAX_ENGINES;
+                }
+            };
+    private ServerSocketChannel server;
+
+    public PassforgeServer(Path socketPath) {
+        this.socketPath = socketPath;
+    }
+
+    /**
+     * Warms up the derivation code, binds the socket and serves
+     * connections until close() is called.
+     */
+    public void serve() throws IOException, GeneralSecurityException {
+        warmUp();
+
+        server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        bind();
+
+        ExecutorService connections = newPerTaskExecutor();
+        try {
+            while (true) {
+                final SocketChannel channel;
+                try {
+                    channel = server.accept();
+                } catch (ClosedChannelException e) {
+                    break;
+                }
+                final long accepted = System.nanoTime();
+                connections.execute(new Runnable() {
+                    public void run() {
+                        PassforgeMetrics.queueWait(System.nanoTime() - accepted);
+                        handle(channel);
+                    }
+                });
+            }
+        } finally {
+            connections.shutdownNow();
+            deleteSocket(socketPath);
+        }
+    }
+
+    /**
+     * Binds the socket so that only the owner can ever connect to it.
+     * The socket is made in a new directory only the owner can enter,
+     * given owner-only permissions there, and then renamed into place;
+     * binding at the final path would leave it open to anyone between
+     * bind() and chmod. An existing socket at the path is replaced, but
+     * any other kind of file is left alone.
+     */
+    private void bind() throws IOException {
+        if (Files.exists(socketPath, LinkOption.NOFOLLOW_LINKS) && !isSocket(socketPath)) {
+            throw new IOException(socketPath + " exists and is not a socket");
+        }
+
+        Path privateDir;
+        try {
+            privateDir = Files.createTempDirectory(socketPath.toAbsolutePath().getParent(), ".pf",
+                    PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+        } catch (UnsupportedOperationException e) {
+            // Not a POSIX file system; rely on the directory's permissions
+            deleteSocket(socketPath);
+            server.bind(UnixDomainSocketAddress.of(socketPath));
+            return;
+        }
+        Path bound = privateDir.resolve("s");
+        try {
+            server.bind(UnixDomainSocketAddress.of(bound));
+            Files.setPosixFilePermissions(bound, PosixFilePermissions.fromString("rw-------"));
+            Files.move(bound, socketPath, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(bound);
+            Files.delete(privateDir);
+        }
+    }
+
+    /**
+     * Deletes path if it is a socket, such as one left by a server that
+     * died, and leaves anything else where it is.
+     */
+    static void deleteSocket(Path path) throws IOException {
+        if (Files.exists(path, LinkOption.NOFOLLOW_LINKS) && isSocket(path)) {
+            Files.deleteIfExists(path);
+        }
+    }
+
+    private static boolean isSocket(Path path) throws IOException {
+        try {
+            int mode = (Integer) Files.getAttribute(path, "unix:mode", LinkOption.NOFOLLOW_LINKS);
+            return (mode & 0170000) == 0140000;
+        } catch (UnsupportedOperationException e) {
+            // No unix view; sockets are among the "other" files
+            return Files.readAttributes(path, BasicFileAttributes.class,
+                    LinkOption.NOFOLLOW_LINKS).isOther();
+        }
+    }
+
+    /**
+     * Stops accepting connections; serve() then returns.
+     */
+    public void close() throws IOException {
+        if (server != null) {
+            server.close();
+        }
+    }
+
+    private void handle(SocketChannel channel) {
+        try {
+            while (true) {
+                byte[] request;
+                try {
+                    request = readFrame(channel);
+                } catch (EOFException e) {
+                    return;
+                }
+                writeFrame(channel, reply(request));
+            }
+        } catch (IOException e) {
+            // Client went away or spoke nonsense; drop the connection
+        } finally {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // Exception is discarded
+            }
+        }
+    }
+
+    private byte[] reply(byte[] request) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(request));
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(buffer);
+
+        try {
+            byte op = in.readByte();
+            String password = in.readUTF();
+            switch (op) {
+            case OP_DERIVE:
+                byte[] salt = readBytes(in);
+                int iterations = in.readInt();
+                int length = in.readInt();
+                String generated = engine(password).derive(salt, iterations, length)
+                        .getGeneratedPassword();
+                out.writeByte(STATUS_OK);
+                out.writeUTF(generated);
+                break;
+            case OP_HASH:
+                int logRounds = in.readInt();
+                String hash = BCrypt.hashpw(password, BCrypt.gensalt(logRounds));
+                out.writeByte(STATUS_OK);
+                out.writeUTF(hash);
+                break;
+            case OP_VERIFY:
+                String stored = in.readUTF();
+                boolean matches = BCrypt.checkpw(password, stored);
+                out.writeByte(STATUS_OK);
+                out.writeBoolean(matches);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown op " + op);
+            }
+        } catch (GeneralSecurityException e) {
+            return error(e);
+        } catch (RuntimeException e) {
+            return error(e);
+        } catch (EOFException e) {
+            return error(new IllegalArgumentException("Truncated request"));
+        }
+        out.flush();
+        return buffer.toByteArray();
+    }
+
+    private static byte[] error(Exception e) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(buffer);
+        out.writeByte(STATUS_ERROR);
+        out.writeUTF(String.valueOf(e.getMessage()));
+        out.flush();
+        return buffer.toByteArray();
+    }
+
+    private PassforgeEngine engine(String password) throws GeneralSecurityException {
+        synchronized (engines) {
+            PassforgeEngine engine = engines.get(password);
+            if (engine == null) {
+                engine = new PassforgeEngine(password);
+                engines.put(password, engine);
+            }
+            return engine;
+        }
+    }
+
+    /**
+     * Runs enough derivations and hashes to get them compiled before the
+     * first real request arrives.
+     */
+    private void warmUp() throws GeneralSecurityException {
+        PassforgeEngine engine = new PassforgeEngine("warm-up");
+        byte[] salt = "warm-up".getBytes();
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            engine.derive(salt, 1000, 16);
+        }
+        BCrypt.checkpw("warm-up", BCrypt.hashpw("warm-up", BCrypt.gensalt(4)));
+    }
+
+    /**
+     * A thread per connection: virtual threads where the JVM has them,
+     * otherwise a cached pool of platform threads.
+     */
+    static ExecutorService newPerTaskExecutor() {
+        try {
+            return (ExecutorService) Executors.class
+                    .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (Exception e) {
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+    static byte[] readBytes(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readUnsignedShort()];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        if (bytes.length > 0xffff) {
+            throw new IllegalArgumentException("Too long: " + bytes.length + " bytes");
+        }
+        out.writeShort(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Reads one frame. Throws EOFException if the channel is closed
+     * cleanly before the frame starts.
+     */
+    static byte[] readFrame(SocketChannel channel) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(4);
+        if (!readFully(channel, header)) {
+            throw new EOFException();
+        }
+        header.flip();
+        int length = header.getInt();
+        if (length < 0 || length > MAX_FRAME) {
+            throw new IOException("Bad frame length " + length);
+        }
+        ByteBuffer body = ByteBuffer.allocate(length);
+        if (!readFully(channel, body)) {
+            throw new EOFException("Connection closed mid-frame");
+        }
+        return body.array();
+    }
+
+    static void writeFrame(SocketChannel channel, byte[] body) throws IOException {
+        ByteBuffer frame = ByteBuffer.allocate(4 + body.length);
+        frame.putInt(body.length).put(body).flip();
+        while (frame.hasRemaining()) {
+            channel.write(frame);
+        }
+    }
+
+    private static boolean readFully(SocketChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                if (buffer.position() > 0 && buffer.hasRemaining()) {
+                    throw new EOFException("Connection closed mid-frame");
+                }
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Entry point for passforge --serve; args are the arguments after it.
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length != 1) {
+            System.err.println(USAGE);
+            System.exit(1);
+        }
+        try {
+            // Off until switched on over JMX
+            PassforgeMetrics.registerMBean();
+        } catch (javax.management.JMException e) {
+            System.err.println("metrics unavailable: " + e.getMessage());
+        }
+
+        final PassforgeServer server = new PassforgeServer(Paths.get(args[0]));
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            public void run() {
+                try {
+                    server.close();
+                    deleteSocket(server.socketPath);
+                } catch (IOException e) {
+                    // Exception is discarded
+                }
+            }
+        });
+        server.serve();
+    }
+}
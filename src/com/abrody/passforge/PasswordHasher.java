@@ -0,0 +1,45 @@
+package com.abrody.passforge;
+
+import java.security.GeneralSecurityException;
+import java.util.Set;
+
+/**
+ * Hashes passwords for storage and checks them later. Hashes are
+ * self-describing strings, such as $2a$10$... for bcrypt, carrying the
+ * algorithm, cost and salt, so verify() needs nothing else.
+ * Implementations register with KdfRegistry and must be safe to call
+ * from any number of threads.
+ */
+public interface PasswordHasher {
+    /**
+     * The algorithm this implements, such as bcrypt.
+     */
+    String getAlgorithm();
+
+    Set<KdfCapability> getCapabilities();
+
+    /**
+     * Hashes a password with a fresh random salt.
+     */
+    String hash(String password, KdfParameters parameters) throws GeneralSecurityException;
+
+    /**
+     * Checks a password against a hash made by hash().
+     *
+     * @throws IllegalArgumentException if the hash is malformed
+     */
+    boolean verify(String password, String hash) throws GeneralSecurityException;
+
+    /**
+     * Whether a hash looks like one of this hasher's.
+     */
+    boolean recognizes(String hash);
+
+    /**
+     * The parameters a hash was made with, to tell whether it is due
+     * for rehashing at a higher cost.
+     *
+     * @throws IllegalArgumentException if the hash is malformed
+     */
+    KdfParameters getParameters(String hash);
+}
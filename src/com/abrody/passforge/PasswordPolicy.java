@@ -0,0 +1,200 @@
+package com.abrody.passforge;
+
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+/**
+ * Rules for a generated password: its length, the characters it may use
+ * and how many it needs from each class, such as "16 characters, at
+ * least one digit and one symbol".
+ *
+ * apply() maps key bytes to a password that follows the rules, the same
+ * bytes always giving the same password. Each compliant password is
+ * equally likely. Characters are drawn from the policy's alphabet by
+ * rejection sampling, so no character is favoured by a modulo. A whole
+ * password that misses a required class is discarded and the next one
+ * drawn, rather than patched, which would favour some passwords.
+ * Discarded bytes are replaced by reading on, so a strict policy costs
+ * more key bytes, not another derivation.
+ */
+public final class PasswordPolicy {
+    public static final String LOWERCASE = "abcdefghijklmnopqrstuvwxyz";
+    public static final String UPPERCASE = "ABCDEFGHIJKLMNOPQRSTUVWXYZ";
+    public static final String DIGITS = "0123456789";
+    public static final String SYMBOLS = "!\"#$%&'()*+,-./:;<=>?@[\\]^_`{|}~";
+
+    /**
+     * Passwords drawn before a policy is given up on as too strict for
+     * rejection sampling. Even four required classes in a four character
+     * password succeed well within this.
+     */
+    static final int MAX_ATTEMPTS = 1000;
+
+    private final int length;
+    private final CharacterClass[] classes;
+    private final char[] alphabet;
+    // For each alphabet character, a bit for each class it belongs to
+    private final int[] memberships;
+
+    /**
+     * @param length password length
+     * @param classes the characters allowed, by class, with the minimum
+     *            needed from each; classes may overlap
+     */
+    public PasswordPolicy(int length, CharacterClass... classes) {
+        if (length <= 0) {
+            throw new IllegalArgumentException("Length must be positive");
+        }
+        if (classes.length == 0 || classes.length > 32) {
+            throw new IllegalArgumentException("Need 1 to 32 character classes");
+        }
+        int required = 0;
+        StringBuilder chars = new StringBuilder();
+        for (CharacterClass c : classes) {
+            required += c.getMinimum();
+            for (int i = 0; i < c.getCharacters().length(); i++) {
+                char ch = c.getCharacters().charAt(i);
+                if (chars.indexOf(String.valueOf(ch)) < 0) {
+                    chars.append(ch);
+                }
+            }
+        }
+        if (required > length) {
+            throw new IllegalArgumentException("Classes need " + required
+                    + " characters but the length is " + length);
+        }
+        if (chars.length() > 256) {
+            throw new IllegalArgumentException("More than 256 distinct characters");
+        }
+
+        this.length = length;
+        this.classes = classes.clone();
+        this.alphabet = chars.toString().toCharArray();
+        this.memberships = new int[alphabet.length];
+        for (int i = 0; i < alphabet.length; i++) {
+            for (int k = 0; k < classes.length; k++) {
+                if (classes[k].getCharacters().indexOf(alphabet[i]) >= 0) {
+                    memberships[i] |= 1 << k;
+                }
+            }
+        }
+    }
+
+    /**
+     * length characters from lower and upper case letters, digits and
+     * symbols, with at least one of each.
+     */
+    public static PasswordPolicy standard(int length) {
+        return new PasswordPolicy(length,
+                new CharacterClass(LOWERCASE, 1),
+                new CharacterClass(UPPERCASE, 1),
+                new CharacterClass(DIGITS, 1),
+                new CharacterClass(SYMBOLS, 1));
+    }
+
+    /**
+     * length letters and digits, with no minimums; for sites that refuse
+     * symbols.
+     */
+    public static PasswordPolicy alphanumeric(int length) {
+        return new PasswordPolicy(length, new CharacterClass(LOWERCASE + UPPERCASE + DIGITS, 0));
+    }
+
+    /**
+     * The first compliant password the bytes produce.
+     *
+     * @throws GeneralSecurityException if no compliant password turns up
+     *             in MAX_ATTEMPTS tries, or bytes fails
+     */
+    public String apply(ByteSource bytes) throws GeneralSecurityException {
+        char[] password = new char[length];
+        int[] counts = new int[classes.length];
+        int n = alphabet.length;
+        // Bytes at or above this would make low indexes likelier
+        int limit = 256 - 256 % n;
+
+        try {
+            for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+                Arrays.fill(counts, 0);
+                for (int i = 0; i < length; i++) {
+                    int b;
+                    do {
+                        b = bytes.nextByte() & 0xff;
+                    } while (b >= limit);
+                    int index = b % n;
+                    password[i] = alphabet[index];
+                    for (int k = 0, m = memberships[index]; m != 0; k++, m >>>= 1) {
+                        counts[k] += m & 1;
+                    }
+                }
+                if (complies(counts)) {
+                    return new String(password);
+                }
+            }
+        } finally {
+            Arrays.fill(password, '\0');
+        }
+        throw new GeneralSecurityException("No password meeting the policy in "
+                + MAX_ATTEMPTS + " attempts");
+    }
+
+    private boolean complies(int[] counts) {
+        for (int k = 0; k < classes.length; k++) {
+            if (counts[k] < classes[k].getMinimum()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * Every character a password may contain, in order of first
+     * appearance in the classes.
+     */
+    public String getAlphabet() {
+        return new String(alphabet);
+    }
+
+    public CharacterClass[] getClasses() {
+        return classes.clone();
+    }
+
+    /**
+     * A set of characters and how many a password needs from it.
+     */
+    public static final class CharacterClass {
+        private final String characters;
+        private final int minimum;
+
+        public CharacterClass(String characters, int minimum) {
+            if (characters.length() == 0) {
+                throw new IllegalArgumentException("Character class is empty");
+            }
+            if (minimum < 0) {
+                throw new IllegalArgumentException("Minimum is negative");
+            }
+            this.characters = characters;
+            this.minimum = minimum;
+        }
+
+        public String getCharacters() {
+            return characters;
+        }
+
+        public int getMinimum() {
+            return minimum;
+        }
+    }
+
+    /**
+     * Where apply() gets its bytes: the derived key, read on as far as
+     * needed.
+     */
+    public interface ByteSource {
+        byte nextByte() throws GeneralSecurityException;
+    }
+}
@@ -0,0 +1,180 @@
+package com.abrody.passforge;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.GeneralSecurityException;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Set;
+
+import javax.crypto.Mac;
+
+/**
+ * PBKDF2 as a KeyDerivationFunction and a PasswordHasher, on top of
+ * PBKDF2KeyGenerator.
+ *
+ * Hashes use the modular crypt format that passlib and others read:
+ * <pre>
+ *   $pbkdf2$ITERATIONS$SALT$KEY            (HMAC-SHA1)
+ *   $pbkdf2-sha256$ITERATIONS$SALT$KEY
+ *   $pbkdf2-sha512$ITERATIONS$SALT$KEY
+ * </pre>
+ * SALT and KEY are Base64 without padding and with '.' in place of '+'.
+ * The key is as long as the HMAC's output. Hashes with a key shorter
+ * than MIN_KEY_LENGTH are refused, since a short enough key matches
+ * almost any password, and an empty one all of them.
+ */
+public class Pbkdf2Function implements KeyDerivationFunction, PasswordHasher {
+    private static final Set<KdfCapability> CAPABILITIES =
+            Collections.unmodifiableSet(EnumSet.of(KdfCapability.PURE_JAVA));
+    private static final int SALT_LENGTH = 16;
+
+    /** The shortest key, in bytes, that a hash may hold. */
+    public static final int MIN_KEY_LENGTH = 16;
+
+    private static final String[][] IDENTIFIERS = {
+        { "pbkdf2", "HmacSHA1" },
+        { "pbkdf2-sha256", "HmacSHA256" },
+        { "pbkdf2-sha512", "HmacSHA512" },
+    };
+
+    private final SecureRandom random = new SecureRandom();
+
+    public String getAlgorithm() {
+        return Pbkdf2Parameters.ALGORITHM;
+    }
+
+    public Set<KdfCapability> getCapabilities() {
+        return CAPABILITIES;
+    }
+
+    public byte[] deriveKey(byte[] password, byte[] salt, KdfParameters parameters,
+            int keyLengthBytes) throws GeneralSecurityException {
+        Pbkdf2Parameters p = parameters(parameters);
+        Mac hmac = Mac.getInstance(p.getHmacAlgorithm());
+        hmac.init(new RawKey(password, hmac.getAlgorithm()));
+        return PBKDF2KeyGenerator.derive(hmac, salt, p.getIterations(), keyLengthBytes);
+    }
+
+    public String hash(String password, KdfParameters parameters) throws GeneralSecurityException {
+        byte[] salt = new byte[SALT_LENGTH];
+        random.nextBytes(salt);
+        Pbkdf2Parameters p = parameters(parameters);
+        return hash(password, p, salt, Mac.getInstance(p.getHmacAlgorithm()).getMacLength());
+    }
+
+    /**
+     * The hash of password with a given salt and key length, for
+     * recomputing a known hash from its settings.
+     */
+    String hash(String password, Pbkdf2Parameters p, byte[] salt, int keyLength)
+            throws GeneralSecurityException {
+        String identifier = identifier(p.getHmacAlgorithm());
+        byte[] key = deriveKey(utf8(password), salt, p, keyLength);
+        return "$" + identifier + "$" + p.getIterations() + "$" + ab64(salt) + "$" + ab64(key);
+    }
+
+    public boolean verify(String password, String hash) throws GeneralSecurityException {
+        String[] fields = split(hash);
+        Pbkdf2Parameters p = parse(fields);
+        byte[] salt = unab64(fields[3]);
+        byte[] expected = unab64(fields[4]);
+        byte[] actual = deriveKey(utf8(password), salt, p, expected.length);
+        return MessageDigest.isEqual(expected, actual);
+    }
+
+    public boolean recognizes(String hash) {
+        if (!hash.startsWith("$")) {
+            return false;
+        }
+        int end = hash.indexOf('$', 1);
+        return end > 0 && hmacFor(hash.substring(1, end)) != null;
+    }
+
+    public KdfParameters getParameters(String hash) {
+        return parse(split(hash));
+    }
+
+    private static Pbkdf2Parameters parameters(KdfParameters parameters)
+            throws InvalidAlgorithmParameterException {
+        if (!(parameters instanceof Pbkdf2Parameters)) {
+            throw new InvalidAlgorithmParameterException("Not PBKDF2 parameters: " + parameters);
+        }
+        return (Pbkdf2Parameters) parameters;
+    }
+
+    /**
+     * Splits a hash into "", identifier, iterations, salt and key.
+     */
+    private static String[] split(String hash) {
+        String[] fields = hash.split("\\$", -1);
+        if (fields.length != 5 || fields[0].length() != 0) {
+            throw new IllegalArgumentException("Not a PBKDF2 hash");
+        }
+        if (unab64(fields[4]).length < MIN_KEY_LENGTH) {
+            throw new IllegalArgumentException("PBKDF2 hash key is shorter than "
+                    + MIN_KEY_LENGTH + " bytes");
+        }
+        return fields;
+    }
+
+    private static Pbkdf2Parameters parse(String[] fields) {
+        String hmac = hmacFor(fields[1]);
+        if (hmac == null) {
+            throw new IllegalArgumentException("Unknown PBKDF2 variant " + fields[1]);
+        }
+        return new Pbkdf2Parameters(hmac, Integer.parseInt(fields[2]));
+    }
+
+    static String identifier(String hmacAlgorithm) throws InvalidAlgorithmParameterException {
+        for (String[] pair : IDENTIFIERS) {
+            if (pair[1].equalsIgnoreCase(hmacAlgorithm)) {
+                return pair[0];
+            }
+        }
+        throw new InvalidAlgorithmParameterException("No hash format for " + hmacAlgorithm);
+    }
+
+    static String hmacFor(String identifier) {
+        for (String[] pair : IDENTIFIERS) {
+            if (pair[0].equals(identifier)) {
+                return pair[1];
+            }
+        }
+        return null;
+    }
+
+    static String ab64(byte[] bytes) {
+        PassforgeMetrics.base64Encoded(bytes.length);
+        String s = Base64.encodeBytes(bytes);
+        int end = s.length();
+        while (end > 0 && s.charAt(end - 1) == '=') {
+            end--;
+        }
+        return s.substring(0, end).replace('+', '.');
+    }
+
+    static byte[] unab64(String s) {
+        StringBuilder padded = new StringBuilder(s.replace('.', '+'));
+        while (padded.length() % 4 != 0) {
+            padded.append('=');
+        }
+        PassforgeMetrics.base64Decoded(padded.length());
+        try {
+            return Base64.decode(padded.toString(), Base64.DONT_GUNZIP);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Bad Base64 in PBKDF2 hash", e);
+        }
+    }
+
+    static byte[] utf8(String s) {
+        try {
+            return s.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError("UTF-8 is not supported");
+        }
+    }
+}
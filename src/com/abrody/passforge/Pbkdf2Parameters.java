@@ -0,0 +1,59 @@
+package com.abrody.passforge;
+
+/**
+ * PBKDF2 settings: the HMAC used as the pseudorandom function and the
+ * iteration count.
+ */
+public final class Pbkdf2Parameters implements KdfParameters {
+    public static final String ALGORITHM = "PBKDF2";
+
+    private final String hmacAlgorithm;
+    private final int iterations;
+
+    public Pbkdf2Parameters(int iterations) {
+        this(PassforgeEngine.DEFAULT_HMAC, iterations);
+    }
+
+    public Pbkdf2Parameters(String hmacAlgorithm, int iterations) {
+        if (iterations <= 0) {
+            throw new IllegalArgumentException("Iterations must be positive");
+        }
+        this.hmacAlgorithm = hmacAlgorithm;
+        this.iterations = iterations;
+    }
+
+    public String getAlgorithm() {
+        return ALGORITHM;
+    }
+
+    public int getCost() {
+        return iterations;
+    }
+
+    public String getHmacAlgorithm() {
+        return hmacAlgorithm;
+    }
+
+    public int getIterations() {
+        return iterations;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof Pbkdf2Parameters)) {
+            return false;
+        }
+        Pbkdf2Parameters p = (Pbkdf2Parameters) o;
+        return iterations == p.iterations && hmacAlgorithm.equalsIgnoreCase(p.hmacAlgorithm);
+    }
+
+    @Override
+    public int hashCode() {
+        return hmacAlgorithm.toUpperCase().hashCode() * 31 + iterations;
+    }
+
+    @Override
+    public String toString() {
+        return "PBKDF2 " + hmacAlgorithm + " iterations=" + iterations;
+    }
+}
@@ -0,0 +1,31 @@
+package com.abrody.passforge;
+
+import javax.crypto.SecretKey;
+
+/**
+ * A raw HMAC key that, unlike SecretKeySpec, may be empty, as an empty
+ * password and the RFC 7914 test vectors need.
+ */
+class RawKey implements SecretKey {
+    private static final long serialVersionUID = 1L;
+
+    private final byte[] key;
+    private final String algorithm;
+
+    RawKey(byte[] key, String algorithm) {
+        this.key = key.clone();
+        this.algorithm = algorithm;
+    }
+
+    public String getAlgorithm() {
+        return algorithm;
+    }
+
+    public String getFormat() {
+        return "RAW";
+    }
+
+    public byte[] getEncoded() {
+        return key.clone();
+    }
+}
@@ -0,0 +1,599 @@
+package com.abrody.passforge;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.UnsupportedEncodingException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+
+import javax.crypto.Mac;
+
+/**
+ * Migration mode for the command line: moves stored hashes to stronger
+ * settings without waiting for users to log in, by wrapping each old
+ * hash in a new one.
+ *
+ * Each input line is ID HASH, the hash being bcrypt, PBKDF2 in passlib's
+ * $pbkdf2$ form, or a raw PBKDF2KeyGenerator key written as
+ * pbkdf2-raw:HMAC:ITERATIONS:SALT:KEY, with the salt and key in padded
+ * Base64. Each output line is ID SETTING WRAPPED: SETTING is the old
+ * hash without its digest, which is enough to compute it again from a
+ * password, and WRAPPED is the new hasher's hash of the old hash. A
+ * PBKDF2 SETTING ends with the key's length in bytes where the key was,
+ * and a raw key needs MIN_KEY_LENGTH bytes like a $pbkdf2$ one. Only
+ * hashes that this library would compute again character for character
+ * are migrated; others, such as bcrypt's $2b$ and $2y$, are reported as
+ * failures, since no password could ever verify against them. The old
+ * hash is first reduced to the Base64 of its SHA-256, so that bcrypt,
+ * which only reads 72 bytes, sees all of it. verify() checks a password
+ * against an output line.
+ *
+ * Lines are read in order and hashed on a fixed pool of threads, with a
+ * bounded window in flight, and written in input order through a buffer.
+ * Every CHECKPOINT_RECORDS lines the output is forced to disk and a
+ * checkpoint appended to the journal: how far into the input and the
+ * output the job has got. A rerun with the same journal truncates the
+ * output to the last checkpoint and carries on from there, so no
+ * record is hashed twice into the output or lost. A finished journal
+ * makes a rerun a no-op.
+ *
+ * With a CPU share below 1, workers sleep after each hash in proportion
+ * to the CPU it took, so the job uses about that share of the machine's
+ * processors and leaves the rest to whatever else runs there.
+ */
+public class RehashMigration {
+    public static final String USAGE =
+            "usage: passforge --migrate INPUT OUTPUT --to SPEC [-j JOURNAL] [-t THREADS] [--cpu SHARE]\n"
+            + "       SPEC is bcrypt:LOG_ROUNDS, pbkdf2-sha256:ITERATIONS, pbkdf2-sha512:ITERATIONS\n"
+            + "       or argon2id:ITERATIONS:MEMORY_KIB:PARALLELISM";
+
+    static final int CHECKPOINT_RECORDS = 1000;
+    private static final long CHECKPOINT_NANOS = 5000000000L;
+    private static final int WINDOW_PER_THREAD = 4;
+    private static final int BUFFER_BYTES = 64 * 1024;
+    private static final String CHECKPOINT = "CHECKPOINT";
+    static final String RAW_PBKDF2 = "pbkdf2-raw:";
+
+    private final PasswordHasher hasher;
+    private final KdfParameters parameters;
+    private final int threads;
+    private final double duty;
+
+    private long migrated;
+    private long failed;
+
+    /**
+     * @param hasher the hasher to wrap with
+     * @param parameters its settings
+     * @param threads number of hashes to run at once
+     * @param cpuShare the share of all processors to use, above 0 and up
+     *            to 1
+     */
+    public RehashMigration(PasswordHasher hasher, KdfParameters parameters,
+            int threads, double cpuShare) {
+        if (threads <= 0) {
+            throw new IllegalArgumentException("Thread count must be positive");
+        }
+        if (!(cpuShare > 0 && cpuShare <= 1)) {
+            throw new IllegalArgumentException("CPU share must be above 0 and at most 1");
+        }
+        this.hasher = hasher;
+        this.parameters = parameters;
+        this.threads = threads;
+        // The share of its time each worker may spend hashing
+        this.duty = Math.min(1.0, cpuShare * Runtime.getRuntime().availableProcessors() / threads);
+    }
+
+    /**
+     * Migrates input into output, resuming from journal if an earlier run
+     * left one. Problems with single lines go to err with the closing
+     * summary.
+     *
+     * @return the number of lines that failed, this run and earlier ones
+     */
+    public long run(Path input, Path output, Path journal, PrintStream err)
+            throws IOException, InterruptedException {
+        long[] checkpoint = lastCheckpoint(journal);
+        long inputOffset = checkpoint[0];
+        migrated = checkpoint[2];
+        failed = checkpoint[3];
+
+        FileChannel in = FileChannel.open(input, StandardOpenOption.READ);
+        FileChannel out = FileChannel.open(output, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE);
+        FileChannel log = FileChannel.open(journal, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        long start = System.nanoTime();
+        long resumedAt = migrated + failed;
+        if (inputOffset > 0) {
+            err.println("resuming at input offset " + inputOffset + " after "
+                    + resumedAt + " lines");
+        }
+
+        try {
+            // Anything past the checkpoint was written but never recorded
+            out.truncate(checkpoint[1]);
+            out.position(checkpoint[1]);
+            ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_BYTES);
+            LineReader reader = new LineReader(in, inputOffset);
+            ArrayDeque<Pending> window = new ArrayDeque<Pending>();
+            int windowSize = threads * WINDOW_PER_THREAD;
+            long committed = inputOffset;
+            int sinceCheckpoint = 0;
+            long lastCheckpoint = System.nanoTime();
+
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.length() == 0 || line.startsWith("#")) {
+                    if (window.isEmpty()) {
+                        committed = reader.getOffset();
+                    }
+                    continue;
+                }
+
+                if (window.size() >= windowSize) {
+                    Pending pending = window.removeFirst();
+                    write(pending, buffer, out, err);
+                    committed = pending.inputEnd;
+                    if (++sinceCheckpoint >= CHECKPOINT_RECORDS
+                            || System.nanoTime() - lastCheckpoint > CHECKPOINT_NANOS) {
+                        checkpoint(buffer, out, log, committed);
+                        sinceCheckpoint = 0;
+                        lastCheckpoint = System.nanoTime();
+                    }
+                }
+                window.addLast(submit(pool, line, reader.getLineStart(), reader.getOffset()));
+            }
+
+            while (!window.isEmpty()) {
+                write(window.removeFirst(), buffer, out, err);
+            }
+            if (reader.getOffset() > inputOffset || inputOffset == 0) {
+                checkpoint(buffer, out, log, reader.getOffset());
+            }
+        } finally {
+            pool.shutdownNow();
+            in.close();
+            out.close();
+            log.close();
+        }
+
+        double seconds = (System.nanoTime() - start) / 1e9;
+        long done = migrated + failed - resumedAt;
+        err.println(String.format("%d migrated, %d failed in %.3f s (%.1f/s)",
+                migrated, failed, seconds, seconds > 0 ? done / seconds : 0.0));
+        return failed;
+    }
+
+    private Pending submit(ExecutorService pool, String line, long inputStart, long inputEnd) {
+        final String[] fields = line.split("\\s+");
+        if (fields.length != 2) {
+            return new Pending(inputStart, inputEnd, null,
+                    new IllegalArgumentException("expected ID HASH"));
+        }
+        Future<String> result = pool.submit(new Callable<String>() {
+            public String call() throws GeneralSecurityException, InterruptedException {
+                long busy = busyNanos();
+                String wrapped = wrap(fields[1]);
+                throttle(busyNanos() - busy);
+                return fields[0] + " " + setting(fields[1]) + " " + wrapped;
+            }
+        });
+        return new Pending(inputStart, inputEnd, result, null);
+    }
+
+    /**
+     * The new hash for an old one.
+     */
+    String wrap(String oldHash) throws GeneralSecurityException {
+        return hasher.hash(inner(oldHash), parameters);
+    }
+
+    private void write(Pending pending, ByteBuffer buffer, FileChannel out, PrintStream err)
+            throws IOException, InterruptedException {
+        Throwable error = pending.error;
+        if (error == null) {
+            try {
+                byte[] bytes = (pending.result.get() + "\n").getBytes("UTF-8");
+                if (bytes.length > buffer.remaining()) {
+                    drain(buffer, out);
+                }
+                if (bytes.length > buffer.capacity()) {
+                    out.write(ByteBuffer.wrap(bytes));
+                } else {
+                    buffer.put(bytes);
+                }
+                migrated++;
+                return;
+            } catch (ExecutionException e) {
+                error = e.getCause();
+            }
+        }
+        err.println("offset " + pending.inputStart + ": " + error.getMessage());
+        failed++;
+    }
+
+    private static void drain(ByteBuffer buffer, FileChannel out) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    /**
+     * Makes the output durable up to the input offset committed, then
+     * records it in the journal.
+     */
+    private void checkpoint(ByteBuffer buffer, FileChannel out, FileChannel log, long committed)
+            throws IOException {
+        drain(buffer, out);
+        out.force(false);
+        String fields = CHECKPOINT + " " + committed + " " + out.position() + " "
+                + migrated + " " + failed;
+        String entry = fields + " " + Long.toHexString(crc(fields)) + "\n";
+        ByteBuffer bytes = ByteBuffer.wrap(entry.getBytes("US-ASCII"));
+        while (bytes.hasRemaining()) {
+            log.write(bytes);
+        }
+        log.force(false);
+    }
+
+    /**
+     * The last intact checkpoint: input offset, output size, lines
+     * migrated and lines failed; zeros if there is none.
+     */
+    static long[] lastCheckpoint(Path journal) throws IOException {
+        long[] last = new long[4];
+        if (!Files.exists(journal)) {
+            return last;
+        }
+        List<String> lines = Files.readAllLines(journal, Charset.forName("US-ASCII"));
+        for (String line : lines) {
+            String[] fields = line.split(" ");
+            if (fields.length != 6 || !fields[0].equals(CHECKPOINT)) {
+                continue;
+            }
+            try {
+                String body = line.substring(0, line.lastIndexOf(' '));
+                if (Long.parseLong(fields[5], 16) != crc(body)) {
+                    continue;
+                }
+                for (int i = 0; i < 4; i++) {
+                    last[i] = Long.parseLong(fields[i + 1]);
+                }
+            } catch (NumberFormatException e) {
+                // A checkpoint torn by a crash; the one before stands
+            }
+        }
+        return last;
+    }
+
+    private static long crc(String s) {
+        CRC32 crc = new CRC32();
+        try {
+            crc.update(s.getBytes("US-ASCII"));
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError("US-ASCII is not supported");
+        }
+        return crc.getValue();
+    }
+
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    /**
+     * This thread's CPU time, or the wall clock where that isn't measured.
+     */
+    private static long busyNanos() {
+        if (THREADS.isCurrentThreadCpuTimeSupported()) {
+            long cpu = THREADS.getCurrentThreadCpuTime();
+            if (cpu >= 0) {
+                return cpu;
+            }
+        }
+        return System.nanoTime();
+    }
+
+    /**
+     * Sleeps long enough that busy nanoseconds of work are duty of the
+     * time taken.
+     */
+    private void throttle(long busy) throws InterruptedException {
+        if (duty >= 1 || busy <= 0) {
+            return;
+        }
+        long pause = (long) (busy * (1 - duty) / duty);
+        Thread.sleep(pause / 1000000, (int) (pause % 1000000));
+    }
+
+    /**
+     * The old hash without its digest: a bcrypt salt, or a PBKDF2 hash up
+     * to its salt followed by the key length.
+     *
+     * @throws IllegalArgumentException if verify() could not compute the
+     *             old hash again exactly
+     */
+    static String setting(String oldHash) {
+        if (oldHash.startsWith(RAW_PBKDF2)) {
+            return rawSetting(oldHash);
+        }
+        // CompactHash takes exactly the hashes BCrypt.hashpw and
+        // Pbkdf2Function make, and gives them back as they were made
+        byte[] compact;
+        try {
+            compact = CompactHash.encode(oldHash);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Can't recompute: " + e.getMessage());
+        }
+        if (!CompactHash.decode(compact).equals(oldHash)) {
+            throw new IllegalArgumentException("Can't recompute: hash is not in canonical form");
+        }
+
+        int kind = CompactHash.kind(compact, 0);
+        if (kind == CompactHash.BCRYPT || kind == CompactHash.BCRYPT_2A) {
+            return oldHash.substring(0, oldHash.length() - 31);
+        }
+        int end = oldHash.lastIndexOf('$') + 1;
+        return oldHash.substring(0, end) + Pbkdf2Function.unab64(oldHash.substring(end)).length;
+    }
+
+    /**
+     * setting() for a raw PBKDF2KeyGenerator key.
+     */
+    private static String rawSetting(String oldHash) {
+        String[] fields = rawFields(oldHash);
+        byte[] salt = rawDecode(fields[3]);
+        byte[] key = rawDecode(fields[4]);
+        if (key.length < Pbkdf2Function.MIN_KEY_LENGTH) {
+            throw new IllegalArgumentException("Can't recompute: key shorter than "
+                    + Pbkdf2Function.MIN_KEY_LENGTH + " bytes");
+        }
+        PassforgeMetrics.base64Encoded(salt.length + key.length);
+        if (!Base64.encodeBytes(salt).equals(fields[3]) || !Base64.encodeBytes(key).equals(fields[4])) {
+            throw new IllegalArgumentException("Can't recompute: hash is not in canonical form");
+        }
+        return oldHash.substring(0, oldHash.lastIndexOf(':') + 1) + key.length;
+    }
+
+    /**
+     * The fields of a raw PBKDF2 hash or setting: the prefix, HMAC,
+     * iterations, salt and key or key length.
+     */
+    private static String[] rawFields(String s) {
+        String[] fields = s.split(":", -1);
+        if (fields.length != 5) {
+            throw new IllegalArgumentException("Not a raw PBKDF2 hash");
+        }
+        try {
+            Mac.getInstance(fields[1]);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalArgumentException("Unknown HMAC " + fields[1]);
+        }
+        if (Integer.parseInt(fields[2]) <= 0) {
+            throw new IllegalArgumentException("Not a raw PBKDF2 hash");
+        }
+        return fields;
+    }
+
+    private static byte[] rawDecode(String s) {
+        PassforgeMetrics.base64Decoded(s.length());
+        try {
+            return Base64.decode(s, Base64.DONT_GUNZIP);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Bad Base64 in raw PBKDF2 hash", e);
+        }
+    }
+
+    /**
+     * The old hash as the new hasher sees it: Base64 of its SHA-256.
+     */
+    static String inner(String oldHash) throws GeneralSecurityException {
+        setting(oldHash);
+        PassforgeMetrics.base64Encoded(32);
+        try {
+            return Base64.encodeBytes(MessageDigest.getInstance("SHA-256")
+                    .digest(oldHash.getBytes("UTF-8")));
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError("UTF-8 is not supported");
+        }
+    }
+
+    /**
+     * Checks a password against a migrated record, computing the old hash
+     * from setting and checking it against wrapped.
+     */
+    public static boolean verify(String password, String setting, String wrapped)
+            throws GeneralSecurityException {
+        String oldHash;
+        if (setting.startsWith("$2")) {
+            oldHash = BCrypt.hashpw(password, setting);
+        } else if (setting.startsWith(RAW_PBKDF2)) {
+            // PBKDF2KeyGenerator can't key its HMAC with an empty secret,
+            // so no raw key was ever made from one
+            if (password.length() == 0) {
+                return false;
+            }
+            String[] fields = rawFields(setting);
+            byte[] key = new PBKDF2KeyGenerator(Integer.parseInt(fields[4]),
+                    Integer.parseInt(fields[2]), fields[1])
+                    .generateKey(password, rawDecode(fields[3]));
+            PassforgeMetrics.base64Encoded(key.length);
+            oldHash = setting.substring(0, setting.lastIndexOf(':') + 1) + Base64.encodeBytes(key);
+        } else {
+            // "", identifier, iterations, salt and key length
+            String[] fields = setting.split("\\$", -1);
+            String hmac = fields.length == 5 ? Pbkdf2Function.hmacFor(fields[1]) : null;
+            if (hmac == null) {
+                throw new IllegalArgumentException("Not a bcrypt or PBKDF2 setting");
+            }
+            oldHash = new Pbkdf2Function().hash(password,
+                    new Pbkdf2Parameters(hmac, Integer.parseInt(fields[2])),
+                    Pbkdf2Function.unab64(fields[3]), Integer.parseInt(fields[4]));
+        }
+        return KdfRegistry.getDefault().getHasherFor(wrapped).verify(inner(oldHash), wrapped);
+    }
+
+    /**
+     * The hasher and its settings for a --to SPEC.
+     */
+    static KdfParameters parseSpec(String spec) {
+        String[] fields = spec.split(":");
+        if (fields[0].equals("bcrypt") && fields.length == 2) {
+            return new BCryptParameters(Integer.parseInt(fields[1]));
+        }
+        if (fields[0].equals("pbkdf2-sha256") && fields.length == 2) {
+            return new Pbkdf2Parameters("HmacSHA256", Integer.parseInt(fields[1]));
+        }
+        if (fields[0].equals("pbkdf2-sha512") && fields.length == 2) {
+            return new Pbkdf2Parameters("HmacSHA512", Integer.parseInt(fields[1]));
+        }
+        if (fields[0].equals("argon2id") && fields.length == 4) {
+            return new Argon2Parameters(Integer.parseInt(fields[1]),
+                    Integer.parseInt(fields[2]), Integer.parseInt(fields[3]));
+        }
+        throw new IllegalArgumentException("Unknown target " + spec);
+    }
+
+    private static class Pending {
+        // Where the line starts and ends in the input
+        final long inputStart;
+        final long inputEnd;
+        final Future<String> result;
+        final Throwable error;
+
+        Pending(long inputStart, long inputEnd, Future<String> result, Throwable error) {
+            this.inputStart = inputStart;
+            this.inputEnd = inputEnd;
+            this.result = result;
+            this.error = error;
+        }
+    }
+
+    /**
+     * Reads UTF-8 lines from a channel, keeping count of the byte offset
+     * reached, which BufferedReader can't.
+     */
+    private static class LineReader {
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_BYTES);
+        private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+        private long offset;
+        private long lineStart;
+
+        LineReader(FileChannel channel, long offset) throws IOException {
+            this.channel = channel;
+            this.offset = offset;
+            channel.position(offset);
+            buffer.flip();
+        }
+
+        /**
+         * The next line, without its line ending, or null at the end.
+         */
+        String readLine() throws IOException {
+            line.reset();
+            lineStart = offset;
+            while (true) {
+                if (!buffer.hasRemaining()) {
+                    buffer.clear();
+                    int n = channel.read(buffer);
+                    buffer.flip();
+                    if (n <= 0) {
+                        if (line.size() == 0) {
+                            return null;
+                        }
+                        break;
+                    }
+                }
+                byte b = buffer.get();
+                offset++;
+                if (b == '\n') {
+                    break;
+                }
+                line.write(b);
+            }
+            String s = line.toString("UTF-8");
+            return s.endsWith("\r") ? s.substring(0, s.length() - 1) : s;
+        }
+
+        /**
+         * Bytes read so far, including any before the first readLine().
+         */
+        long getOffset() {
+            return offset;
+        }
+
+        /**
+         * The offset of the line last read.
+         */
+        long getLineStart() {
+            return lineStart;
+        }
+    }
+
+    /**
+     * Entry point for passforge --migrate; args are the arguments after it.
+     */
+    public static void main(String[] args) throws Exception {
+        int threads = Runtime.getRuntime().availableProcessors();
+        double cpuShare = 1;
+        String input = null;
+        String output = null;
+        String journal = null;
+        KdfParameters parameters = null;
+
+        try {
+            for (int i = 0; i < args.length; i++) {
+                String arg = args[i];
+                if (arg.equals("-t") && i + 1 < args.length) {
+                    threads = Integer.parseInt(args[++i]);
+                } else if (arg.equals("--cpu") && i + 1 < args.length) {
+                    cpuShare = Double.parseDouble(args[++i]);
+                } else if (arg.equals("-j") && i + 1 < args.length) {
+                    journal = args[++i];
+                } else if (arg.equals("--to") && i + 1 < args.length) {
+                    parameters = parseSpec(args[++i]);
+                } else if (input == null && !arg.startsWith("-")) {
+                    input = arg;
+                } else if (output == null && !arg.startsWith("-")) {
+                    output = arg;
+                } else {
+                    throw new IllegalArgumentException(arg);
+                }
+            }
+            if (output == null || parameters == null) {
+                throw new IllegalArgumentException();
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println(USAGE);
+            System.exit(1);
+        }
+
+        PasswordHasher hasher = KdfRegistry.getDefault().getHasher(parameters.getAlgorithm());
+        long failed = new RehashMigration(hasher, parameters, threads, cpuShare).run(
+                Paths.get(input), Paths.get(output),
+                Paths.get(journal != null ? journal : output + ".journal"), System.err);
+        System.exit(failed == 0 ? 0 : 2);
+    }
+}
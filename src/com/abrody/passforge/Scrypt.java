@@ -0,0 +1,304 @@
+package com.abrody.passforge;
+
+import java.security.GeneralSecurityException;
+import java.security.InvalidAlgorithmParameterException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.crypto.Mac;
+
+/**
+ * scrypt (RFC 7914), the memory-hard key derivation function.
+ *
+ * The outer layer is PBKDF2-HMAC-SHA256 with one iteration, from
+ * PBKDF2KeyGenerator. The p lanes of ROMix are independent, so lanes
+ * after the first run on the common fork-join pool while the calling
+ * thread does the first.
+ *
+ * Each lane needs 128 * r * N bytes of scratch. That is held as int[]
+ * and pooled, so repeated derivations at the same settings reuse their
+ * buffers instead of handing the collector a fresh 16 MB (say) each
+ * time. Buffers are wiped before they go back in the pool, and the pool
+ * keeps at most MAX_POOLED_BYTES.
+ */
+public class Scrypt implements KeyDerivationFunction {
+    /** Most scratch memory the pool holds on to between calls. */
+    public static final long MAX_POOLED_BYTES = 256L * 1024 * 1024;
+
+    private static final Set<KdfCapability> CAPABILITIES = Collections.unmodifiableSet(
+            EnumSet.of(KdfCapability.PURE_JAVA, KdfCapability.MEMORY_HARD));
+
+    private static final ConcurrentLinkedQueue<Scratch> pool = new ConcurrentLinkedQueue<Scratch>();
+    private static final AtomicLong pooledBytes = new AtomicLong();
+
+    public String getAlgorithm() {
+        return ScryptParameters.ALGORITHM;
+    }
+
+    public Set<KdfCapability> getCapabilities() {
+        return CAPABILITIES;
+    }
+
+    public byte[] deriveKey(byte[] password, byte[] salt, KdfParameters parameters,
+            int keyLengthBytes) throws GeneralSecurityException {
+        if (!(parameters instanceof ScryptParameters)) {
+            throw new InvalidAlgorithmParameterException("Not scrypt parameters: " + parameters);
+        }
+        ScryptParameters s = (ScryptParameters) parameters;
+        return scrypt(password, salt, s.getN(), s.getR(), s.getP(), keyLengthBytes);
+    }
+
+    /**
+     * scrypt(P, S, N, r, p, dkLen) as in RFC 7914 section 6.
+     */
+    public static byte[] scrypt(byte[] password, byte[] salt, int n, int r, int p,
+            int keyLengthBytes) throws GeneralSecurityException {
+        // The constructor checks N, r and p
+        new ScryptParameters(n, r, p);
+        if ((long) p * 128 * r > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("p * 128 * r is too large");
+        }
+
+        Timing timing = Timing.start(PassforgeEvents.DERIVE);
+        boolean succeeded = false;
+        try {
+            Mac hmac = Mac.getInstance("HmacSHA256");
+            hmac.init(new RawKey(password, hmac.getAlgorithm()));
+
+            byte[] b = PBKDF2KeyGenerator.pbkdf2(hmac, salt, 1, p * 128 * r);
+            romixLanes(b, n, r, p);
+            byte[] result = PBKDF2KeyGenerator.pbkdf2(hmac, b, 1, keyLengthBytes);
+            Arrays.fill(b, (byte) 0);
+            succeeded = true;
+            return result;
+        } finally {
+            timing.derive(Latencies.SCRYPT, ScryptParameters.ALGORITHM, n, n, keyLengthBytes,
+                    succeeded);
+        }
+    }
+
+    /**
+     * Runs ROMix on each of the p 128*r byte lanes of b, in place.
+     */
+    private static void romixLanes(final byte[] b, final int n, final int r, int p)
+            throws GeneralSecurityException {
+        final int laneBytes = 128 * r;
+        if (p == 1) {
+            romix(b, 0, n, r);
+            return;
+        }
+
+        Future<?>[] lanes = new Future<?>[p - 1];
+        for (int i = 1; i < p; i++) {
+            final int offset = i * laneBytes;
+            lanes[i - 1] = ForkJoinPool.commonPool().submit(new Callable<Void>() {
+                public Void call() {
+                    romix(b, offset, n, r);
+                    return null;
+                }
+            });
+        }
+        romix(b, 0, n, r);
+
+        try {
+            for (Future<?> lane : lanes) {
+                lane.get();
+            }
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("scrypt lane failed", e.getCause());
+        } catch (InterruptedException e) {
+            for (Future<?> lane : lanes) {
+                lane.cancel(true);
+            }
+            Thread.currentThread().interrupt();
+            throw new GeneralSecurityException("Interrupted");
+        }
+    }
+
+    /**
+     * scryptROMix on the 128*r bytes of b at offset.
+     */
+    static void romix(byte[] b, int offset, int n, int r) {
+        int blockInts = 32 * r;
+        Scratch scratch = take(blockInts, n);
+        try {
+            int[] x = scratch.x;
+            int[] y = scratch.y;
+            int[] v = scratch.v;
+
+            for (int i = 0; i < blockInts; i++) {
+                int k = offset + i * 4;
+                x[i] = (b[k] & 0xff) | (b[k + 1] & 0xff) << 8
+                        | (b[k + 2] & 0xff) << 16 | (b[k + 3] & 0xff) << 24;
+            }
+
+            for (int i = 0; i < n; i += 2) {
+                System.arraycopy(x, 0, v, i * blockInts, blockInts);
+                blockMix(x, y, r, scratch.t);
+                System.arraycopy(y, 0, v, (i + 1) * blockInts, blockInts);
+                blockMix(y, x, r, scratch.t);
+            }
+
+            int mask = n - 1;
+            int last = (2 * r - 1) * 16;
+            for (int i = 0; i < n; i += 2) {
+                int j = (x[last] & mask) * blockInts;
+                for (int k = 0; k < blockInts; k++) {
+                    x[k] ^= v[j + k];
+                }
+                blockMix(x, y, r, scratch.t);
+
+                j = (y[last] & mask) * blockInts;
+                for (int k = 0; k < blockInts; k++) {
+                    y[k] ^= v[j + k];
+                }
+                blockMix(y, x, r, scratch.t);
+            }
+
+            for (int i = 0; i < blockInts; i++) {
+                int k = offset + i * 4;
+                int w = x[i];
+                b[k] = (byte) w;
+                b[k + 1] = (byte) (w >>> 8);
+                b[k + 2] = (byte) (w >>> 16);
+                b[k + 3] = (byte) (w >>> 24);
+            }
+        } finally {
+            give(scratch);
+        }
+    }
+
+    /**
+     * scryptBlockMix from in to out, which must not overlap; t is 16
+     * ints of working space.
+     */
+    private static void blockMix(int[] in, int[] out, int r, int[] t) {
+        System.arraycopy(in, (2 * r - 1) * 16, t, 0, 16);
+        for (int i = 0; i < 2 * r; i++) {
+            int base = i * 16;
+            for (int k = 0; k < 16; k++) {
+                t[k] ^= in[base + k];
+            }
+            salsa20_8(t);
+            // Even blocks go to the first half, odd ones to the second
+            System.arraycopy(t, 0, out, ((i & 1) * r + (i >> 1)) * 16, 16);
+        }
+    }
+
+    /**
+     * Salsa20/8 core on 16 words, in place.
+     */
+    private static void salsa20_8(int[] b) {
+        int x0 = b[0], x1 = b[1], x2 = b[2], x3 = b[3];
+        int x4 = b[4], x5 = b[5], x6 = b[6], x7 = b[7];
+        int x8 = b[8], x9 = b[9], x10 = b[10], x11 = b[11];
+        int x12 = b[12], x13 = b[13], x14 = b[14], x15 = b[15];
+
+        for (int i = 0; i < 8; i += 2) {
+            // Columns
+            x4 ^= Integer.rotateLeft(x0 + x12, 7);
+            x8 ^= Integer.rotateLeft(x4 + x0, 9);
+            x12 ^= Integer.rotateLeft(x8 + x4, 13);
+            x0 ^= Integer.rotateLeft(x12 + x8, 18);
+            x9 ^= Integer.rotateLeft(x5 + x1, 7);
+            x13 ^= Integer.rotateLeft(x9 + x5, 9);
+            x1 ^= Integer.rotateLeft(x13 + x9, 13);
+            x5 ^= Integer.rotateLeft(x1 + x13, 18);
+            x14 ^= Integer.rotateLeft(x10 + x6, 7);
+            x2 ^= Integer.rotateLeft(x14 + x10, 9);
+            x6 ^= Integer.rotateLeft(x2 + x14, 13);
+            x10 ^= Integer.rotateLeft(x6 + x2, 18);
+            x3 ^= Integer.rotateLeft(x15 + x11, 7);
+            x7 ^= Integer.rotateLeft(x3 + x15, 9);
+            x11 ^= Integer.rotateLeft(x7 + x3, 13);
+            x15 ^= Integer.rotateLeft(x11 + x7, 18);
+            // Rows
+            x1 ^= Integer.rotateLeft(x0 + x3, 7);
+            x2 ^= Integer.rotateLeft(x1 + x0, 9);
+            x3 ^= Integer.rotateLeft(x2 + x1, 13);
+            x0 ^= Integer.rotateLeft(x3 + x2, 18);
+            x6 ^= Integer.rotateLeft(x5 + x4, 7);
+            x7 ^= Integer.rotateLeft(x6 + x5, 9);
+            x4 ^= Integer.rotateLeft(x7 + x6, 13);
+            x5 ^= Integer.rotateLeft(x4 + x7, 18);
+            x11 ^= Integer.rotateLeft(x10 + x9, 7);
+            x8 ^= Integer.rotateLeft(x11 + x10, 9);
+            x9 ^= Integer.rotateLeft(x8 + x11, 13);
+            x10 ^= Integer.rotateLeft(x9 + x8, 18);
+            x12 ^= Integer.rotateLeft(x15 + x14, 7);
+            x13 ^= Integer.rotateLeft(x12 + x15, 9);
+            x14 ^= Integer.rotateLeft(x13 + x12, 13);
+            x15 ^= Integer.rotateLeft(x14 + x13, 18);
+        }
+
+        b[0] += x0; b[1] += x1; b[2] += x2; b[3] += x3;
+        b[4] += x4; b[5] += x5; b[6] += x6; b[7] += x7;
+        b[8] += x8; b[9] += x9; b[10] += x10; b[11] += x11;
+        b[12] += x12; b[13] += x13; b[14] += x14; b[15] += x15;
+    }
+
+    /**
+     * Scratch for one lane: n blocks of V, two working blocks and the
+     * Salsa20 state.
+     */
+    private static class Scratch {
+        final int blockInts;
+        final int n;
+        final int[] v;
+        final int[] x;
+        final int[] y;
+        final int[] t = new int[16];
+
+        Scratch(int blockInts, int n) {
+            this.blockInts = blockInts;
+            this.n = n;
+            this.v = new int[blockInts * n];
+            this.x = new int[blockInts];
+            this.y = new int[blockInts];
+        }
+
+        long bytes() {
+            return 4L * (v.length + x.length + y.length);
+        }
+    }
+
+    private static Scratch take(int blockInts, int n) {
+        for (Scratch s : pool) {
+            if (s.blockInts == blockInts && s.n == n && pool.remove(s)) {
+                pooledBytes.addAndGet(-s.bytes());
+                return s;
+            }
+        }
+        return new Scratch(blockInts, n);
+    }
+
+    private static void give(Scratch s) {
+        Arrays.fill(s.v, 0);
+        Arrays.fill(s.x, 0);
+        Arrays.fill(s.y, 0);
+        Arrays.fill(s.t, 0);
+        if (pooledBytes.addAndGet(s.bytes()) <= MAX_POOLED_BYTES) {
+            pool.add(s);
+        } else {
+            pooledBytes.addAndGet(-s.bytes());
+        }
+    }
+
+    /**
+     * Frees the pooled scratch buffers.
+     */
+    public static void clearPool() {
+        Scratch s;
+        while ((s = pool.poll()) != null) {
+            pooledBytes.addAndGet(-s.bytes());
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package com.abrody.passforge;
+
+/**
+ * scrypt settings (RFC 7914): the CPU/memory cost N, a power of two
+ * above 1; the block size r; and the parallelism p. Each of the p lanes
+ * needs 128 * r * N bytes of scratch memory.
+ */
+public final class ScryptParameters implements KdfParameters {
+    public static final String ALGORITHM = "scrypt";
+
+    private final int n;
+    private final int r;
+    private final int p;
+
+    public ScryptParameters(int n, int r, int p) {
+        if (n < 2 || (n & (n - 1)) != 0) {
+            throw new IllegalArgumentException("N must be a power of 2 greater than 1");
+        }
+        if (r < 1 || p < 1) {
+            throw new IllegalArgumentException("r and p must be positive");
+        }
+        if ((long) r * p >= 1 << 30) {
+            throw new IllegalArgumentException("r * p must be below 2^30");
+        }
+        if ((long) 32 * r * n > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("128 * r * N is too large");
+        }
+        this.n = n;
+        this.r = r;
+        this.p = p;
+    }
+
+    public String getAlgorithm() {
+        return ALGORITHM;
+    }
+
+    /**
+     * N.
+     */
+    public int getCost() {
+        return n;
+    }
+
+    public int getN() {
+        return n;
+    }
+
+    public int getR() {
+        return r;
+    }
+
+    public int getP() {
+        return p;
+    }
+
+    /**
+     * Scratch memory for one lane, in bytes.
+     */
+    public long getMemoryBytes() {
+        return 128L * r * n;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof ScryptParameters)) {
+            return false;
+        }
+        ScryptParameters s = (ScryptParameters) o;
+        return n == s.n && r == s.r && p == s.p;
+    }
+
+    @Override
+    public int hashCode() {
+        return (n * 31 + r) * 31 + p;
+    }
+
+    @Override
+    public String toString() {
+        return "scrypt N=" + n + " r=" + r + " p=" + p;
+    }
+}
@@ -0,0 +1,80 @@
+package com.abrody.passforge;
+
+/**
+ * Times one derivation, hash or verification for all three of the
+ * library's instruments: the latency histograms, PassforgeMetrics and
+ * the JFR events. Instrumented methods call start() on the way in and
+ * one of the finishing methods in a finally block:
+ * <pre>
+ *   Timing timing = Timing.start(PassforgeEvents.HASH);
+ *   boolean succeeded = false;
+ *   try {
+ *       ...
+ *       succeeded = true;
+ *   } finally {
+ *       timing.hash(logRounds, succeeded);
+ *   }
+ * </pre>
+ * Latencies are only recorded for calls that succeeded.
+ */
+final class Timing {
+    private final NanoClock clock;
+    private final long start;
+    private final Object event;
+
+    private Timing(NanoClock clock, long start, Object event) {
+        this.clock = clock;
+        this.start = start;
+        this.event = event;
+    }
+
+    /**
+     * @param kind PassforgeEvents.DERIVE, HASH or VERIFY
+     */
+    static Timing start(int kind) {
+        NanoClock clock = Latencies.getClock();
+        return new Timing(clock, clock.nanoTime(), PassforgeEvents.begin(kind));
+    }
+
+    /**
+     * Finishes a derivation.
+     *
+     * @param histogram where the latency goes, or null for none
+     * @param cost the cost to count it under in PassforgeMetrics
+     * @param iterations the iterations for the JFR event
+     * @param length bytes derived
+     */
+    void derive(LatencyHistogram histogram, String algorithm, int cost,
+            int iterations, int length, boolean succeeded) {
+        long nanos = clock.nanoTime() - start;
+        if (succeeded && histogram != null) {
+            histogram.record(nanos);
+        }
+        PassforgeMetrics.record(PassforgeMetrics.DERIVE, algorithm, cost, nanos, succeeded);
+        PassforgeEvents.commitDerive(event, algorithm, iterations, length);
+    }
+
+    /**
+     * Finishes a bcrypt hash.
+     */
+    void hash(int logRounds, boolean succeeded) {
+        long nanos = clock.nanoTime() - start;
+        if (succeeded) {
+            Latencies.BCRYPT_HASH.record(nanos);
+        }
+        PassforgeMetrics.record(PassforgeMetrics.HASH, "bcrypt", logRounds, nanos, succeeded);
+        PassforgeEvents.commitHash(event, logRounds, succeeded);
+    }
+
+    /**
+     * Finishes a bcrypt verification.
+     */
+    void verify(int logRounds, boolean succeeded, boolean matched) {
+        long nanos = clock.nanoTime() - start;
+        if (succeeded) {
+            Latencies.BCRYPT_CHECK.record(nanos);
+        }
+        PassforgeMetrics.record(PassforgeMetrics.VERIFY, "bcrypt", logRounds, nanos, succeeded);
+        PassforgeEvents.commitVerify(event, logRounds, matched);
+    }
+}